@@ -6,7 +6,7 @@ import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Set;
+import java.util.Iterator;
 
 import android.app.Activity;
 import android.content.res.AssetManager;
@@ -15,12 +15,17 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.TextView;
+import edu.berkeley.security.eventtracker.eventdata.DatabaseBenchmark;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
 import edu.berkeley.security.eventtracker.eventdata.EventGenerator;
 import edu.berkeley.security.eventtracker.eventdata.EventManager;
 import edu.berkeley.security.eventtracker.eventdata.GPSCoordinates;
 import edu.berkeley.security.eventtracker.network.Networking;
 import edu.berkeley.security.eventtracker.network.ServerRequest;
+import edu.berkeley.security.eventtracker.prediction.PredictedPair;
+import edu.berkeley.security.eventtracker.prediction.PredictionBenchmark;
+import edu.berkeley.security.eventtracker.prediction.PredictionRanking.TieBreak;
+import edu.berkeley.security.eventtracker.prediction.PredictionService;
 
 public class Debugging extends Activity {
 
@@ -56,19 +61,38 @@ public class Debugging extends Activity {
 			@Override
 			public void onClick(View v) {
 				debugStatus.setText("clearing events...");
-				EventManager.getManager().permanentlyDeleteAllEntries();
-				debugStatus.setText("clearing events... Done");
+				// Vacuuming rewrites the database file, so keep it off the UI
+				// thread.
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						EventManager manager = EventManager.getManager();
+						final int nDeleted = manager.permanentlyDeleteAllEntries();
+						manager.reclaimSpace();
+						debugStatus.post(new Runnable() {
+							@Override
+							public void run() {
+								debugStatus.setText("clearing events... Done (" + nDeleted
+										+ " deleted)");
+							}
+						});
+					}
+				}).start();
 			}
 		});
 		((Button) findViewById(R.id.doMLButton)).setOnClickListener(new OnClickListener() {
 
 			@Override
 			public void onClick(View v) {
-				Set<String> eventNamePredictions = EventActivity.mPredictionService
-						.getEventNamePredictions();
+				PredictionService predictions = EventActivity.mPredictionService;
 				String debugText = "Predicted events: ";
-				for (String predictedName : eventNamePredictions)
-					debugText += String.format('\n' + predictedName);
+				for (PredictedPair prediction : predictions.getTopPredictions(5,
+						TieBreak.RECENCY))
+					debugText += String.format("\n%s %.3f", prediction.getName(),
+							prediction.getLikelihood());
+				for (Iterator<PredictedPair> rest = predictions.getRemainingPredictions(5,
+						TieBreak.RECENCY); rest.hasNext();)
+					debugText += '\n' + rest.next().getName();
 				debugStatus.setText(debugText);
 			}
 		});
@@ -105,18 +129,35 @@ public class Debugging extends Activity {
 				int ONE_DAY = 1000 * 60 * 60 * 24;
 				EventGenerator eg = new EventGenerator(ONE_DAY);
 				EventManager manager = EventActivity.mEventManager;
-				Set<String> tags = manager.getTags();
 				EventEntry event;
 				for (int eventIndex = 365; eventIndex > 0; eventIndex--) {
 					event = eg.generateEvent();
-					if (!tags.contains(event.mTag)) {
-						manager.addTag(event.mTag);
-					}
 					manager.updateDatabase(event, false);
 				}
 				debugStatus.setText("Generating random events... Done");
 			}
 		});
+		((Button) findViewById(R.id.benchmarkButton)).setOnClickListener(new OnClickListener() {
+
+			@Override
+			public void onClick(View v) {
+				debugStatus.setText("Running benchmarks...");
+				// Benchmarks take several seconds, so keep them off the UI thread.
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						final String report = new DatabaseBenchmark(Debugging.this).runAll()
+								+ new PredictionBenchmark(Debugging.this).runAll();
+						debugStatus.post(new Runnable() {
+							@Override
+							public void run() {
+								debugStatus.setText(report);
+							}
+						});
+					}
+				}).start();
+			}
+		});
 	}
 
 	private int importTestEvents() throws IOException, ParseException {
@@ -131,10 +172,8 @@ public class Debugging extends Activity {
 		while ((eventLine = streamReader.readLine()) != null) {
 			eventParts = eventLine.split("\t+");
 			String tag = "";
-			if (eventParts.length >= 5) {
+			if (eventParts.length >= 5)
 				tag = eventParts[4];
-				EventActivity.mEventManager.addTag(tag);
-			}
 			EventEntry event = mgr.createEvent(eventParts[0], eventParts[1],
 					parseDate(eventParts[2]), parseDate(eventParts[3]), false, tag);
 			if (event != null) {
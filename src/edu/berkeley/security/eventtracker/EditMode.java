@@ -17,8 +17,8 @@ import android.widget.Button;
 import android.widget.RelativeLayout;
 import android.widget.Spinner;
 import android.widget.Toast;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.EventKey;
 import edu.berkeley.security.eventtracker.maps.GoogleMaps;
 import edu.berkeley.security.eventtracker.network.Networking;
 import edu.berkeley.security.eventtracker.network.ServerRequest;
@@ -98,7 +98,7 @@ public class EditMode extends AbstractEventEdit {
 			@Override
 			public void onClick(View v) {
 
-				if (editingEvent.getGPSCoordinates().size() == 0) {
+				if (mEventManager.getGPSCoordinates(editingEvent.mDbRowID).size() == 0) {
 					Toast.makeText(getApplicationContext(), "No data yet", Toast.LENGTH_SHORT)
 							.show();
 				} else {
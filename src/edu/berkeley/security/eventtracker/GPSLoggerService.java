@@ -61,26 +61,15 @@ public class GPSLoggerService extends Service {
 			// return;
 			// }
 
-			manager = EventManager.getManager();
-			if (manager != null) {
-				currentEvent = manager.getCurrentEvent();
-				if (currentEvent != null) {
-					GPSCoordinates GPSCoord = new GPSCoordinates(loc.getLatitude(),
-							loc.getLongitude(), System.currentTimeMillis());
-					manager.addGPSCoordinates(GPSCoord, currentEvent.mDbRowID);
-				}
-
-			} else {
-				manager = EventManager.getManager(GPSLoggerService.this);
-				currentEvent = manager.getCurrentEvent();
-				if (currentEvent != null) {
-					GPSCoordinates GPSCoord = new GPSCoordinates(loc.getLatitude(),
-							loc.getLongitude(), System.currentTimeMillis());
-					manager.addGPSCoordinates(GPSCoord, currentEvent.mDbRowID);
-					manager.close();
-				}
+			// Creates the manager if no activity has yet. It is shared, so it
+			// must stay open after this fix has been buffered.
+			manager = EventManager.getManager(GPSLoggerService.this);
+			currentEvent = manager.getCurrentEvent();
+			if (currentEvent != null) {
+				GPSCoordinates GPSCoord = new GPSCoordinates(loc.getLatitude(), loc.getLongitude(),
+						System.currentTimeMillis());
+				manager.addGPSCoordinates(GPSCoord, currentEvent.mDbRowID);
 			}
-
 		}
 
 		public void onProviderDisabled(String provider) {
@@ -124,6 +113,8 @@ public class GPSLoggerService extends Service {
 		super.onDestroy();
 		if (lm != null)
 			shutdownLoggerService();
+		if (EventManager.getManager() != null)
+			EventManager.getManager().flushGPSCoordinates();
 
 	}
 
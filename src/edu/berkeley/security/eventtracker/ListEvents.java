@@ -3,6 +3,7 @@ package edu.berkeley.security.eventtracker;
 import java.text.DateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import android.app.AlertDialog;
 import android.app.DatePickerDialog;
@@ -28,9 +29,14 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.SimpleCursorAdapter.ViewBinder;
 import android.widget.TextView;
 import android.widget.Toast;
+import edu.berkeley.security.eventtracker.eventdata.AsyncEventQueries;
+import edu.berkeley.security.eventtracker.eventdata.AsyncEventQueries.Callback;
+import edu.berkeley.security.eventtracker.eventdata.AsyncEventQueries.Query;
+import edu.berkeley.security.eventtracker.eventdata.ChangeBus;
+import edu.berkeley.security.eventtracker.eventdata.DataChange;
 import edu.berkeley.security.eventtracker.eventdata.EventCursor;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.EventKey;
 import edu.berkeley.security.eventtracker.eventdata.EventManager;
 import edu.berkeley.security.eventtracker.network.Networking;
 import edu.berkeley.security.eventtracker.network.ServerRequest;
@@ -62,6 +68,34 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 	private EventCursor mEventsCursor;
 	private ListView eventList;
 
+	/** Loads the list off the main thread. */
+	private AsyncEventQueries mQueries;
+	/** The load of the day being shown, if it has not finished. */
+	private Query<EventCursor> mListQuery;
+	/** The search for the day to move to, if it has not finished. */
+	private Query<Date> mDateQuery;
+
+	/** Whether the screen is in front, so that changes are shown at once. */
+	private boolean mVisible;
+	/** Whether the day listed changed while the screen was not visible. */
+	private boolean mStale;
+
+	/** Reloads the list when events of the day listed change. */
+	private final ChangeBus.Observer mChangeObserver = new ChangeBus.Observer() {
+		@Override
+		public void onDataChanged(List<DataChange> changes) {
+			for (DataChange change : changes) {
+				if (change.mTable == DataChange.Table.EVENT && change.affectsDate(dateListed)) {
+					if (mVisible)
+						fillData();
+					else
+						mStale = true;
+					return;
+				}
+			}
+		}
+	};
+
 	// Variables for the date picker
 	private ImageView mPickDate;
 	private int mYear;
@@ -88,15 +122,6 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 			Calendar c = Calendar.getInstance();
 			c.set(mYear, mMonth, mDay);
 			dateListed = c.getTime();
-
-			if (mEventsCursor != null) {
-
-				stopManagingCursor(mEventsCursor);
-				mEventsCursor.close();
-				eventList.invalidate();
-
-			}
-
 			fillData();
 		}
 	};
@@ -106,6 +131,8 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 		super.onCreate(savedInstanceState);
 
 		mDetector = new GestureDetector(this, this);
+		mQueries = new AsyncEventQueries(EventManager.getManager());
+		ChangeBus.getInstance().register(mChangeObserver);
 
 		// Decide which date to show
 		dateListed = EventManager.getManager().fetchDateOfLatestEvent();
@@ -149,45 +176,56 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 
 	}
 
-	private void previousListOfEvents() {
-		// dateListed.setDate(dateListed.getDate()-1);
-		Date possibleDate = EventManager.getManager().fetchDateBefore(dateListed);
-		if (possibleDate == null) {
-			Toast.makeText(getApplicationContext(), "No further events", Toast.LENGTH_SHORT).show();
-			return;
-		} else {
-			dateListed = possibleDate;
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mVisible = true;
+		if (mStale) {
+			mStale = false;
+			fillData();
 		}
+	}
 
-		if (mEventsCursor != null) {
-
-			stopManagingCursor(mEventsCursor);
-			mEventsCursor.close();
-			eventList.invalidate();
+	@Override
+	protected void onPause() {
+		mVisible = false;
+		super.onPause();
+	}
 
-		}
+	@Override
+	protected void onDestroy() {
+		ChangeBus.getInstance().unregister(mChangeObserver);
+		mQueries.cancelAll();
+		super.onDestroy();
+	}
 
-		fillData();
+	private void previousListOfEvents() {
+		if (mDateQuery != null)
+			return; // Still looking for the day to move to.
+		mDateQuery = mQueries.fetchDateBefore(dateListed, new DayChange());
 	}
 
 	private void nextListOfEvents() {
+		if (mDateQuery != null)
+			return; // Still looking for the day to move to.
+		mDateQuery = mQueries.fetchDateAfter(dateListed, new DayChange());
+	}
 
-		Date possibleDate = EventManager.getManager().fetchDateAfter(dateListed);
-		if (possibleDate == null) {
-			Toast.makeText(getApplicationContext(), "No further events", Toast.LENGTH_SHORT).show();
-			return;
-		} else {
+	/**
+	 * Shows the day found by a search for the previous or next day.
+	 */
+	private class DayChange implements Callback<Date> {
+		@Override
+		public void onResult(Date possibleDate) {
+			mDateQuery = null;
+			if (possibleDate == null) {
+				Toast.makeText(getApplicationContext(), "No further events", Toast.LENGTH_SHORT)
+						.show();
+				return;
+			}
 			dateListed = possibleDate;
+			fillData();
 		}
-
-		if (mEventsCursor != null) {
-			eventList.invalidate();
-			stopManagingCursor(mEventsCursor);
-			mEventsCursor.close();
-
-		}
-
-		fillData();
 	}
 
 	@Override
@@ -196,22 +234,35 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 	}
 
 	/**
-	 * Sets the adapter to fill the rows of the ListView from the database rows.
+	 * Loads the events of the day listed, dropping any load of a day shown
+	 * before. The current list stays until the new one is ready.
 	 */
 	private void fillData() {
+		if (mListQuery != null)
+			mListQuery.cancel();
+		initializeHeaders(eventList);
+		mListQuery = mQueries.fetchSortedEvents(dateListed, new Callback<EventCursor>() {
+			@Override
+			public void onResult(EventCursor events) {
+				mListQuery = null;
+				if (events != null)
+					showEvents(events);
+			}
+		});
+	}
 
-		mEventsCursor = mEventManager.fetchSortedEvents(dateListed);
-
-		// Get all of the rows from the database and create the item list
-		// mEventsCursor = mEventManager.fetchSortedEvents();
+	/**
+	 * Sets the adapter to fill the rows of the ListView from the database rows.
+	 */
+	private void showEvents(EventCursor events) {
+		EventCursor oldCursor = mEventsCursor;
+		mEventsCursor = events;
 		startManagingCursor(mEventsCursor);
 
 		SimpleCursorAdapter eventsCursorAdapter = new SimpleCursorAdapter(ListEvents.this,
 				R.layout.events_row, mEventsCursor, from, to);
 		eventsCursorAdapter.setViewBinder(new EventRowViewBinder());
 
-		initializeHeaders(eventList);
-
 		eventList.setEmptyView(findViewById(R.id.empty_list_view));
 
 		eventList.setOnItemClickListener(new OnItemClickListener() {
@@ -253,6 +304,10 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 
 		eventList.setAdapter(eventsCursorAdapter);
 
+		if (oldCursor != null) {
+			stopManagingCursor(oldCursor);
+			oldCursor.close();
+		}
 	}
 
 	/**
@@ -294,10 +349,15 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 	 * with values in the DB.
 	 */
 	private class EventRowViewBinder implements ViewBinder {
+		/** Reused for every row, since it is only read while binding. */
+		private final EventEntry mRowEvent = new EventEntry(null, null, 0, 0, null);
 
 		@Override
 		public boolean setViewValue(View view, final Cursor cursor, int columnIndex) {
-			EventCursor eCursor = new EventCursor(cursor, mEventManager);
+			// The adapter hands back the EventCursor it was given, whose
+			// column positions are already resolved.
+			EventCursor eCursor = cursor instanceof EventCursor ? (EventCursor) cursor
+					: new EventCursor(cursor);
 			EventKey colType = eCursor.getColumnType(columnIndex);
 
 			switch (colType) {
@@ -316,7 +376,7 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 				return true;
 			case START_TIME:
 			case END_TIME:
-				EventEntry event = eCursor.getEvent();
+				EventEntry event = eCursor.getEvent(mRowEvent);
 				String timeString = event.getTimeString(colType);
 				((TextView) view).setText(timeString);
 				return true;
@@ -380,7 +440,6 @@ public class ListEvents extends EventActivity implements OnGestureListener {
 									mEventManager.deleteEvent(deleteRowId);
 									Networking.sendToServer(ServerRequest.DELETE,
 											mEventManager.fetchEvent(deleteRowId), ListEvents.this);
-									mEventsCursor.requery();
 									if (deletedRowInProgress) {
 										updateTrackingStatus(false);
 									}
@@ -39,7 +39,6 @@ public class Settings extends PreferenceActivity {
 	public static final String UUIDOfDevice = "deviceUUID";
 	public static final String POLL_TIME = "pollTime";
 	public static final String Registered = "registered";
-	public static final String WekaModel = "wekaModel";
 	private static final String isSychronizationEnabled = "enableSychronization";
 	private static final String RegisteredServerOnly = "RegisteredServerOnly";
 	private static final int DIALOG_ENTER_PASSWORD = 0;
@@ -49,6 +48,8 @@ public class Settings extends PreferenceActivity {
 	private static final int DIALOG_SHOW_CREDENTIALS = 4;
 	private static final int DIALOG_ENTER_CORRECT_PASSWORD = 5;
 	private static final String LAST_POLL_TIME = "lastPollTime";
+	private static final int TOMBSTONE_RETENTION_DAYS = 30;
+	private static final int ARCHIVE_AGE_DAYS = 90;
 
 	private static CheckBoxPreference sychronizeDataEnabled;
 	private static CheckBoxPreference gpsEnabled;
@@ -434,6 +435,22 @@ public class Settings extends PreferenceActivity {
 		return EventActivity.settings.getLong(LAST_POLL_TIME, 0);
 	}
 
+	/**
+	 * @return how many days deleted events are kept after the web server
+	 *         received their deletion
+	 */
+	public static int getTombstoneRetentionDays() {
+		return TOMBSTONE_RETENTION_DAYS;
+	}
+
+	/**
+	 * @return how many days after they started finished events are moved
+	 *         into the archive
+	 */
+	public static int getArchiveAgeDays() {
+		return ARCHIVE_AGE_DAYS;
+	}
+
 	public static String getPassword() {
 		return EventActivity.settings.getString(password, "");
 	}
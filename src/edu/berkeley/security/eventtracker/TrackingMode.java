@@ -25,12 +25,11 @@ import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.EventKey;
 import edu.berkeley.security.eventtracker.eventdata.EventManager;
 import edu.berkeley.security.eventtracker.maps.GoogleMaps;
 import edu.berkeley.security.eventtracker.network.Networking;
-import edu.berkeley.security.eventtracker.network.ServerRequest;
 import edu.berkeley.security.eventtracker.network.Synchronizer;
 
 public class TrackingMode extends AbstractEventEdit {
@@ -298,7 +297,7 @@ public class TrackingMode extends AbstractEventEdit {
 			@Override
 			public void onClick(View v) {
 
-				if (currentEvent.getGPSCoordinates().size() == 0) {
+				if (mEventManager.getGPSCoordinates(currentEvent.mDbRowID).size() == 0) {
 					Toast.makeText(getApplicationContext(), "No data yet", Toast.LENGTH_SHORT)
 							.show();
 				} else {
@@ -341,8 +340,8 @@ public class TrackingMode extends AbstractEventEdit {
 		syncToEventFromUI();
 		updateDatabase(currentEvent);
 
-		// attempt to send data now
-		Networking.sendToServer(ServerRequest.SENDDATA, currentEvent, this);
+		// attempt to send data now, along with anything else not yet sent
+		Networking.sendAllEvents(this);
 
 		previousEvent = currentEvent;
 		if (createNewActivity) {
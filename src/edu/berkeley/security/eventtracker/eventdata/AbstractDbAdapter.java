@@ -1,23 +1,43 @@
 package edu.berkeley.security.eventtracker.eventdata;
 
+import java.lang.reflect.Method;
+
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
 
 public abstract class AbstractDbAdapter {
 
 	protected static final String TAG = "DbAdapter";
-	protected DatabaseHelper mDbHelper;
 	protected SQLiteDatabase mDb;
+	private boolean mHoldsSharedDatabase;
+
+	/** The single helper, and so the single connection, used by all adapters. */
+	private static DatabaseHelper sSharedHelper;
+	private static SQLiteDatabase sSharedDatabase;
+	private static int sSharedOpenCount;
+
+	/** Page cache size per connection, in pages. */
+	private static final int PAGE_CACHE_PAGES = 4000;
+	/** The first API level whose SQLite supports write-ahead logging. */
+	private static final int WAL_MIN_SDK = 11;
+	/** The value of PRAGMA auto_vacuum for incremental vacuuming. */
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
 
-	protected static final String TABLE_CREATE_EVENTS;
+	protected static final String TABLE_CREATE_EVENTS = createEventTable("eventData");
 
-	static { // initialize dynamic String that creates the events table.
+	/**
+	 * Builds the statement that creates a table with the columns of the
+	 * events table.
+	 */
+	static String createEventTable(String tableName) {
 		StringBuilder createEventsBuilder = new StringBuilder();
-		createEventsBuilder.append("create table eventData (");
+		createEventsBuilder.append("create table ").append(tableName).append(" (");
 		boolean isFirst = true;
 		for (EventKey dbKey : EventKey.values()) {
 			if (!isFirst)
@@ -26,7 +46,7 @@ public abstract class AbstractDbAdapter {
 			createEventsBuilder.append(dbKey.getRowCreateString());
 		}
 		createEventsBuilder.append(");");
-		TABLE_CREATE_EVENTS = createEventsBuilder.toString();
+		return createEventsBuilder.toString();
 	}
 
 	protected static final String TABLE_CREATE_GPSDATA = "create table gpsData (_id integer primary key autoincrement, "
@@ -36,7 +56,7 @@ public abstract class AbstractDbAdapter {
 			+ "tag string);";
 
 	protected static final String DATABASE_NAME = "data";
-	protected static final int DATABASE_VERSION = 4;
+	protected static final int DATABASE_VERSION = SchemaMigrations.LATEST_VERSION;
 
 	protected final Context mCtx;
 
@@ -51,14 +71,21 @@ public abstract class AbstractDbAdapter {
 			db.execSQL(TABLE_CREATE_EVENTS);
 			db.execSQL(TABLE_CREATE_GPSDATA);
 			db.execSQL(TABLE_CREATE_TAGDATA);
+			SchemaMigrations.upgrade(db, SchemaMigrations.BASE_VERSION, DATABASE_VERSION);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-					+ ", which will destroy all old data");
-			db.execSQL("DROP TABLE IF EXISTS " + DATABASE_NAME);
-			onCreate(db);
+			if (oldVersion < SchemaMigrations.BASE_VERSION) {
+				Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+						+ ", which will destroy all old data");
+				db.execSQL("DROP TABLE IF EXISTS eventData");
+				db.execSQL("DROP TABLE IF EXISTS gpsData");
+				db.execSQL("DROP TABLE IF EXISTS tagData");
+				onCreate(db);
+			} else {
+				SchemaMigrations.upgrade(db, oldVersion, newVersion);
+			}
 		}
 	}
 
@@ -74,20 +101,135 @@ public abstract class AbstractDbAdapter {
 	}
 
 	/**
-	 * Open or create the routes database.
+	 * Open or create the routes database. All adapters in the process share a
+	 * single connection, which stays open until every adapter has been closed.
 	 * 
 	 * @return this
 	 * @throws SQLException
 	 *             if the database could be neither opened or created
 	 */
 	public AbstractDbAdapter open() throws SQLException {
-		mDbHelper = new DatabaseHelper(mCtx);
-		mDb = mDbHelper.getWritableDatabase();
+		if (!mHoldsSharedDatabase) {
+			mDb = acquireSharedDatabase(mCtx);
+			mHoldsSharedDatabase = true;
+		}
+		return this;
+	}
+
+	/**
+	 * Uses an already opened database instead of opening the routes database.
+	 * The caller remains responsible for closing it.
+	 * 
+	 * @param db
+	 *            the database to work on
+	 * @return this
+	 */
+	AbstractDbAdapter open(SQLiteDatabase db) {
+		mDb = db;
 		return this;
 	}
 
+	/**
+	 * @return whether this adapter works on the routes database, rather than
+	 *         on a database given to {@link #open(SQLiteDatabase)}. Only
+	 *         changes to the routes database are published.
+	 */
+	protected boolean isSharedDatabase() {
+		return mHoldsSharedDatabase;
+	}
+
+	/**
+	 * @return whether the given database is the routes database, for code
+	 *         that is handed a database rather than an adapter
+	 * @see #isSharedDatabase()
+	 */
+	static synchronized boolean isSharedDatabase(SQLiteDatabase db) {
+		return db != null && db == sSharedDatabase;
+	}
+
 	public void close() {
-		mDbHelper.close();
+		if (mHoldsSharedDatabase) {
+			mHoldsSharedDatabase = false;
+			releaseSharedDatabase();
+		}
+	}
+
+	/**
+	 * Opens the shared connection on first use and counts the new user.
+	 */
+	private static synchronized SQLiteDatabase acquireSharedDatabase(Context context) {
+		if (sSharedHelper == null)
+			sSharedHelper = new DatabaseHelper(context.getApplicationContext());
+		SQLiteDatabase db = sSharedHelper.getWritableDatabase();
+		if (sSharedOpenCount == 0)
+			configure(db);
+		sSharedDatabase = db;
+		sSharedOpenCount++;
+		return db;
+	}
+
+	/**
+	 * Closes the shared connection once its last user is done with it.
+	 */
+	private static synchronized void releaseSharedDatabase() {
+		if (--sSharedOpenCount == 0) {
+			sSharedHelper.close();
+			sSharedHelper = null;
+			sSharedDatabase = null;
+		}
+	}
+
+	/**
+	 * Tunes a newly opened connection. Where the platform supports it,
+	 * write-ahead logging is enabled so that readers run concurrently with the
+	 * single writer, and commits only sync the log at checkpoints.
+	 * 
+	 * @param db
+	 *            an open database, outside of any transaction
+	 * @return whether write-ahead logging was enabled
+	 */
+	static boolean configure(SQLiteDatabase db) {
+		db.execSQL("PRAGMA cache_size = " + PAGE_CACHE_PAGES);
+		db.execSQL("PRAGMA temp_store = MEMORY");
+		boolean walEnabled = false;
+		if (Build.VERSION.SDK_INT >= WAL_MIN_SDK) {
+			// enableWriteAheadLogging() is missing from the API level we
+			// build against, so look it up at runtime.
+			try {
+				Method enableWal = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+				walEnabled = (Boolean) enableWal.invoke(db);
+			} catch (Exception e) {
+				Log.w(TAG, "Could not enable write-ahead logging", e);
+			}
+		}
+		if (walEnabled) {
+			// A crash can lose the last commits, but never corrupt the log.
+			db.execSQL("PRAGMA synchronous = NORMAL");
+		} else {
+			// Keep the rollback journal around instead of re-creating it.
+			Cursor mode = db.rawQuery("PRAGMA journal_mode = PERSIST", null);
+			mode.moveToFirst();
+			mode.close();
+		}
+		return walEnabled;
+	}
+
+	/**
+	 * Returns the pages freed by deletes to the file system. The first call
+	 * switches the database to incremental auto-vacuum, which takes one full
+	 * VACUUM; later calls only release the free pages. Must not be called
+	 * inside a transaction.
+	 */
+	public void reclaimSpace() {
+		if (DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+			mDb.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+			mDb.execSQL("VACUUM");
+		} else {
+			// Each step of the pragma frees one page, so read it to the end.
+			Cursor vacuum = mDb.rawQuery("PRAGMA incremental_vacuum", null);
+			vacuum.getCount();
+			vacuum.close();
+		}
 	}
 
-}
\ No newline at end of file
+}
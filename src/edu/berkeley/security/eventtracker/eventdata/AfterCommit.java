@@ -0,0 +1,95 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Holds back what the writes of a transaction announce until it commits.
+ * Announced any earlier, another thread could read the old rows and cache
+ * them as current, or an observer could hear of a write that is then rolled
+ * back. A transaction belongs to the thread that began it, so the actions
+ * are kept per thread. Transactions must be begun and ended through this
+ * class for their actions to wait; outside of them, actions run at once.
+ */
+final class AfterCommit {
+
+	private static final ThreadLocal<AfterCommit> sCurrent = new ThreadLocal<AfterCommit>() {
+		@Override
+		protected AfterCommit initialValue() {
+			return new AfterCommit();
+		}
+	};
+
+	/** The actions to run on commit, each once, in the order first given. */
+	private final Set<Runnable> mActions = new LinkedHashSet<Runnable>();
+	/** The number of transactions begun here and not yet ended. */
+	private int mDepth;
+	/** The depths whose transactions were marked successful. */
+	private final BitSet mSuccessful = new BitSet();
+	/** Whether a nested transaction failed, which rolls back the outer one. */
+	private boolean mRolledBack;
+
+	private AfterCommit() {
+	}
+
+	/**
+	 * Begins a transaction, which may be nested in another begun here.
+	 */
+	static void beginTransaction(SQLiteDatabase db) {
+		db.beginTransaction();
+		AfterCommit current = sCurrent.get();
+		current.mSuccessful.clear(++current.mDepth);
+	}
+
+	/**
+	 * Marks the innermost transaction begun here as successful.
+	 */
+	static void setTransactionSuccessful(SQLiteDatabase db) {
+		db.setTransactionSuccessful();
+		AfterCommit current = sCurrent.get();
+		current.mSuccessful.set(current.mDepth);
+	}
+
+	/**
+	 * Ends the innermost transaction begun here. Once the outermost one has
+	 * committed, the actions given during it are run; if it rolled back,
+	 * they are dropped.
+	 */
+	static void endTransaction(SQLiteDatabase db) {
+		AfterCommit current = sCurrent.get();
+		boolean ended = false;
+		try {
+			db.endTransaction();
+			ended = true;
+		} finally {
+			if (!ended || !current.mSuccessful.get(current.mDepth))
+				current.mRolledBack = true;
+			if (--current.mDepth == 0) {
+				Runnable[] actions = current.mActions.toArray(new Runnable[current.mActions
+						.size()]);
+				boolean committed = !current.mRolledBack;
+				current.mActions.clear();
+				current.mRolledBack = false;
+				if (committed)
+					for (Runnable action : actions)
+						action.run();
+			}
+		}
+	}
+
+	/**
+	 * Runs an action once the transaction of the current thread commits, or
+	 * at once if there is none. An action given twice in one transaction
+	 * runs once.
+	 */
+	static void run(Runnable action) {
+		AfterCommit current = sCurrent.get();
+		if (current.mDepth > 0)
+			current.mActions.add(action);
+		else
+			action.run();
+	}
+}
@@ -0,0 +1,241 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import edu.berkeley.security.eventtracker.EventActivity;
+
+/**
+ * Runs {@link EventManager} reads off the main thread and delivers their
+ * results on it. All queries run one at a time, in order, on a single I/O
+ * thread shared by every instance.
+ * <p>
+ * Each screen should have its own instance and call {@link #cancelAll()} when
+ * it goes away. A cancelled query that has not started is never run, and the
+ * result of one that has is dropped, closing it if it is a cursor.
+ */
+public class AsyncEventQueries {
+
+	/**
+	 * Receives the result of a query on the main thread.
+	 */
+	public interface Callback<T> {
+		/**
+		 * @param result
+		 *            the result of the read, or null if it failed
+		 */
+		void onResult(T result);
+	}
+
+	/**
+	 * A read to run on the I/O thread.
+	 */
+	public interface Read<T> {
+		T read(EventManager manager);
+	}
+
+	private static ExecutorService sExecutor;
+	private static Handler sMainHandler;
+
+	private final EventManager mManager;
+	/** The queries that are neither delivered nor cancelled. */
+	private final Set<Query<?>> mPending = new HashSet<Query<?>>();
+
+	public AsyncEventQueries(EventManager manager) {
+		mManager = manager;
+	}
+
+	/**
+	 * A query that has been submitted and may still be cancelled.
+	 */
+	public final class Query<T> implements Runnable {
+		private final Read<T> mRead;
+		private final Callback<T> mCallback;
+		private volatile boolean mCancelled;
+		private Future<?> mFuture;
+
+		private Query(Read<T> read, Callback<T> callback) {
+			mRead = read;
+			mCallback = callback;
+		}
+
+		/**
+		 * Cancels the query. If it has not started yet it never will, and its
+		 * callback is not called in either case. Safe to call more than once.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			synchronized (mPending) {
+				mPending.remove(this);
+			}
+			if (mFuture != null)
+				mFuture.cancel(false);
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled)
+				return;
+			T result = null;
+			try {
+				result = mRead.read(mManager);
+			} catch (RuntimeException e) {
+				Log.e(EventActivity.LOG_TAG, "Asynchronous event query failed.", e);
+			}
+			final T delivered = result;
+			getMainHandler().post(new Runnable() {
+				@Override
+				public void run() {
+					deliver(delivered);
+				}
+			});
+		}
+
+		private void deliver(T result) {
+			synchronized (mPending) {
+				if (!mPending.remove(this))
+					mCancelled = true;
+			}
+			if (mCancelled) {
+				if (result instanceof Cursor)
+					((Cursor) result).close();
+				return;
+			}
+			mCallback.onResult(result);
+		}
+	}
+
+	/**
+	 * Runs a read on the I/O thread.
+	 *
+	 * @return the query, which may be cancelled until its callback was called
+	 */
+	public <T> Query<T> submit(Read<T> read, Callback<T> callback) {
+		Query<T> query = new Query<T>(read, callback);
+		synchronized (mPending) {
+			mPending.add(query);
+		}
+		query.mFuture = getExecutor().submit(query);
+		return query;
+	}
+
+	/**
+	 * Cancels every query of this instance that has not been delivered.
+	 */
+	public void cancelAll() {
+		Set<Query<?>> pending;
+		synchronized (mPending) {
+			pending = new HashSet<Query<?>>(mPending);
+		}
+		for (Query<?> query : pending)
+			query.cancel();
+	}
+
+	/**
+	 * @see EventManager#fetchSortedEvents(Date)
+	 */
+	public Query<EventCursor> fetchSortedEvents(final Date date, Callback<EventCursor> callback) {
+		return submit(new Read<EventCursor>() {
+			@Override
+			public EventCursor read(EventManager manager) {
+				EventCursor events = manager.fetchSortedEvents(date);
+				// Run the query here rather than on first use on the main thread.
+				events.getCount();
+				return events;
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see EventManager#fetchEvent(long)
+	 */
+	public Query<EventEntry> fetchEvent(final long rowId, Callback<EventEntry> callback) {
+		return submit(new Read<EventEntry>() {
+			@Override
+			public EventEntry read(EventManager manager) {
+				return manager.fetchEvent(rowId);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see EventManager#getTags()
+	 */
+	public Query<LinkedHashSet<String>> getTags(Callback<LinkedHashSet<String>> callback) {
+		return submit(new Read<LinkedHashSet<String>>() {
+			@Override
+			public LinkedHashSet<String> read(EventManager manager) {
+				return manager.getTags();
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see EventManager#getCurrentEvent()
+	 */
+	public Query<EventEntry> getCurrentEvent(Callback<EventEntry> callback) {
+		return submit(new Read<EventEntry>() {
+			@Override
+			public EventEntry read(EventManager manager) {
+				return manager.getCurrentEvent();
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see EventManager#fetchDateBefore(Date)
+	 */
+	public Query<Date> fetchDateBefore(final Date date, Callback<Date> callback) {
+		return submit(new Read<Date>() {
+			@Override
+			public Date read(EventManager manager) {
+				return manager.fetchDateBefore(date);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @see EventManager#fetchDateAfter(Date)
+	 */
+	public Query<Date> fetchDateAfter(final Date date, Callback<Date> callback) {
+		return submit(new Read<Date>() {
+			@Override
+			public Date read(EventManager manager) {
+				return manager.fetchDateAfter(date);
+			}
+		}, callback);
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null)
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "EventQueries");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return sExecutor;
+	}
+
+	private static synchronized Handler getMainHandler() {
+		if (sMainHandler == null)
+			sMainHandler = new Handler(Looper.getMainLooper());
+		return sMainHandler;
+	}
+}
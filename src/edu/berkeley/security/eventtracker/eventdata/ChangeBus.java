@@ -0,0 +1,129 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Tells observers about changes to event, GPS and tag data. Changes may be
+ * published from any thread; they are collected and delivered together on
+ * the main thread, with repeated changes to the same row combined into one.
+ * <p>
+ * Writers publish through {@link #publishOnCommit(DataChange)}, so a change
+ * is only queued once its transaction has committed, and observers never
+ * re-read rows that are not yet there or hear of writes that were rolled
+ * back.
+ */
+public class ChangeBus {
+
+	/**
+	 * Receives changes on the main thread.
+	 */
+	public interface Observer {
+		/**
+		 * @param changes
+		 *            the changes since the last delivery, oldest first
+		 */
+		void onDataChanged(List<DataChange> changes);
+	}
+
+	private static ChangeBus sChangeBus;
+
+	private final List<Observer> mObservers = new CopyOnWriteArrayList<Observer>();
+	/** The changes not yet delivered, oldest first. */
+	private final List<DataChange> mPending = new ArrayList<DataChange>();
+	/**
+	 * The position in {@link #mPending} of the latest change to each row, by
+	 * table and row, which a new change to the row may be combined with.
+	 */
+	private final Map<String, Integer> mLatest = new HashMap<String, Integer>();
+	private Handler mMainHandler;
+
+	private final Runnable mDeliver = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+
+	private ChangeBus() {
+	}
+
+	/**
+	 * @return the bus shared by the whole process
+	 */
+	public static synchronized ChangeBus getInstance() {
+		if (sChangeBus == null)
+			sChangeBus = new ChangeBus();
+		return sChangeBus;
+	}
+
+	public void register(Observer observer) {
+		mObservers.add(observer);
+	}
+
+	public void unregister(Observer observer) {
+		mObservers.remove(observer);
+	}
+
+	/**
+	 * Queues a change for delivery once the transaction of the current thread
+	 * commits, or at once outside of one.
+	 * 
+	 * @see AfterCommit
+	 */
+	void publishOnCommit(final DataChange change) {
+		if (change == null)
+			return;
+		AfterCommit.run(new Runnable() {
+			@Override
+			public void run() {
+				publish(change);
+			}
+		});
+	}
+
+	/**
+	 * Queues a change for delivery. Does nothing if change is null.
+	 */
+	void publish(DataChange change) {
+		if (change == null)
+			return;
+		synchronized (mPending) {
+			boolean deliveryPosted = !mPending.isEmpty();
+			String key = change.mTable + ":" + change.mRowId;
+			Integer latest = mLatest.get(key);
+			DataChange merged = latest == null ? null : mPending.get(latest).mergeWith(change);
+			if (merged != null) {
+				mPending.set(latest, merged);
+			} else {
+				// An earlier change that cannot be combined keeps its place.
+				mLatest.put(key, mPending.size());
+				mPending.add(change);
+			}
+			if (!deliveryPosted) {
+				if (mMainHandler == null)
+					mMainHandler = new Handler(Looper.getMainLooper());
+				mMainHandler.post(mDeliver);
+			}
+		}
+	}
+
+	private void deliver() {
+		List<DataChange> changes;
+		synchronized (mPending) {
+			changes = new ArrayList<DataChange>(mPending);
+			mPending.clear();
+			mLatest.clear();
+		}
+		if (changes.isEmpty())
+			return;
+		for (Observer observer : mObservers)
+			observer.onDataChanged(changes);
+	}
+}
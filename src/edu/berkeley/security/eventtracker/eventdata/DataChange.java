@@ -0,0 +1,111 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.Date;
+
+/**
+ * A change to one row of event, GPS or tag data, as published on the
+ * {@link ChangeBus}.
+ */
+public final class DataChange {
+
+	/** The kind of data that changed. */
+	public enum Table {
+		EVENT, GPS, TAG
+	}
+
+	/** What happened to the row. */
+	public enum Kind {
+		INSERTED, UPDATED, DELETED
+	}
+
+	/** The row id of a change to many rows at once. */
+	public static final long MANY_ROWS = -1;
+
+	public final Table mTable;
+	public final Kind mKind;
+	/**
+	 * The id of the row: the event's row id for events and GPS fixes, the
+	 * tag's id for tags, or {@link #MANY_ROWS}.
+	 */
+	public final long mRowId;
+	/** The day the row is on, as yyyyMMdd, or {@link DayKeys#NO_DAY}. */
+	final int mDay;
+	/** The day the row was on before an update moved it, or NO_DAY. */
+	final int mPreviousDay;
+
+	DataChange(Table table, Kind kind, long rowId, int day, int previousDay) {
+		mTable = table;
+		mKind = kind;
+		mRowId = rowId;
+		mDay = day;
+		mPreviousDay = previousDay == day ? DayKeys.NO_DAY : previousDay;
+	}
+
+	/**
+	 * @return the change made by writing an event, or null if the event
+	 *         neither existed nor exists now
+	 */
+	static DataChange forEvent(EventEntry before, EventEntry after) {
+		boolean existedBefore = before != null && !before.deleted;
+		boolean existsAfter = after != null && !after.deleted;
+		if (!existedBefore && !existsAfter)
+			return null;
+		Kind kind = !existedBefore ? Kind.INSERTED : existsAfter ? Kind.UPDATED : Kind.DELETED;
+		int beforeDay = existedBefore ? DayKeys.dayKey(before.mStartTime) : DayKeys.NO_DAY;
+		int afterDay = existsAfter ? DayKeys.dayKey(after.mStartTime) : DayKeys.NO_DAY;
+		long rowId = existsAfter ? after.mDbRowID : before.mDbRowID;
+		return afterDay == DayKeys.NO_DAY ? new DataChange(Table.EVENT, kind, rowId, beforeDay,
+				DayKeys.NO_DAY) : new DataChange(Table.EVENT, kind, rowId, afterDay, beforeDay);
+	}
+
+	/**
+	 * @return a change to the tag with the given id
+	 */
+	static DataChange forTag(Kind kind, long tagId) {
+		return new DataChange(Table.TAG, kind, tagId, DayKeys.NO_DAY, DayKeys.NO_DAY);
+	}
+
+	/**
+	 * @return a change to many rows of the table, on any day
+	 */
+	static DataChange forManyRows(Table table, Kind kind) {
+		return new DataChange(table, kind, MANY_ROWS, DayKeys.NO_DAY, DayKeys.NO_DAY);
+	}
+
+	/**
+	 * @return whether this change may affect what is shown for the local day
+	 *         containing the given date
+	 */
+	public boolean affectsDate(Date date) {
+		if (mRowId == MANY_ROWS)
+			return true;
+		int day = DayKeys.dayKey(date.getTime());
+		return mDay == day || mPreviousDay == day;
+	}
+
+	/**
+	 * Combines this change with a later one to the same row.
+	 *
+	 * @return the combined change, or null if it would lose a day that
+	 *         either change affects
+	 */
+	DataChange mergeWith(DataChange later) {
+		Kind kind = mKind == Kind.INSERTED && later.mKind != Kind.DELETED ? Kind.INSERTED
+				: later.mKind;
+		int previousDay = later.mPreviousDay;
+		for (int day : new int[] { mDay, mPreviousDay }) {
+			if (day == DayKeys.NO_DAY || day == later.mDay || day == previousDay)
+				continue;
+			if (previousDay != DayKeys.NO_DAY)
+				return null;
+			previousDay = day;
+		}
+		return new DataChange(mTable, kind, mRowId, later.mDay, previousDay);
+	}
+
+	@Override
+	public String toString() {
+		return mTable + " " + mKind + " " + (mRowId == MANY_ROWS ? "*" : mRowId) + " on " + mDay
+				+ (mPreviousDay != DayKeys.NO_DAY ? " (was " + mPreviousDay + ")" : "");
+	}
+}
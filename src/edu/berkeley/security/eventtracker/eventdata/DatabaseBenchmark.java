@@ -0,0 +1,862 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+
+/**
+ * Benchmarks for the event database. Every benchmark runs against a scratch
+ * database filled with generated events, so the user's data is never touched.
+ * Results are returned as human readable reports for the debugging screen.
+ */
+public class DatabaseBenchmark {
+	private static final long ONE_DAY = 1000 * 60 * 60 * 24;
+	private static final int QUERY_REPETITIONS = 50;
+	private static final String SCRATCH_DATABASE = "benchmark";
+
+	private final Context mCtx;
+	private final Random mRandom = new Random(42);
+
+	public DatabaseBenchmark(Context context) {
+		mCtx = context;
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @return the combined report
+	 */
+	public String runAll() {
+		StringBuilder report = new StringBuilder();
+		report.append(benchmarkEventIndexes(20000));
+		report.append(stressSharedConnection(10000));
+		report.append(benchmarkTrackStorage(500, 200));
+		report.append(benchmarkRowMapping(100000));
+		report.append(benchmarkRollups(20000));
+		report.append(benchmarkSearch(100000));
+		report.append(benchmarkArchive(new int[] { 1000, 10000, 50000 }, 30));
+		report.append(benchmarkEventStores(100000));
+		report.append(benchmarkTimeline(100000));
+		return report.toString();
+	}
+
+	/**
+	 * Measures the queries of {@link EventDbAdapter} before and after the
+	 * indexes created by {@link SchemaMigrations} are added.
+	 *
+	 * @param nEvents
+	 *            the number of events in the scratch database
+	 * @return the report
+	 */
+	String benchmarkEventIndexes(int nEvents) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		try {
+			createSchema(db);
+			SchemaMigrations.dropEventIndexes(db);
+			EventDbAdapter events = new EventDbAdapter(mCtx);
+			events.open(db);
+			List<EventEntry> generated = insertGeneratedEvents(db, events, nEvents);
+
+			String[] queries = new String[] { "day list", "before date", "phone only", "by uuid",
+					"by name" };
+			long[] before = timeEventQueries(events, generated);
+			SchemaMigrations.createEventIndexes(db);
+			long[] after = timeEventQueries(events, generated);
+
+			StringBuilder report = new StringBuilder();
+			report.append("Event queries, ").append(nEvents).append(" events (us/query):\n");
+			for (int i = 0; i < queries.length; i++)
+				report.append(String.format("  %-12s %8d -> %8d\n", queries[i], before[i],
+						after[i]));
+			return report.toString();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Runs GPS inserts, day list queries and bulk sync writes concurrently
+	 * through one configured connection to a scratch database file, the way
+	 * GPSLoggerService, ListEvents and the Synchronizer share the real one.
+	 * 
+	 * @param durationMillis
+	 *            how long to keep all three workers running
+	 * @return the report
+	 */
+	String stressSharedConnection(long durationMillis) {
+		mCtx.deleteDatabase(SCRATCH_DATABASE);
+		File file = mCtx.getDatabasePath(SCRATCH_DATABASE);
+		file.getParentFile().mkdirs();
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+		try {
+			createSchema(db);
+			boolean walEnabled = AbstractDbAdapter.configure(db);
+			final EventDbAdapter events = new EventDbAdapter(mCtx);
+			events.open(db);
+			final GPSDbAdapter gps = new GPSDbAdapter(mCtx);
+			gps.open(db);
+			final List<EventEntry> seed = insertGeneratedEvents(db, events, 2000);
+			final EventGenerator generator = new EventGenerator(ONE_DAY / 4);
+
+			long deadline = System.currentTimeMillis() + durationMillis;
+			StressWorker gpsWorker = new StressWorker(deadline) {
+				@Override
+				void operate() {
+					EventEntry event = randomEvent(seed);
+					gps.createGPSEntry(event.mDbRowID, 37.87, -122.26,
+							System.currentTimeMillis());
+				}
+			};
+			StressWorker listWorker = new StressWorker(deadline) {
+				@Override
+				void operate() {
+					long time = randomEvent(seed).mStartTime;
+					long dayStart = time - time % ONE_DAY;
+					consume(events.fetchSortedEvents(dayStart, dayStart + ONE_DAY));
+				}
+			};
+			StressWorker syncWorker = new StressWorker(deadline) {
+				@Override
+				void operate() {
+					List<EventEntry> batch = new ArrayList<EventEntry>(50);
+					for (int i = 0; i < 25; i++) {
+						batch.add(generator.generateEvent());
+						batch.add(randomEvent(seed));
+					}
+					events.writeEvents(batch, true);
+				}
+			};
+			StressWorker[] workers = new StressWorker[] { gpsWorker, listWorker, syncWorker };
+			for (StressWorker worker : workers)
+				worker.start();
+			for (StressWorker worker : workers)
+				worker.join();
+
+			StringBuilder report = new StringBuilder();
+			report.append("Shared connection stress, ").append(durationMillis / 1000)
+					.append("s, WAL ").append(walEnabled ? "on" : "off").append(":\n");
+			String[] names = new String[] { "gps inserts", "list queries", "sync batches" };
+			for (int i = 0; i < workers.length; i++)
+				report.append(String.format("  %-12s %8d ok %4d failed\n", names[i],
+						workers[i].mOperations, workers[i].mFailures));
+			return report.toString();
+		} catch (InterruptedException e) {
+			return "Shared connection stress interrupted\n";
+		} finally {
+			db.close();
+			mCtx.deleteDatabase(SCRATCH_DATABASE);
+		}
+	}
+
+	/**
+	 * Compares the size and read time of GPS tracks stored one row per fix
+	 * with the same tracks packed by {@link GPSTrackCodec}.
+	 * 
+	 * @param nEvents
+	 *            the number of events with a track
+	 * @param fixesPerEvent
+	 *            the number of fixes in each track
+	 * @return the report
+	 */
+	String benchmarkTrackStorage(int nEvents, int fixesPerEvent) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		try {
+			createSchema(db);
+			EventDbAdapter events = new EventDbAdapter(mCtx);
+			events.open(db);
+			GPSDbAdapter gps = new GPSDbAdapter(mCtx);
+			gps.open(db);
+			List<EventEntry> generated = insertGeneratedEvents(db, events, nEvents);
+
+			// A walk with a fix every two minutes, a few metres apart.
+			long[] eventRowIDs = new long[fixesPerEvent];
+			double[] latitudes = new double[fixesPerEvent];
+			double[] longitudes = new double[fixesPerEvent];
+			long[] times = new long[fixesPerEvent];
+			for (EventEntry event : generated) {
+				double latitude = 37.87, longitude = -122.26;
+				for (int i = 0; i < fixesPerEvent; i++) {
+					eventRowIDs[i] = event.mDbRowID;
+					latitude += (mRandom.nextDouble() - 0.5) * 1e-3;
+					longitude += (mRandom.nextDouble() - 0.5) * 1e-3;
+					latitudes[i] = latitude;
+					longitudes[i] = longitude;
+					times[i] = event.mStartTime + i * 2 * 60 * 1000 + mRandom.nextInt(1000);
+				}
+				gps.createGPSEntries(eventRowIDs, latitudes, longitudes, times, fixesPerEvent);
+			}
+
+			long rowsBytes = usedBytes(db);
+			long rowsMicros = timeTrackReads(gps, generated);
+			GPSDbAdapter.compactAllClosedTracks(db);
+			long packedBytes = usedBytes(db);
+			long packedMicros = timeTrackReads(gps, generated);
+
+			StringBuilder report = new StringBuilder();
+			report.append("GPS tracks, ").append(nEvents).append(" x ").append(fixesPerEvent)
+					.append(" fixes:\n");
+			report.append(String.format("  %-12s %8d -> %8d KB\n", "size", rowsBytes / 1024,
+					packedBytes / 1024));
+			report.append(String.format("  %-12s %8d -> %8d us/track\n", "read", rowsMicros,
+					packedMicros));
+			return report.toString();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * @return the bytes in pages that hold data, ignoring free pages
+	 */
+	private static long usedBytes(SQLiteDatabase db) {
+		long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+		long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+		long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		return (pageCount - freePages) * pageSize;
+	}
+
+	/**
+	 * @return the average time to read a random track in microseconds
+	 */
+	private long timeTrackReads(GPSDbAdapter gps, List<EventEntry> generated) {
+		long total = 0;
+		for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+			long eventRowID = randomEvent(generated).mDbRowID;
+			long start = System.nanoTime();
+			gps.getTrack(eventRowID);
+			total += System.nanoTime() - start;
+		}
+		return total / QUERY_REPETITIONS / 1000;
+	}
+
+	/**
+	 * Compares mapping cursor rows to events by looking up each column by
+	 * name, as EventEntry used to, with {@link EventRowMapper}, both creating
+	 * an entry per row and reusing one. Also compares finding the EventKey of
+	 * each column by scanning EventKey.values() with the mapper's table.
+	 * 
+	 * @param nRows
+	 *            the number of rows to map
+	 * @return the report
+	 */
+	String benchmarkRowMapping(int nRows) {
+		EventKey[] keys = EventKey.values();
+		MatrixCursor cursor = new MatrixCursor(EventKey.columnNames(), nRows);
+		EventGenerator generator = new EventGenerator(ONE_DAY / 4);
+		for (int i = 0; i < nRows; i++) {
+			EventEntry event = generator.generateEvent();
+			event.mDbRowID = i;
+			Object[] row = new Object[keys.length];
+			for (EventKey key : keys) {
+				Object value = event.getValue(key);
+				if (value instanceof Boolean)
+					value = (Boolean) value ? 1 : 0;
+				row[key.ordinal()] = value;
+			}
+			cursor.addRow(row);
+		}
+
+		String[] names = new String[] { "by name", "mapper", "mapper reuse", "key by scan",
+				"key by table" };
+		long[][] results = new long[names.length][];
+		final EventRowMapper mapper = new EventRowMapper(cursor);
+		final EventEntry reused = new EventEntry(-1, null, null, 0, 0, 0, null, false, false,
+				true, null);
+		results[0] = measureRows(cursor, new RowOperation() {
+			@Override
+			public void apply(Cursor row) {
+				mapByName(row);
+			}
+		});
+		results[1] = measureRows(cursor, new RowOperation() {
+			@Override
+			public void apply(Cursor row) {
+				mapper.map(row);
+			}
+		});
+		results[2] = measureRows(cursor, new RowOperation() {
+			@Override
+			public void apply(Cursor row) {
+				mapper.mapInto(row, reused);
+			}
+		});
+		results[3] = measureRows(cursor, new RowOperation() {
+			@Override
+			public void apply(Cursor row) {
+				for (int i = 0; i < row.getColumnCount(); i++)
+					keyByScan(row.getColumnName(i));
+			}
+		});
+		results[4] = measureRows(cursor, new RowOperation() {
+			@Override
+			public void apply(Cursor row) {
+				for (int i = 0; i < row.getColumnCount(); i++)
+					mapper.getColumnKey(i);
+			}
+		});
+		cursor.close();
+
+		StringBuilder report = new StringBuilder();
+		report.append("Row mapping, ").append(nRows).append(" rows:\n");
+		for (int i = 0; i < names.length; i++)
+			report.append(String.format("  %-12s %8d ms %8d allocs\n", names[i], results[i][0],
+					results[i][1]));
+		return report.toString();
+	}
+
+	/**
+	 * Something done to each row of a cursor.
+	 */
+	private interface RowOperation {
+		void apply(Cursor row);
+	}
+
+	/**
+	 * Applies the operation to every row, counting the objects it allocates.
+	 * 
+	 * @return the time taken in milliseconds and the number of allocations
+	 */
+	private static long[] measureRows(Cursor cursor, RowOperation operation) {
+		cursor.moveToPosition(-1);
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		long start = System.nanoTime();
+		while (cursor.moveToNext())
+			operation.apply(cursor);
+		long elapsed = System.nanoTime() - start;
+		Debug.stopAllocCounting();
+		return new long[] { elapsed / 1000000, Debug.getThreadAllocCount() };
+	}
+
+	/**
+	 * Maps a row the way EventEntry.fromCursor did before EventRowMapper.
+	 */
+	private static EventEntry mapByName(Cursor cursor) {
+		return new EventEntry(cursor.getLong(cursor.getColumnIndex(EventKey.ROW_ID.columnName())),
+				cursor.getString(cursor.getColumnIndex(EventKey.NAME.columnName())),
+				cursor.getString(cursor.getColumnIndex(EventKey.NOTES.columnName())),
+				cursor.getLong(cursor.getColumnIndex(EventKey.START_TIME.columnName())),
+				cursor.getLong(cursor.getColumnIndex(EventKey.END_TIME.columnName())),
+				cursor.getLong(cursor.getColumnIndex(EventKey.UPDATE_TIME.columnName())),
+				cursor.getString(cursor.getColumnIndex(EventKey.UUID.columnName())),
+				cursor.getInt(cursor.getColumnIndex(EventKey.IS_DELETED.columnName())) != 0,
+				cursor.getInt(cursor.getColumnIndex(EventKey.RECEIVED_AT_SERVER.columnName())) != 0,
+				true, cursor.getString(cursor.getColumnIndex(EventKey.TAG.columnName())));
+	}
+
+	/**
+	 * Finds a column's EventKey the way EventKey.fromColumnName did before it
+	 * had a lookup table.
+	 */
+	private static EventKey keyByScan(String columnName) {
+		for (EventKey key : EventKey.values())
+			if (key.columnName().equals(columnName))
+				return key;
+		return null;
+	}
+
+	/**
+	 * Compares totalling the time spent per tag over the whole history from
+	 * the rollup table with computing it from eventData.
+	 * 
+	 * @param nEvents
+	 *            the number of events, six hours apart on average
+	 * @return the report
+	 */
+	String benchmarkRollups(int nEvents) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		try {
+			createSchema(db);
+			EventDbAdapter events = new EventDbAdapter(mCtx);
+			events.open(db);
+			List<EventEntry> generated = insertGeneratedEvents(db, events, nEvents);
+			int firstDay = DayKeys.dayKey(generated.get(generated.size() - 1).mStartTime);
+			int lastDay = DayKeys.dayKey(generated.get(0).mStartTime);
+
+			long scan = 0, rollup = 0;
+			for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+				long start = System.nanoTime();
+				consume(db.rawQuery("SELECT " + EventKey.TAG.columnName() + ", SUM("
+						+ EventKey.END_TIME.columnName() + " - "
+						+ EventKey.START_TIME.columnName() + ") FROM eventData WHERE "
+						+ EventKey.IS_DELETED.columnName() + " = 0 GROUP BY "
+						+ EventKey.TAG.columnName(), null));
+				scan += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				events.fetchTagTotals(firstDay, lastDay, false);
+				rollup += System.nanoTime() - start;
+			}
+
+			StringBuilder report = new StringBuilder();
+			report.append("Tag totals, ").append(nEvents).append(" events over ")
+					.append((lastDay - firstDay) / 10000 + 1).append(" years (us/query):\n");
+			report.append(String.format("  %-12s %8d -> %8d\n", "whole range", scan
+					/ QUERY_REPETITIONS / 1000, rollup / QUERY_REPETITIONS / 1000));
+			return report.toString();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Times a search-as-you-type sequence through the full-text index, and
+	 * the same searches done with LIKE over eventData.
+	 * 
+	 * @param nEvents
+	 *            the number of events to search
+	 * @return the report
+	 */
+	String benchmarkSearch(int nEvents) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		try {
+			createSchema(db);
+			EventDbAdapter events = new EventDbAdapter(mCtx);
+			events.open(db);
+			insertGeneratedEvents(db, events, nEvents);
+
+			String word = "climbing";
+			StringBuilder report = new StringBuilder();
+			report.append("Search, ").append(nEvents).append(" events, first 20 (us/query):\n");
+			for (int length = 1; length <= word.length(); length++) {
+				String prefix = word.substring(0, length);
+				long like = 0, fullText = 0;
+				for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+					long start = System.nanoTime();
+					String pattern = "%" + prefix + "%";
+					consume(db.query(EventDbAdapter.DATABASE_TABLE, EventKey.columnNames(),
+							EventKey.IS_DELETED.columnName() + " = 0 AND ("
+									+ EventKey.NAME.columnName() + " LIKE ? OR "
+									+ EventKey.NOTES.columnName() + " LIKE ? OR "
+									+ EventKey.TAG.columnName() + " LIKE ?)", new String[] {
+									pattern, pattern, pattern }, null, null,
+							EventKey.START_TIME.columnName() + " DESC", "20"));
+					like += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					consume(events.searchEvents(prefix, 0, 20));
+					fullText += System.nanoTime() - start;
+				}
+				report.append(String.format("  %-12s %8d -> %8d\n", "\"" + prefix + "\"", like
+						/ QUERY_REPETITIONS / 1000, fullText / QUERY_REPETITIONS / 1000));
+			}
+			return report.toString();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Times the reads of the list screen and of recent events against growing
+	 * histories, with every event in eventData and then with the events older
+	 * than a cutoff moved to the archive. An archived event is also fetched
+	 * by uuid, to show the cost of missing the hot table.
+	 * 
+	 * @param historySizes
+	 *            the numbers of events to try, six hours apart on average
+	 * @param hotDays
+	 *            how many days of events stay in eventData
+	 * @return the report
+	 */
+	String benchmarkArchive(int[] historySizes, int hotDays) {
+		String[] queries = new String[] { "today", "latest 20", "recent uuid", "old uuid" };
+		StringBuilder report = new StringBuilder();
+		report.append("Archive, last ").append(hotDays).append(" days hot (us/query):\n");
+		for (int nEvents : historySizes) {
+			SQLiteDatabase db = SQLiteDatabase.create(null);
+			try {
+				createSchema(db);
+				EventDbAdapter events = new EventDbAdapter(mCtx);
+				events.open(db);
+				List<EventEntry> generated = insertGeneratedEvents(db, events, nEvents);
+				long cutoff = System.currentTimeMillis() - hotDays * ONE_DAY;
+				List<EventEntry> recent = new ArrayList<EventEntry>();
+				List<EventEntry> old = new ArrayList<EventEntry>();
+				for (EventEntry event : generated)
+					(event.mStartTime < cutoff ? old : recent).add(event);
+
+				long[] before = timeHotQueries(events, recent, old);
+				long start = System.nanoTime();
+				int archived = events.archiveEvents(cutoff, ONE_DAY);
+				long archiveMillis = (System.nanoTime() - start) / 1000000;
+				long[] after = timeHotQueries(events, recent, old);
+
+				report.append("  ").append(nEvents).append(" events, ").append(archived)
+						.append(" archived in ").append(archiveMillis).append(" ms\n");
+				for (int i = 0; i < queries.length; i++)
+					report.append(String.format("    %-12s %8d -> %8d\n", queries[i], before[i],
+							after[i]));
+			} finally {
+				db.close();
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Times the reads that {@link #benchmarkArchive(int[], int)} compares.
+	 * 
+	 * @return the average time of each read in microseconds
+	 */
+	private long[] timeHotQueries(EventDbAdapter events, List<EventEntry> recent,
+			List<EventEntry> old) {
+		long[] totals = new long[4];
+		long now = System.currentTimeMillis();
+		long today = DayKeys.dayStart(DayKeys.dayKey(now));
+		for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+			long start = System.nanoTime();
+			consume(events.fetchSortedEvents(today, today + ONE_DAY));
+			totals[0] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			consume(events.fetchSortedEvents());
+			totals[1] += System.nanoTime() - start;
+
+			if (!recent.isEmpty()) {
+				start = System.nanoTime();
+				consume(events.fetchEvent(randomEvent(recent).mUUID));
+				totals[2] += System.nanoTime() - start;
+			}
+
+			if (!old.isEmpty()) {
+				start = System.nanoTime();
+				consume(events.fetchEvent(randomEvent(old).mUUID));
+				totals[3] += System.nanoTime() - start;
+			}
+		}
+		for (int i = 0; i < totals.length; i++)
+			totals[i] = totals[i] / QUERY_REPETITIONS / 1000;
+		return totals;
+	}
+
+	/**
+	 * Writes the same generated history to a {@link SQLiteEventStore} on a
+	 * scratch database and to a {@link MemoryEventStore}, then times the
+	 * lookups {@link EventManager} makes through either.
+	 * 
+	 * @param nEvents
+	 *            the number of events, six hours apart on average
+	 * @return the report
+	 */
+	String benchmarkEventStores(int nEvents) {
+		EventGenerator generator = new EventGenerator(ONE_DAY / 4);
+		List<EventEntry> generated = new ArrayList<EventEntry>(nEvents);
+		for (int i = 0; i < nEvents; i++)
+			generated.add(generator.generateEvent());
+
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		try {
+			createSchema(db);
+			SQLiteEventStore sqlite = new SQLiteEventStore(mCtx);
+			sqlite.open(db);
+			long[] sqliteTimes = timeEventStore(sqlite, generated);
+			for (EventEntry event : generated)
+				event.mDbRowID = -1;
+			long[] memoryTimes = timeEventStore(new MemoryEventStore(), generated);
+
+			String[] names = new String[] { "write all", "day list", "by row id", "by uuid",
+					"latest 20", "scan all" };
+			String[] units = new String[] { "ms", "us", "us", "us", "us", "ms" };
+			StringBuilder report = new StringBuilder();
+			report.append("Event stores, ").append(nEvents).append(" events (sqlite -> memory):\n");
+			for (int i = 0; i < names.length; i++)
+				report.append(String.format("  %-12s %8d -> %8d %s\n", names[i], sqliteTimes[i],
+						memoryTimes[i], units[i]));
+			return report.toString();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Writes the events to the store in one batch and times its lookups.
+	 * 
+	 * @return the time of the write and of a scan in milliseconds, and the
+	 *         average time of each lookup in microseconds
+	 */
+	private long[] timeEventStore(EventStore store, List<EventEntry> events) {
+		long[] times = new long[6];
+		long start = System.nanoTime();
+		store.writeEvents(events, true);
+		times[0] = (System.nanoTime() - start) / 1000000;
+		for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+			EventEntry event = randomEvent(events);
+			long dayStart = event.mStartTime - event.mStartTime % ONE_DAY;
+
+			start = System.nanoTime();
+			store.fetchSortedEvents(dayStart, dayStart + ONE_DAY);
+			times[1] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			store.fetchEvent(event.mDbRowID);
+			times[2] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			store.fetchEvent(event.mUUID);
+			times[3] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			store.fetchLatestEvents(20);
+			times[4] += System.nanoTime() - start;
+		}
+		for (int i = 1; i < 5; i++)
+			times[i] = times[i] / QUERY_REPETITIONS / 1000;
+		final long[] totalDuration = new long[1];
+		start = System.nanoTime();
+		store.scanEvents(new EventStore.EventVisitor() {
+			@Override
+			public void visit(EventEntry event) {
+				totalDuration[0] += event.mEndTime - event.mStartTime;
+			}
+		});
+		times[5] = (System.nanoTime() - start) / 1000000;
+		return times;
+	}
+
+	/**
+	 * Times finding the events that overlap a window, with the SQL query the
+	 * day list would need and with a {@link TimelineIndex}, for windows from
+	 * an hour to a month.
+	 * 
+	 * @param nEvents
+	 *            the number of events, six hours apart on average
+	 * @return the report
+	 */
+	String benchmarkTimeline(int nEvents) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		try {
+			createSchema(db);
+			EventDbAdapter events = new EventDbAdapter(mCtx);
+			events.open(db);
+			insertGeneratedEvents(db, events, nEvents);
+			SQLiteEventStore store = new SQLiteEventStore(mCtx);
+			store.open(db);
+
+			TimelineIndex timeline = new TimelineIndex(store);
+			long start = System.nanoTime();
+			int size = timeline.size();
+			long buildMillis = (System.nanoTime() - start) / 1000000;
+
+			Cursor bounds = db.rawQuery("SELECT MIN(" + EventKey.START_TIME.columnName()
+					+ "), MAX(" + EventKey.START_TIME.columnName() + ") FROM "
+					+ EventDbAdapter.DATABASE_TABLE, null);
+			bounds.moveToFirst();
+			long first = bounds.getLong(0);
+			long span = bounds.getLong(1) - first;
+			bounds.close();
+
+			StringBuilder report = new StringBuilder();
+			report.append("Timeline, ").append(size).append(" events, built in ")
+					.append(buildMillis).append(" ms (us/query, sql -> index):\n");
+			long[] windows = new long[] { ONE_DAY / 24, ONE_DAY, 7 * ONE_DAY, 30 * ONE_DAY };
+			String[] windowNames = new String[] { "hour", "day", "week", "month" };
+			for (int w = 0; w < windows.length; w++) {
+				long sql = 0, index = 0;
+				for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+					long from = first + (long) (mRandom.nextDouble() * span);
+					long to = from + windows[w];
+					start = System.nanoTime();
+					consume(db.query(EventDbAdapter.DATABASE_TABLE,
+							new String[] { EventKey.ROW_ID.columnName() },
+							EventKey.IS_DELETED.columnName() + " = 0 AND "
+									+ EventKey.START_TIME.columnName() + " < ? AND ("
+									+ EventKey.END_TIME.columnName() + " > ? OR "
+									+ EventKey.END_TIME.columnName() + " = 0)", new String[] {
+									Long.toString(to), Long.toString(from) }, null, null,
+							EventKey.START_TIME.columnName()));
+					sql += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					timeline.findOverlapping(from, to);
+					index += System.nanoTime() - start;
+				}
+				report.append(String.format("  %-12s %8d -> %8d\n", windowNames[w], sql
+						/ QUERY_REPETITIONS / 1000, index / QUERY_REPETITIONS / 1000));
+			}
+			return report.toString();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Fills a scratch in-memory database with generated events, six hours
+	 * apart on average, each with a closed track, for the benchmarks of other
+	 * packages. Closing the store closes the database.
+	 * 
+	 * @param nEvents
+	 *            the number of events
+	 * @param fixesPerEvent
+	 *            the number of fixes in each track
+	 * @return an open store over the scratch database
+	 */
+	public SQLiteEventStore createScratchStore(int nEvents, int fixesPerEvent) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		SQLiteEventStore store = new SQLiteEventStore(mCtx, db);
+		try {
+			createSchema(db);
+			List<EventEntry> generated = insertGeneratedEvents(db, store.getEventAdapter(),
+					nEvents);
+			GPSDbAdapter gps = new GPSDbAdapter(mCtx);
+			gps.open(db);
+
+			// Insert the fixes a thousand events at a time.
+			int batch = 1000 * fixesPerEvent;
+			long[] eventRowIDs = new long[batch];
+			double[] latitudes = new double[batch];
+			double[] longitudes = new double[batch];
+			long[] times = new long[batch];
+			int count = 0;
+			for (EventEntry event : generated) {
+				for (int i = 0; i < fixesPerEvent; i++, count++) {
+					eventRowIDs[count] = event.mDbRowID;
+					latitudes[count] = 37.87 + (mRandom.nextDouble() - 0.5) * 0.1;
+					longitudes[count] = -122.26 + (mRandom.nextDouble() - 0.5) * 0.1;
+					times[count] = event.mStartTime + i * 60 * 1000;
+				}
+				if (count == batch) {
+					gps.createGPSEntries(eventRowIDs, latitudes, longitudes, times, count);
+					count = 0;
+				}
+			}
+			gps.createGPSEntries(eventRowIDs, latitudes, longitudes, times, count);
+			GPSDbAdapter.compactAllClosedTracks(db);
+			return store;
+		} catch (RuntimeException e) {
+			store.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates the current schema in an empty scratch database, the same way
+	 * {@link AbstractDbAdapter} does for the real one.
+	 */
+	private static void createSchema(SQLiteDatabase db) {
+		db.execSQL(AbstractDbAdapter.TABLE_CREATE_EVENTS);
+		db.execSQL(AbstractDbAdapter.TABLE_CREATE_GPSDATA);
+		db.execSQL(AbstractDbAdapter.TABLE_CREATE_TAGDATA);
+		SchemaMigrations.upgrade(db, SchemaMigrations.BASE_VERSION,
+				SchemaMigrations.LATEST_VERSION);
+	}
+
+	/**
+	 * Fills the events table with generated events inside one transaction.
+	 * All but the most recent 1% are marked as received by the server.
+	 *
+	 * @return the generated events, newest first
+	 */
+	private List<EventEntry> insertGeneratedEvents(SQLiteDatabase db, EventDbAdapter events,
+			int nEvents) {
+		EventGenerator generator = new EventGenerator(ONE_DAY / 4);
+		List<EventEntry> generated = new ArrayList<EventEntry>(nEvents);
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < nEvents; i++) {
+				EventEntry event = generator.generateEvent();
+				boolean receivedAtServer = i >= nEvents / 100;
+				event.mDbRowID = events.createEvent(event.mName, event.mNotes, event.mStartTime,
+						event.mEndTime, event.mUUID, receivedAtServer, event.mTag);
+				generated.add(event);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return generated;
+	}
+
+	/**
+	 * Times each kind of event query over random events.
+	 *
+	 * @return the average time of each query in microseconds
+	 */
+	private long[] timeEventQueries(EventDbAdapter events, List<EventEntry> generated) {
+		long[] totals = new long[5];
+		for (int rep = 0; rep < QUERY_REPETITIONS; rep++) {
+			EventEntry event = randomEvent(generated);
+			long dayStart = event.mStartTime - event.mStartTime % ONE_DAY;
+			long start;
+
+			start = System.nanoTime();
+			consume(events.fetchSortedEvents(dayStart, dayStart + ONE_DAY));
+			totals[0] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Cursor before = events.fetchSortedEventsBeforeDate(event.mStartTime);
+			before.moveToFirst();
+			before.close();
+			totals[1] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			consume(events.fetchPhoneOnlyEvents());
+			totals[2] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			consume(events.fetchEvent(event.mUUID));
+			totals[3] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Cursor byName = events.fetchEvents(event.mName);
+			byName.getCount();
+			byName.close();
+			totals[4] += System.nanoTime() - start;
+		}
+		for (int i = 0; i < totals.length; i++)
+			totals[i] = totals[i] / QUERY_REPETITIONS / 1000;
+		return totals;
+	}
+
+	private EventEntry randomEvent(List<EventEntry> events) {
+		synchronized (mRandom) {
+			return events.get(mRandom.nextInt(events.size()));
+		}
+	}
+
+	/**
+	 * A thread that repeats an operation until a deadline, counting how many
+	 * times it succeeded and failed.
+	 */
+	private abstract static class StressWorker extends Thread {
+		private final long mDeadline;
+		int mOperations;
+		int mFailures;
+
+		StressWorker(long deadline) {
+			mDeadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			while (System.currentTimeMillis() < mDeadline) {
+				try {
+					operate();
+					mOperations++;
+				} catch (SQLException e) {
+					mFailures++;
+				}
+			}
+		}
+
+		abstract void operate();
+	}
+
+	/**
+	 * Reads every row of the cursor and closes it.
+	 */
+	private static void consume(Cursor cursor) {
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext())
+			cursor.getLong(0);
+		cursor.close();
+	}
+}
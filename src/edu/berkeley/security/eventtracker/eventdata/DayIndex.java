@@ -0,0 +1,112 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.Calendar;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The days that have undeleted events, with the number of events starting on
+ * each. Days are keyed by their local date as yyyyMMdd, so they sort in date
+ * order and the key is the table's rowid: finding the day before or after
+ * another is a single seek.
+ */
+final class DayIndex implements EventIndex {
+	static final String TABLE = "eventDays";
+	static final String KEY_DAY = "day";
+	static final String KEY_EVENT_COUNT = "eventCount";
+	static final String TABLE_CREATE = "create table " + TABLE + " (" + KEY_DAY
+			+ " integer primary key, " + KEY_EVENT_COUNT + " integer not null);";
+
+	@Override
+	public void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after) {
+		Calendar calendar = Calendar.getInstance();
+		int beforeDay = isListed(before) ? DayKeys.dayKey(calendar, before.mStartTime)
+				: DayKeys.NO_DAY;
+		int afterDay = isListed(after) ? DayKeys.dayKey(calendar, after.mStartTime)
+				: DayKeys.NO_DAY;
+		if (beforeDay == afterDay)
+			return;
+		if (beforeDay != DayKeys.NO_DAY) {
+			db.execSQL("UPDATE " + TABLE + " SET " + KEY_EVENT_COUNT + " = " + KEY_EVENT_COUNT
+					+ " - 1 WHERE " + KEY_DAY + " = " + beforeDay);
+			db.execSQL("DELETE FROM " + TABLE + " WHERE " + KEY_DAY + " = " + beforeDay
+					+ " AND " + KEY_EVENT_COUNT + " <= 0");
+		}
+		if (afterDay != DayKeys.NO_DAY) {
+			db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (" + KEY_DAY + ", " + KEY_EVENT_COUNT
+					+ ") VALUES (" + afterDay + ", 0)");
+			db.execSQL("UPDATE " + TABLE + " SET " + KEY_EVENT_COUNT + " = " + KEY_EVENT_COUNT
+					+ " + 1 WHERE " + KEY_DAY + " = " + afterDay);
+		}
+	}
+
+	@Override
+	public void rebuild(SQLiteDatabase db) {
+		db.delete(TABLE, null, null);
+		// Days are computed here rather than in SQL so that they always match
+		// DayKeys.dayKey(), which uses Java's idea of the local time zone.
+		Cursor starts = db.query(EventArchive.allEvents(db),
+				new String[] { EventKey.START_TIME.columnName() },
+				EventKey.IS_DELETED.columnName() + " = 0", null, null, null,
+				EventKey.START_TIME.columnName());
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE + " (" + KEY_DAY
+				+ ", " + KEY_EVENT_COUNT + ") VALUES (?, ?)");
+		try {
+			Calendar calendar = Calendar.getInstance();
+			int day = DayKeys.NO_DAY;
+			int count = 0;
+			while (starts.moveToNext()) {
+				int nextDay = DayKeys.dayKey(calendar, starts.getLong(0));
+				if (nextDay != day && count > 0) {
+					insertDay(insert, day, count);
+					count = 0;
+				}
+				day = nextDay;
+				count++;
+			}
+			if (count > 0)
+				insertDay(insert, day, count);
+		} finally {
+			starts.close();
+			insert.close();
+		}
+	}
+
+	/**
+	 * @return the key of the latest day with events before the given day, or
+	 *         {@link DayKeys#NO_DAY}
+	 */
+	static int dayBefore(SQLiteDatabase db, int day) {
+		return neighbour(db, KEY_DAY + " < " + day, KEY_DAY + " DESC");
+	}
+
+	/**
+	 * @return the key of the earliest day with events after the given day, or
+	 *         {@link DayKeys#NO_DAY}
+	 */
+	static int dayAfter(SQLiteDatabase db, int day) {
+		return neighbour(db, KEY_DAY + " > " + day, KEY_DAY + " ASC");
+	}
+
+	private static boolean isListed(EventEntry event) {
+		return event != null && !event.deleted;
+	}
+
+	private static void insertDay(SQLiteStatement insert, int day, int count) {
+		insert.bindLong(1, day);
+		insert.bindLong(2, count);
+		insert.executeInsert();
+	}
+
+	private static int neighbour(SQLiteDatabase db, String selection, String orderBy) {
+		Cursor cursor = db.query(TABLE, new String[] { KEY_DAY }, selection, null, null, null,
+				orderBy, "1");
+		try {
+			return cursor.moveToFirst() ? cursor.getInt(0) : DayKeys.NO_DAY;
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.Calendar;
+
+/**
+ * Keys days by their local date as yyyyMMdd, so that keys sort in date order.
+ * Shared by the day and rollup indexes, the change notifications and the
+ * stores, and free of Android so that it runs on a plain JVM.
+ */
+final class DayKeys {
+
+	/** The key of no day. */
+	static final int NO_DAY = -1;
+
+	private DayKeys() {
+	}
+
+	/**
+	 * @return the key of the local day containing the given time
+	 */
+	static int dayKey(long time) {
+		return dayKey(Calendar.getInstance(), time);
+	}
+
+	/**
+	 * @param calendar
+	 *            a calendar to reuse, set to the local time zone
+	 * @return the key of the local day containing the given time
+	 */
+	static int dayKey(Calendar calendar, long time) {
+		calendar.setTimeInMillis(time);
+		return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+				+ calendar.get(Calendar.DAY_OF_MONTH);
+	}
+
+	/**
+	 * @return the time at which the day with the given key starts
+	 */
+	static long dayStart(int day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(day / 10000, day / 100 % 100 - 1, day % 100);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * @param calendar
+	 *            a calendar to reuse, set to the local time zone
+	 * @return the start of the local day after the one containing time
+	 */
+	static long nextDayStart(Calendar calendar, long time) {
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DAY_OF_MONTH, 1);
+		return calendar.getTimeInMillis();
+	}
+}
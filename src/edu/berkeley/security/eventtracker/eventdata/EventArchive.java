@@ -0,0 +1,187 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+/**
+ * Cold storage for old events. Finished, undeleted events that started
+ * before a cutoff are moved, with their packed GPS tracks, out of eventData
+ * into tables of the same shape, keeping their row ids. This keeps the
+ * tables and indexes read by the screens small however long the history
+ * grows.
+ * <p>
+ * Moving an event is not a change to it, so the derived indexes are left
+ * alone; their rebuilds read both tables through the {@link #ALL_EVENTS}
+ * view. An archived event that is written again is first moved back.
+ */
+final class EventArchive {
+	static final String TABLE = "eventArchive";
+	static final String TRACK_TABLE = "gpsTrackArchive";
+	/** A view over the hot and archived events. */
+	static final String ALL_EVENTS = "allEvents";
+	/** The start time reported for an empty archive. */
+	static final long EMPTY = Long.MIN_VALUE;
+	/** The most events moved in one transaction. */
+	static final int BATCH_SIZE = 200;
+
+	/** Counts the changes to the archive, so that its extent can be cached. */
+	private static final AtomicInteger sChangeCount = new AtomicInteger();
+
+	private EventArchive() {
+	}
+
+	/**
+	 * @return a number that changes whenever events are moved into, out of,
+	 *         or deleted from the archive
+	 */
+	static int getChangeCount() {
+		return sChangeCount.get();
+	}
+
+	/**
+	 * Creates the archive tables and the view over all events.
+	 */
+	static void createTables(SQLiteDatabase db) {
+		db.execSQL(AbstractDbAdapter.createEventTable(TABLE));
+		db.execSQL("create index eventArchiveByStart on " + TABLE + " ("
+				+ EventKey.START_TIME.columnName() + ");");
+		db.execSQL("create index eventArchiveByUuid on " + TABLE + " ("
+				+ EventKey.UUID.columnName() + ");");
+		db.execSQL("create index eventArchiveByName on " + TABLE + " ("
+				+ EventKey.NAME.columnName() + ");");
+		db.execSQL(GPSDbAdapter.TABLE_CREATE_GPSTRACKS.replace(GPSDbAdapter.TRACK_TABLE,
+				TRACK_TABLE));
+		db.execSQL("create view " + ALL_EVENTS + " as select * from "
+				+ EventDbAdapter.DATABASE_TABLE + " union all select * from " + TABLE + ";");
+	}
+
+	/**
+	 * @return the table or view to read when every event must be seen: the
+	 *         view over both tables, or only eventData while migrating a
+	 *         database from before the archive existed
+	 */
+	static String allEvents(SQLiteDatabase db) {
+		return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = ?",
+				new String[] { ALL_EVENTS }) > 0 ? ALL_EVENTS : EventDbAdapter.DATABASE_TABLE;
+	}
+
+	/**
+	 * @return the latest start time of an archived event, or {@link #EMPTY}
+	 */
+	static long latestStart(SQLiteDatabase db) {
+		Cursor cursor = db.query(TABLE, new String[] { EventKey.START_TIME.columnName() }, null,
+				null, null, null, EventKey.START_TIME.columnName() + " DESC", "1");
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : EMPTY;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Moves finished, undeleted events that started before the cutoff into
+	 * the archive, in batches, each in its own transaction. A batch that has
+	 * started is always finished.
+	 *
+	 * @param startedBefore
+	 *            the cutoff
+	 * @param budgetMillis
+	 *            the time after which no further batch is started
+	 * @return the number of events archived
+	 */
+	static int archive(SQLiteDatabase db, long startedBefore, long budgetMillis) {
+		long deadline = SystemClock.uptimeMillis() + budgetMillis;
+		int archived = 0;
+		int batch;
+		do {
+			batch = archiveBatch(db, startedBefore);
+			archived += batch;
+			if (batch > 0)
+				sChangeCount.incrementAndGet();
+		} while (batch == BATCH_SIZE && SystemClock.uptimeMillis() < deadline);
+		return archived;
+	}
+
+	/**
+	 * Moves an archived event and its track back into the hot tables. Does
+	 * nothing if the event is not archived. Must be called inside the
+	 * transaction of the write that needs the event.
+	 *
+	 * @return whether the event was archived
+	 */
+	static boolean restore(SQLiteDatabase db, long rowId) {
+		String eventWhere = " WHERE " + EventKey.ROW_ID.columnName() + " = " + rowId;
+		String trackWhere = " WHERE " + GPSDbAdapter.KEY_EVENT_ROWID + " = " + rowId;
+		db.execSQL("INSERT INTO " + EventDbAdapter.DATABASE_TABLE + " SELECT * FROM " + TABLE
+				+ eventWhere);
+		if (DatabaseUtils.longForQuery(db, "SELECT changes()", null) == 0)
+			return false;
+		db.execSQL("DELETE FROM " + TABLE + eventWhere);
+		db.execSQL("INSERT OR REPLACE INTO " + GPSDbAdapter.TRACK_TABLE + " SELECT * FROM "
+				+ TRACK_TABLE + trackWhere);
+		db.execSQL("DELETE FROM " + TRACK_TABLE + trackWhere);
+		sChangeCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Deletes the archived events matching the selection, with their tracks.
+	 * Must be called inside a transaction.
+	 *
+	 * @param selection
+	 *            the WHERE clause selecting events, or null for all of them
+	 * @return the number of events deleted
+	 */
+	static int purge(SQLiteDatabase db, String selection, String[] selectionArgs) {
+		db.delete(TRACK_TABLE, selection == null ? null : GPSDbAdapter.KEY_EVENT_ROWID
+				+ " IN (SELECT " + EventKey.ROW_ID.columnName() + " FROM " + TABLE + " WHERE "
+				+ selection + ")", selectionArgs);
+		int deleted = db.delete(TABLE, selection == null ? "1" : selection, selectionArgs);
+		if (deleted > 0)
+			sChangeCount.incrementAndGet();
+		return deleted;
+	}
+
+	private static int archiveBatch(SQLiteDatabase db, long startedBefore) {
+		db.beginTransaction();
+		try {
+			Cursor cursor = db.query(EventDbAdapter.DATABASE_TABLE,
+					new String[] { EventKey.ROW_ID.columnName() }, EventKey.IS_DELETED.columnName()
+							+ " = 0 AND " + EventKey.START_TIME.columnName() + " < "
+							+ startedBefore + " AND " + EventKey.END_TIME.columnName() + " != 0",
+					null, null, null, null, Integer.toString(BATCH_SIZE));
+			long[] rowIds = new long[BATCH_SIZE];
+			StringBuilder ids = new StringBuilder();
+			int count = 0;
+			try {
+				while (cursor.moveToNext()) {
+					rowIds[count] = cursor.getLong(0);
+					ids.append(count == 0 ? "" : ",").append(rowIds[count++]);
+				}
+			} finally {
+				cursor.close();
+			}
+			// Tracks are only moved packed, and only this batch's are packed.
+			for (int i = 0; i < count; i++)
+				GPSDbAdapter.compactTrack(db, rowIds[i]);
+			if (count > 0) {
+				String events = " WHERE " + EventKey.ROW_ID.columnName() + " IN (" + ids + ")";
+				String tracks = " WHERE " + GPSDbAdapter.KEY_EVENT_ROWID + " IN (" + ids + ")";
+				db.execSQL("INSERT INTO " + TABLE + " SELECT * FROM "
+						+ EventDbAdapter.DATABASE_TABLE + events);
+				db.execSQL("DELETE FROM " + EventDbAdapter.DATABASE_TABLE + events);
+				db.execSQL("INSERT OR REPLACE INTO " + TRACK_TABLE + " SELECT * FROM "
+						+ GPSDbAdapter.TRACK_TABLE + tracks);
+				db.execSQL("DELETE FROM " + GPSDbAdapter.TRACK_TABLE + tracks);
+			}
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+}
@@ -2,38 +2,57 @@ package edu.berkeley.security.eventtracker.eventdata;
 
 import android.database.Cursor;
 import android.database.CursorWrapper;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
 
 /**
  * A cursor that maps rows of a database to EventEntry objects.
  */
 public class EventCursor extends CursorWrapper {
-	private EventManager mManager;
+	private EventRowMapper mMapper;
 
-	public EventCursor(Cursor eventCursor, EventManager manager) {
+	public EventCursor(Cursor eventCursor) {
 		super(eventCursor);
-		mManager = manager;
 	}
 
 	/**
 	 * @return The ColumnType at the given index.
 	 */
 	public EventKey getColumnType(int columnIndex) {
-		return EventKey.fromColumnName(getColumnName(columnIndex));
+		return getMapper().getColumnKey(columnIndex);
 	}
 
 	/**
 	 * @return The index of the given ColumnType.
 	 */
 	public int getColumnIndex(EventKey colType) {
-		return getColumnIndex(colType.columnName());
+		return getMapper().getColumnIndex(colType);
 	}
 
 	/**
 	 * @return The EventEntry at the cursor position.
 	 */
 	public EventEntry getEvent() {
-		return EventEntry.fromCursor(this, mManager);
+		return getMapper().map(this);
+	}
+
+	/**
+	 * Copies the event at the cursor position into an existing entry instead
+	 * of creating a new one.
+	 * 
+	 * @param event
+	 *            the entry to overwrite
+	 * @return event, or null if the cursor is not at a row
+	 */
+	public EventEntry getEvent(EventEntry event) {
+		return getMapper().mapInto(this, event);
+	}
+
+	/**
+	 * @return the mapper for this cursor's columns, created on first use
+	 */
+	private EventRowMapper getMapper() {
+		if (mMapper == null)
+			mMapper = new EventRowMapper(this);
+		return mMapper;
 	}
 
 	@Override
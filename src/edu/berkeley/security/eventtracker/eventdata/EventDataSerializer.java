@@ -7,7 +7,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.berkeley.security.eventtracker.Settings;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
 import edu.berkeley.security.eventtracker.network.HashingUtils;
 import edu.berkeley.security.eventtracker.network.GibberishAESCrypto;
 
@@ -15,12 +14,12 @@ public class EventDataSerializer {
 	private static final EventKey[] keysToSerialize = new EventKey[] { EventKey.NAME,
 			EventKey.NOTES, EventKey.START_TIME, EventKey.END_TIME, EventKey.TAG };
 
-	public static JSONObject toJSONObject(EventEntry event) {
+	public static JSONObject toJSONObject(EventEntry event, List<GPSCoordinates> track) {
 		JSONObject json = new JSONObject();
 		try {
 			for (EventKey key : keysToSerialize)
 				json.accumulate(key.columnName(), event.getValue(key));
-			json.accumulate("gpsCoordinates", toJSONArray(event.getGPSCoordinates()));
+			json.accumulate("gpsCoordinates", toJSONArray(track));
 		} catch (JSONException e) {
 			json = null;
 		}
@@ -17,70 +17,39 @@
 package edu.berkeley.security.eventtracker.eventdata;
 
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteStatement;
+import edu.berkeley.security.eventtracker.eventdata.DataChange.Kind;
+import edu.berkeley.security.eventtracker.eventdata.DataChange.Table;
 
 public class EventDbAdapter extends AbstractDbAdapter {
 
-	/**
-	 * An enumeration of column key names in the event table.
-	 */
-	public enum EventKey {
-		ROW_ID("_id", ColumnType.INTEGER, "primary key autoincrement"), NAME("name",
-				ColumnType.TEXT), NOTES("notes", ColumnType.TEXT), START_TIME("startTime",
-				ColumnType.LONG), END_TIME("endTime", ColumnType.LONG), UPDATE_TIME("updateTime",
-				ColumnType.LONG), UUID("uuid", ColumnType.TEXT), IS_DELETED("isDeleted",
-				ColumnType.INTEGER, "DEFAULT 0"), RECEIVED_AT_SERVER("receivedAtServer",
-				ColumnType.INTEGER, "DEFAULT 0"), TAG("tag", ColumnType.TEXT);
-
-		private String mColumnName;
-		private ColumnType mColType;
-		private String mExtraCreateText;
-
-		private EventKey(String columnName, ColumnType type) {
-			mColumnName = columnName;
-			mColType = type;
-			mExtraCreateText = " not null";
-		}
-
-		private EventKey(String columnName, ColumnType type, String extraOptions) {
-			mColumnName = columnName;
-			mColType = type;
-			mExtraCreateText = " not null " + extraOptions;
-		}
-
-		public String columnName() {
-			return mColumnName;
-		}
-
-		public String getRowCreateString() {
-			return mColumnName + " " + mColType + mExtraCreateText;
-		}
-
-		public static String[] columnNames() {
-			EventKey[] keys = EventKey.values();
-			String[] columnNames = new String[keys.length];
-			for (int i = 0; i < keys.length; i++)
-				columnNames[i] = keys[i].columnName();
-			return columnNames;
-		}
-
-		static EventKey fromColumnName(String columnName) {
-			for (EventKey eventKey : EventKey.values())
-				if (eventKey.mColumnName.equals(columnName))
-					return eventKey;
-			return null;
-		}
-	}
+	static final String DATABASE_TABLE = "eventData";
 
-	private enum ColumnType {
-		INTEGER, TEXT, LONG;
-	};
+	/** Tables derived from eventData, kept in step by every write. */
+	private final RollupIndex mTagRollup = RollupIndex.byTag();
+	private final RollupIndex mNameRollup = RollupIndex.byName();
+	private final EventIndex[] mIndexes = new EventIndex[] { new DayIndex(), mTagRollup,
+			mNameRollup, new SearchIndex(), new TagUsageIndex(), new NameIndex(), new SyncJournal() };
 
-	private static final String DATABASE_TABLE = "eventData";
+	/** The last snapshot of the name dictionary, or null until read. */
+	private EventNames mEventNames;
+	/** The change count of the name dictionary when mEventNames was read. */
+	private int mEventNamesChangeCount;
+	/**
+	 * The latest start time of an archived event, and the change count of the
+	 * archive when it was read. Reads of recent events skip the archive.
+	 */
+	private long mArchiveLatestStart;
+	private int mArchiveChangeCount = -1;
 
 	/**
 	 * Constructor - takes the context to allow the database to be
@@ -99,17 +68,27 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	 */
 	public Long createEvent(String eventName, String notes, long startTime, long endTime,
 			String uuid, boolean receivedAtServer, String tag) {
+		long updateTime = Calendar.getInstance().getTimeInMillis();
 		ContentValues initialValues = new ContentValues();
 		initialValues.put(EventKey.NAME.columnName(), eventName);
 		initialValues.put(EventKey.NOTES.columnName(), notes);
 		initialValues.put(EventKey.START_TIME.columnName(), startTime);
 		initialValues.put(EventKey.END_TIME.columnName(), endTime);
-		initialValues.put(EventKey.UPDATE_TIME.columnName(), Calendar.getInstance()
-				.getTimeInMillis());
+		initialValues.put(EventKey.UPDATE_TIME.columnName(), updateTime);
 		initialValues.put(EventKey.UUID.columnName(), uuid);
 		initialValues.put(EventKey.RECEIVED_AT_SERVER.columnName(), receivedAtServer ? 1 : 0);
 		initialValues.put(EventKey.TAG.columnName(), tag);
-		return mDb.insert(DATABASE_TABLE, null, initialValues);
+		AfterCommit.beginTransaction(mDb);
+		try {
+			long rowId = mDb.insert(DATABASE_TABLE, null, initialValues);
+			if (rowId != -1)
+				indexWrite(null, new EventEntry(rowId, eventName, notes, startTime, endTime,
+						updateTime, uuid, false, receivedAtServer, true, tag));
+			AfterCommit.setTransactionSuccessful(mDb);
+			return rowId;
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
 	}
 
 	/**
@@ -120,14 +99,168 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	 * @return true if deleted, false otherwise.
 	 */
 	public boolean deleteEvent(Long rowId) {
-		return mDb.delete(DATABASE_TABLE, EventKey.ROW_ID.columnName() + "=" + rowId, null) > 0;
+		AfterCommit.beginTransaction(mDb);
+		try {
+			restoreArchived(rowId);
+			EventEntry before = readEvent(rowId);
+			boolean deleted = mDb.delete(DATABASE_TABLE,
+					EventKey.ROW_ID.columnName() + "=" + rowId, null) > 0;
+			if (deleted)
+				indexWrite(before, null);
+			AfterCommit.setTransactionSuccessful(mDb);
+			return deleted;
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
+	}
+
+	/**
+	 * Permanently deletes every event, along with their GPS data.
+	 * 
+	 * @return the number of events deleted
+	 */
+	public int purgeAllEvents() {
+		return purgeEvents(null, null);
+	}
+
+	/**
+	 * Permanently deletes the events starting in the given range, along with
+	 * their GPS data.
+	 * 
+	 * @param startTime
+	 *            the earliest start time to delete, inclusive
+	 * @param endTime
+	 *            the latest start time to delete, exclusive
+	 * @return the number of events deleted
+	 */
+	public int purgeEvents(long startTime, long endTime) {
+		return purgeEvents(EventKey.START_TIME.columnName() + " >= " + startTime + " AND "
+				+ EventKey.START_TIME.columnName() + " < " + endTime, null);
+	}
+
+	/**
+	 * Permanently deletes the events with the given tag, along with their GPS
+	 * data.
+	 * 
+	 * @return the number of events deleted
+	 */
+	public int purgeEventsWithTag(String tag) {
+		return purgeEvents(EventKey.TAG.columnName() + " = ?", new String[] { tag });
+	}
+
+	/**
+	 * Deletes the selected events and their GPS data in one transaction, with
+	 * one statement per table, from both the hot tables and the archive. The
+	 * selected events are first taken out of the indexes one by one, as
+	 * {@link #deleteEvent(Long)} does, so the cost follows the number of
+	 * events deleted rather than the number kept.
+	 * 
+	 * @param selection
+	 *            the WHERE clause selecting events, or null for all of them
+	 * @return the number of events deleted
+	 */
+	private int purgeEvents(String selection, String[] selectionArgs) {
+		AfterCommit.beginTransaction(mDb);
+		try {
+			// Purging everything leaves nothing to rebuild the indexes from,
+			// which is quicker than taking each event out of them.
+			if (selection != null)
+				unindexEvents(selection, selectionArgs);
+			String gpsSelection = selection == null ? null : GPSDbAdapter.KEY_EVENT_ROWID
+					+ " IN (SELECT " + EventKey.ROW_ID.columnName() + " FROM " + allEvents()
+					+ " WHERE " + selection + ")";
+			mDb.delete(GPSDbAdapter.DATABASE_TABLE, gpsSelection, selectionArgs);
+			mDb.delete(GPSDbAdapter.TRACK_TABLE, gpsSelection, selectionArgs);
+			// A WHERE clause of "1" makes SQLite count the rows it deletes.
+			int nDeleted = mDb.delete(DATABASE_TABLE, selection == null ? "1" : selection,
+					selectionArgs) + EventArchive.purge(mDb, selection, selectionArgs);
+			if (nDeleted > 0) {
+				if (selection == null)
+					for (EventIndex index : mIndexes)
+						index.rebuild(mDb);
+				if (isSharedDatabase()) {
+					ChangeBus bus = ChangeBus.getInstance();
+					bus.publishOnCommit(DataChange.forManyRows(Table.EVENT, Kind.DELETED));
+					bus.publishOnCommit(DataChange.forManyRows(Table.GPS, Kind.DELETED));
+				}
+			}
+			AfterCommit.setTransactionSuccessful(mDb);
+			return nDeleted;
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
+	}
+
+	/**
+	 * Takes the selected events, hot or archived, out of every index before
+	 * they are deleted. Must be called inside the transaction of the delete.
+	 */
+	private void unindexEvents(String selection, String[] selectionArgs) {
+		Cursor cursor = mDb.query(allEvents(), EventKey.columnNames(), selection, selectionArgs,
+				null, null, null);
+		try {
+			EventRowMapper mapper = new EventRowMapper(cursor);
+			while (cursor.moveToNext()) {
+				EventEntry before = mapper.map(cursor);
+				for (EventIndex index : mIndexes)
+					index.eventWritten(mDb, before, null);
+			}
+		} finally {
+			cursor.close();
+		}
 	}
 
 	public boolean markDeleted(long rowId) {
 		ContentValues args = new ContentValues();
 		args.put(EventKey.IS_DELETED.columnName(), 1);
 		args.put(EventKey.RECEIVED_AT_SERVER.columnName(), 0);
-		return mDb.update(DATABASE_TABLE, args, EventKey.ROW_ID.columnName() + "=" + rowId, null) > 0;
+		// Dates the deletion, so tombstones can be kept for a while.
+		args.put(EventKey.UPDATE_TIME.columnName(), Calendar.getInstance().getTimeInMillis());
+		AfterCommit.beginTransaction(mDb);
+		try {
+			restoreArchived(rowId);
+			EventEntry before = readEvent(rowId);
+			boolean updated = mDb.update(DATABASE_TABLE, args, EventKey.ROW_ID.columnName() + "="
+					+ rowId, null) > 0;
+			if (updated)
+				indexWrite(before, readEvent(rowId));
+			AfterCommit.setTransactionSuccessful(mDb);
+			return updated;
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
+	}
+
+	/**
+	 * Derives every index of the events table again. Needed if the indexes
+	 * are suspected to be out of step, for example after the time zone
+	 * changed.
+	 */
+	public void rebuildIndexes() {
+		AfterCommit.beginTransaction(mDb);
+		try {
+			for (EventIndex index : mIndexes)
+				index.rebuild(mDb);
+			AfterCommit.setTransactionSuccessful(mDb);
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
+	}
+
+	/**
+	 * @return the key of the latest day before the given one with an
+	 *         undeleted event, or {@link DayKeys#NO_DAY}
+	 */
+	int fetchDayBefore(int day) {
+		return DayIndex.dayBefore(mDb, day);
+	}
+
+	/**
+	 * @return the key of the earliest day after the given one with an
+	 *         undeleted event, or {@link DayKeys#NO_DAY}
+	 */
+	int fetchDayAfter(int day) {
+		return DayIndex.dayAfter(mDb, day);
 	}
 
 	/**
@@ -136,7 +269,7 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	 * @return Cursor over all notes.
 	 */
 	public Cursor fetchAllEvents() {
-		return mDb.query(DATABASE_TABLE, EventKey.columnNames(), null, null, null, null, null);
+		return mDb.query(allEvents(), EventKey.columnNames(), null, null, null, null, null);
 	}
 
 	/**
@@ -145,10 +278,63 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	 * @return Cursor over all notes.
 	 */
 	public Cursor fetchUndeletedEvents() {
-		return mDb.query(DATABASE_TABLE, EventKey.columnNames(), EventKey.IS_DELETED.columnName()
+		return mDb.query(allEvents(), EventKey.columnNames(), EventKey.IS_DELETED.columnName()
 				+ " = 0", null, null, null, null);
 	}
 
+	/**
+	 * @return a cursor over the events last written after the given time,
+	 *         deleted or not
+	 */
+	public Cursor fetchEventsUpdatedSince(long updateTime) {
+		return mDb.query(allEvents(), EventKey.columnNames(), EventKey.UPDATE_TIME.columnName()
+				+ " > " + updateTime, null, null, null, null);
+	}
+
+	/**
+	 * Shows every undeleted event to the visitor with its first GPS fix, in
+	 * one query. The earliest unpacked fix of each event is joined by row id,
+	 * and only the head of a packed track is read and decoded.
+	 * 
+	 * @param visitor
+	 *            the visitor to show the events to, in no particular order
+	 */
+	public void scanEventStarts(EventStartVisitor visitor) {
+		String rowId = "e." + EventKey.ROW_ID.columnName();
+		String firstFix = "(SELECT " + GPSDbAdapter.KEY_ROWID + " FROM "
+				+ GPSDbAdapter.DATABASE_TABLE + " WHERE " + GPSDbAdapter.KEY_EVENT_ROWID + " = "
+				+ rowId + " ORDER BY " + GPSDbAdapter.KEY_GPSTIME + " LIMIT 1)";
+		String packedTrack = "t." + GPSDbAdapter.KEY_TRACK;
+		String from = allEvents() + " e LEFT JOIN " + GPSDbAdapter.DATABASE_TABLE + " g ON g."
+				+ GPSDbAdapter.KEY_ROWID + " = " + firstFix + " LEFT JOIN "
+				+ GPSDbAdapter.TRACK_TABLE + " t ON t." + GPSDbAdapter.KEY_EVENT_ROWID + " = "
+				+ rowId;
+		if (hasArchive()) {
+			packedTrack = "coalesce(" + packedTrack + ", a." + GPSDbAdapter.KEY_TRACK + ")";
+			from += " LEFT JOIN " + EventArchive.TRACK_TABLE + " a ON a."
+					+ GPSDbAdapter.KEY_EVENT_ROWID + " = " + rowId;
+		}
+		Cursor starts = mDb.rawQuery("SELECT " + rowId + ", e." + EventKey.NAME.columnName()
+				+ ", e." + EventKey.START_TIME.columnName() + ", g." + GPSDbAdapter.KEY_LATITUDE
+				+ ", g." + GPSDbAdapter.KEY_LONGITUDE + ", g." + GPSDbAdapter.KEY_GPSTIME
+				+ ", substr(" + packedTrack + ", 1, " + GPSTrackCodec.MAX_FIX_BYTES + ") FROM "
+				+ from + " WHERE e." + EventKey.IS_DELETED.columnName() + " = 0", null);
+		try {
+			while (starts.moveToNext()) {
+				GPSCoordinates fix = null;
+				if (!starts.isNull(6))
+					fix = GPSTrackCodec.decodeFirst(starts.getBlob(6));
+				// Fixes added after the track was packed may still come first.
+				if (!starts.isNull(5) && (fix == null || starts.getLong(5) < fix.getTime()))
+					fix = new GPSCoordinates(starts.getDouble(3), starts.getDouble(4),
+							starts.getLong(5));
+				visitor.visit(starts.getLong(0), starts.getString(1), starts.getLong(2), fix);
+			}
+		} finally {
+			starts.close();
+		}
+	}
+
 	/**
 	 * Return a Cursor over the list of event that correspond to today. Sorted
 	 * by end Time.
@@ -156,10 +342,23 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	 * @return Cursor.
 	 */
 	public Cursor fetchSortedEvents() {
+		return fetchLatestEvents(20);
+	}
+
+	/**
+	 * @return a cursor over at most limit undeleted events, latest first
+	 */
+	Cursor fetchLatestEvents(int limit) {
 		String orderBy = EventKey.START_TIME.columnName() + " DESC";
-		String limitClause = "20";
-		return mDb.query(DATABASE_TABLE, EventKey.columnNames(), EventKey.IS_DELETED.columnName()
-				+ "=0", null, null, null, orderBy, limitClause);
+		String limitClause = Integer.toString(limit);
+		Cursor events = mDb.query(DATABASE_TABLE, EventKey.columnNames(),
+				EventKey.IS_DELETED.columnName() + "=0", null, null, null, orderBy, limitClause);
+		if (events.getCount() == limit || !hasArchive())
+			return events;
+		// Not enough recent events: older ones are in the archive.
+		events.close();
+		return mDb.query(EventArchive.ALL_EVENTS, EventKey.columnNames(),
+				EventKey.IS_DELETED.columnName() + "=0", null, null, null, orderBy, limitClause);
 	}
 
 	/**
@@ -174,6 +373,47 @@ public class EventDbAdapter extends AbstractDbAdapter {
 				EventKey.END_TIME.columnName()), new String[] { "0", "0" }, null, null, null, null);
 	}
 
+	/**
+	 * @return the sequence number of the latest entry of the sync journal, or
+	 *         0 if it is empty
+	 */
+	public long fetchSyncSequence() {
+		return SyncJournal.lastSequence(mDb);
+	}
+
+	/**
+	 * @return a cursor over the events written locally, up to the given
+	 *         sequence number, that the server has not acknowledged
+	 */
+	public Cursor fetchUnsyncedEvents(long upToSequence) {
+		return SyncJournal.fetchEvents(mDb, upToSequence);
+	}
+
+	/**
+	 * Records that the server received the events journaled up to the given
+	 * sequence number. Events written again since then stay unsynced.
+	 */
+	public void acknowledgeSync(long upToSequence) {
+		AfterCommit.beginTransaction(mDb);
+		try {
+			SyncJournal.acknowledge(mDb, upToSequence);
+			AfterCommit.setTransactionSuccessful(mDb);
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
+	}
+
+	/**
+	 * Physically removes deleted events whose deletion the server has
+	 * received, in short batches.
+	 * 
+	 * @see TombstoneCompactor#compact(android.database.sqlite.SQLiteDatabase,
+	 *      long, long)
+	 */
+	public int compactTombstones(long deletedBefore, long budgetMillis) {
+		return TombstoneCompactor.compact(mDb, deletedBefore, budgetMillis);
+	}
+
 	/**
 	 * Return a Cursor positioned at the note that matches the given rowId.
 	 * 
@@ -185,29 +425,45 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	 */
 	public Cursor fetchEvent(long rowId) throws SQLException {
 
-		Cursor mCursor = mDb.query(true, DATABASE_TABLE, EventKey.columnNames(),
-				EventKey.ROW_ID.columnName() + "=" + rowId, null, null, null, null, null);
-		if (mCursor != null)
-			mCursor.moveToFirst();
-		return mCursor;
+		return fetchOne(EventKey.ROW_ID.columnName() + "=" + rowId, null);
 	}
 
 	public Cursor fetchEvent(String uuid) throws SQLException {
-		Cursor mCursor = mDb.query(true, DATABASE_TABLE, EventKey.columnNames(),
-				EventKey.UUID.columnName() + "=?", new String[] { uuid }, null, null, null, null);
-		if (mCursor != null)
-			mCursor.moveToFirst();
-		return mCursor;
+		return fetchOne(EventKey.UUID.columnName() + "=?", new String[] { uuid });
 	}
 
 	public Cursor fetchEvents(String name) throws SQLException {
-		Cursor mCursor = mDb.query(true, DATABASE_TABLE, EventKey.columnNames(),
+		Cursor mCursor = mDb.query(true, allEvents(), EventKey.columnNames(),
 				EventKey.NAME.columnName() + "=?", new String[] { name }, null, null, null, null);
 		if (mCursor != null)
 			mCursor.moveToFirst();
 		return mCursor;
 	}
 
+	/**
+	 * Reads one event with the given name, hot events first, through the
+	 * index on names.
+	 * 
+	 * @return a cursor positioned on the event, or empty if there is none
+	 */
+	public Cursor fetchFirstEvent(String name) {
+		return fetchOne(EventKey.NAME.columnName() + "=?", new String[] { name });
+	}
+
+	/**
+	 * Counts the events with the given name, deleted or not, through the
+	 * index on names and without reading them.
+	 */
+	public int countEvents(String name) {
+		String count = "SELECT COUNT(*) FROM %s WHERE " + EventKey.NAME.columnName() + "=?";
+		String[] args = new String[] { name };
+		long events = DatabaseUtils.longForQuery(mDb, String.format(count, DATABASE_TABLE), args);
+		if (hasArchive())
+			events += DatabaseUtils.longForQuery(mDb, String.format(count, EventArchive.TABLE),
+					args);
+		return (int) events;
+	}
+
 	/**
 	 * Update the event using the details provided.
 	 * 
@@ -227,17 +483,293 @@ public class EventDbAdapter extends AbstractDbAdapter {
 
 	public boolean updateEvent(Long rowId, String title, String notes, Long startTime,
 			Long endTime, String uuid, boolean isDeleted, boolean recievedAtServer, String tag) {
+		long updateTime = Calendar.getInstance().getTimeInMillis();
 		ContentValues args = new ContentValues();
 		args.put(EventKey.NAME.columnName(), title);
 		args.put(EventKey.NOTES.columnName(), notes);
 		args.put(EventKey.START_TIME.columnName(), startTime);
 		args.put(EventKey.END_TIME.columnName(), endTime);
-		args.put(EventKey.UPDATE_TIME.columnName(), Calendar.getInstance().getTimeInMillis());
+		args.put(EventKey.UPDATE_TIME.columnName(), updateTime);
 		args.put(EventKey.UUID.columnName(), uuid);
 		args.put(EventKey.IS_DELETED.columnName(), isDeleted ? 1 : 0);
 		args.put(EventKey.RECEIVED_AT_SERVER.columnName(), recievedAtServer ? 1 : 0);
 		args.put(EventKey.TAG.columnName(), tag);
-		return mDb.update(DATABASE_TABLE, args, EventKey.ROW_ID.columnName() + "=" + rowId, null) > 0;
+		AfterCommit.beginTransaction(mDb);
+		try {
+			restoreArchived(rowId);
+			EventEntry before = readEvent(rowId);
+			boolean updated = mDb.update(DATABASE_TABLE, args, EventKey.ROW_ID.columnName() + "="
+					+ rowId, null) > 0;
+			if (updated)
+				indexWrite(before, new EventEntry(rowId, title, notes, startTime, endTime,
+						updateTime, uuid, isDeleted, recievedAtServer, true, tag));
+			AfterCommit.setTransactionSuccessful(mDb);
+			return updated;
+		} finally {
+			AfterCommit.endTransaction(mDb);
+		}
+	}
+
+	/**
+	 * Creates or updates each of the given events inside a single
+	 * transaction. The insert and update statements are compiled once and
+	 * reused for every row. Newly created events have their row id set.
+	 * 
+	 * @param events
+	 *            the events to write. Events with a row id of -1 are created.
+	 * @param receivedAtServer
+	 *            whether the events have been received by the server
+	 * @return for each event, whether it was successfully written
+	 */
+	public boolean[] writeEvents(List<EventEntry> events, boolean receivedAtServer) {
+		boolean[] written = new boolean[events.size()];
+		SQLiteStatement insert = mDb.compileStatement(String.format(
+				"INSERT INTO %s (%s, %s, %s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+				DATABASE_TABLE, EventKey.NAME.columnName(), EventKey.NOTES.columnName(),
+				EventKey.START_TIME.columnName(), EventKey.END_TIME.columnName(),
+				EventKey.UPDATE_TIME.columnName(), EventKey.UUID.columnName(),
+				EventKey.RECEIVED_AT_SERVER.columnName(), EventKey.TAG.columnName()));
+		SQLiteStatement update = mDb.compileStatement(String.format(
+				"UPDATE %s SET %s = ?, %s = ?, %s = ?, %s = ?, %s = ?, %s = ?, %s = ?, %s = ?, "
+						+ "%s = ? WHERE %s = ?", DATABASE_TABLE, EventKey.NAME.columnName(),
+				EventKey.NOTES.columnName(), EventKey.START_TIME.columnName(),
+				EventKey.END_TIME.columnName(), EventKey.UPDATE_TIME.columnName(),
+				EventKey.UUID.columnName(), EventKey.RECEIVED_AT_SERVER.columnName(),
+				EventKey.TAG.columnName(), EventKey.IS_DELETED.columnName(),
+				EventKey.ROW_ID.columnName()));
+		SQLiteStatement changes = mDb.compileStatement("SELECT changes()");
+		long updateTime = Calendar.getInstance().getTimeInMillis();
+		AfterCommit.beginTransaction(mDb);
+		try {
+			Map<Long, EventEntry> existing = readExisting(events);
+			for (int i = 0; i < written.length; i++) {
+				EventEntry event = events.get(i);
+				if (event == null)
+					continue;
+				SQLiteStatement statement = event.mDbRowID == -1 ? insert : update;
+				EventEntry before = statement == update ? existing.get(event.mDbRowID) : null;
+				bindString(statement, 1, event.mName);
+				bindString(statement, 2, event.mNotes);
+				statement.bindLong(3, event.mStartTime);
+				statement.bindLong(4, event.mEndTime);
+				statement.bindLong(5, updateTime);
+				bindString(statement, 6, event.mUUID);
+				statement.bindLong(7, receivedAtServer ? 1 : 0);
+				bindString(statement, 8, event.mTag);
+				try {
+					if (statement == insert) {
+						event.mDbRowID = insert.executeInsert();
+						written[i] = event.mDbRowID != -1;
+					} else {
+						update.bindLong(9, event.deleted ? 1 : 0);
+						update.bindLong(10, event.mDbRowID);
+						update.execute();
+						written[i] = changes.simpleQueryForLong() > 0;
+					}
+				} catch (SQLException e) {
+					// Matches insert() and update(): a bad row fails alone.
+					written[i] = false;
+				}
+				if (written[i]) {
+					event.mUpdateTime = updateTime;
+					event.receivedAtServer = receivedAtServer;
+					// Outside the catch, so a failing index fails the batch.
+					indexWrite(before, event);
+					// A later write of the same event in the batch starts from this one.
+					if (statement == update)
+						existing.put(event.mDbRowID, event.copy());
+				}
+			}
+			AfterCommit.setTransactionSuccessful(mDb);
+		} finally {
+			AfterCommit.endTransaction(mDb);
+			insert.close();
+			update.close();
+			changes.close();
+		}
+		return written;
+	}
+
+	/**
+	 * Totals the time spent per tag over a range of days.
+	 * 
+	 * @param firstDay
+	 *            the key of the first day, see {@link DayKeys#dayKey(long)}
+	 * @param lastDay
+	 *            the key of the last day, inclusive
+	 * @param perDay
+	 *            whether to total each day separately
+	 */
+	List<RollupTotal> fetchTagTotals(int firstDay, int lastDay, boolean perDay) {
+		return mTagRollup.fetchTotals(mDb, firstDay, lastDay, perDay);
+	}
+
+	/**
+	 * Totals the time spent per event name over a range of days.
+	 * 
+	 * @see #fetchTagTotals(int, int, boolean)
+	 */
+	List<RollupTotal> fetchNameTotals(int firstDay, int lastDay, boolean perDay) {
+		return mNameRollup.fetchTotals(mDb, firstDay, lastDay, perDay);
+	}
+
+	/**
+	 * @return the name dictionary, read again only if it changed since the
+	 *         last call
+	 */
+	synchronized EventNames fetchEventNames() {
+		int changeCount = NameIndex.getChangeCount();
+		if (mEventNames == null || mEventNamesChangeCount != changeCount) {
+			mEventNames = NameIndex.fetchAll(mDb);
+			mEventNamesChangeCount = changeCount;
+		}
+		return mEventNames;
+	}
+
+	/**
+	 * Searches the names, notes and tags of undeleted events.
+	 * 
+	 * @see SearchIndex#search(android.database.sqlite.SQLiteDatabase, String,
+	 *      int, int)
+	 */
+	public Cursor searchEvents(String query, int offset, int limit) {
+		return SearchIndex.search(mDb, query, offset, limit);
+	}
+
+	/**
+	 * Restores the archived events among those to update and reads them all
+	 * in one query, including deleted ones. Must be called inside the
+	 * transaction of the write.
+	 * 
+	 * @return the events by row id, without those that do not exist
+	 */
+	private Map<Long, EventEntry> readExisting(List<EventEntry> events) {
+		Map<Long, EventEntry> existing = new HashMap<Long, EventEntry>();
+		StringBuilder ids = new StringBuilder();
+		for (EventEntry event : events) {
+			if (event == null || event.mDbRowID == -1)
+				continue;
+			restoreArchived(event.mDbRowID);
+			ids.append(ids.length() == 0 ? "" : ",").append(event.mDbRowID);
+		}
+		if (ids.length() == 0)
+			return existing;
+		Cursor cursor = mDb.query(DATABASE_TABLE, EventKey.columnNames(),
+				EventKey.ROW_ID.columnName() + " IN (" + ids + ")", null, null, null, null);
+		try {
+			EventRowMapper mapper = new EventRowMapper(cursor);
+			while (cursor.moveToNext()) {
+				EventEntry event = mapper.map(cursor);
+				existing.put(event.mDbRowID, event);
+			}
+		} finally {
+			cursor.close();
+		}
+		return existing;
+	}
+
+	/**
+	 * Reads a single event, including deleted ones.
+	 * 
+	 * @return the event, or null if there is no event with the given row id
+	 */
+	EventEntry readEvent(long rowId) {
+		Cursor cursor = mDb.query(DATABASE_TABLE, EventKey.columnNames(),
+				EventKey.ROW_ID.columnName() + "=" + rowId, null, null, null, null);
+		try {
+			return cursor.moveToFirst() ? new EventRowMapper(cursor).map(cursor) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Tells every index about a written event. Must be called inside the
+	 * transaction of the write.
+	 */
+	private void indexWrite(EventEntry before, EventEntry after) {
+		for (EventIndex index : mIndexes)
+			index.eventWritten(mDb, before, after);
+		if (isSharedDatabase())
+			ChangeBus.getInstance().publishOnCommit(DataChange.forEvent(before, after));
+	}
+
+	/**
+	 * Binds a String that may be null to the statement.
+	 */
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null)
+			statement.bindNull(index);
+		else
+			statement.bindString(index, value);
+	}
+
+	/**
+	 * Moves finished events that started before the cutoff, with their GPS
+	 * tracks, into the archive.
+	 * 
+	 * @see EventArchive#archive(android.database.sqlite.SQLiteDatabase, long,
+	 *      long)
+	 */
+	public int archiveEvents(long startedBefore, long budgetMillis) {
+		return EventArchive.archive(mDb, startedBefore, budgetMillis);
+	}
+
+	/**
+	 * @return the latest start time of an archived event, or
+	 *         {@link EventArchive#EMPTY}
+	 */
+	private long archiveLatestStart() {
+		int changeCount = EventArchive.getChangeCount();
+		if (changeCount != mArchiveChangeCount) {
+			mArchiveLatestStart = EventArchive.latestStart(mDb);
+			mArchiveChangeCount = changeCount;
+		}
+		return mArchiveLatestStart;
+	}
+
+	private boolean hasArchive() {
+		return archiveLatestStart() != EventArchive.EMPTY;
+	}
+
+	/**
+	 * @return the table to read for every event
+	 */
+	private String allEvents() {
+		return hasArchive() ? EventArchive.ALL_EVENTS : DATABASE_TABLE;
+	}
+
+	/**
+	 * @return the table to read for the events that started after the given
+	 *         time: eventData alone unless some of them are archived
+	 */
+	private String eventsAfter(long startTime) {
+		return startTime >= archiveLatestStart() ? DATABASE_TABLE : EventArchive.ALL_EVENTS;
+	}
+
+	/**
+	 * Moves an event back from the archive before it is written. Must be
+	 * called inside the transaction of the write.
+	 */
+	private void restoreArchived(long rowId) {
+		if (hasArchive())
+			EventArchive.restore(mDb, rowId);
+	}
+
+	/**
+	 * @return a cursor positioned at the event matching the selection, looked
+	 *         up in the archive only if it is not in eventData
+	 */
+	private Cursor fetchOne(String selection, String[] selectionArgs) {
+		Cursor cursor = mDb.query(true, DATABASE_TABLE, EventKey.columnNames(), selection,
+				selectionArgs, null, null, null, "1");
+		if (!cursor.moveToFirst() && hasArchive()) {
+			cursor.close();
+			cursor = mDb.query(true, EventArchive.TABLE, EventKey.columnNames(), selection,
+					selectionArgs, null, null, null, "1");
+			cursor.moveToFirst();
+		}
+		return cursor;
 	}
 
 	/**
@@ -249,8 +781,9 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	public Cursor fetchSortedEvents(long startTime, long endTime) {
 		String orderBy = EventKey.START_TIME.columnName() + " DESC";
 
-		return mDb.query(DATABASE_TABLE, EventKey.columnNames(), EventKey.IS_DELETED.columnName()
-				+ "=0" + " AND " + EventKey.START_TIME.columnName() + " > " + startTime + " AND "
+		return mDb.query(eventsAfter(startTime), EventKey.columnNames(),
+				EventKey.IS_DELETED.columnName() + "=0" + " AND " + EventKey.START_TIME.columnName()
+				+ " > " + startTime + " AND "
 				+ EventKey.START_TIME.columnName() + " < " + endTime, null, null, null, orderBy,
 				null);
 	}
@@ -263,7 +796,7 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	public Cursor fetchSortedEventsBeforeDate(long startTime) {
 		String orderBy = EventKey.START_TIME.columnName() + " DESC";
 
-		return mDb.query(DATABASE_TABLE, EventKey.columnNames(), EventKey.IS_DELETED.columnName()
+		return mDb.query(allEvents(), EventKey.columnNames(), EventKey.IS_DELETED.columnName()
 				+ "=0" + " AND " + EventKey.START_TIME.columnName() + " < " + startTime, null,
 				null, null, orderBy, null);
 	}
@@ -276,9 +809,9 @@ public class EventDbAdapter extends AbstractDbAdapter {
 	public Cursor fetchSortedEventsAfterDate(long startTime) {
 		String orderBy = EventKey.START_TIME.columnName() + " ASC";
 
-		return mDb.query(DATABASE_TABLE, EventKey.columnNames(), EventKey.IS_DELETED.columnName()
-				+ "=0" + " AND " + EventKey.START_TIME.columnName() + " > " + startTime, null,
-				null, null, orderBy, null);
+		return mDb.query(eventsAfter(startTime), EventKey.columnNames(),
+				EventKey.IS_DELETED.columnName() + "=0" + " AND " + EventKey.START_TIME.columnName()
+				+ " > " + startTime, null, null, null, orderBy, null);
 	}
 
 }
@@ -2,21 +2,15 @@ package edu.berkeley.security.eventtracker.eventdata;
 
 import java.io.Serializable;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
+import java.util.UUID;
 
-import android.database.Cursor;
-import android.util.Log;
-import edu.berkeley.security.eventtracker.EventActivity;
-import edu.berkeley.security.eventtracker.eventdata.EventDbAdapter.EventKey;
-import edu.berkeley.security.eventtracker.network.Networking;
-import edu.berkeley.security.eventtracker.network.Synchronizer;
 
 /**
  * A local, in-memory version of a Event database entry. This is pushed and
- * pulled from the database when necessary.
+ * pulled from the database when necessary. Entries are plain Java, so that
+ * they can be used with a {@link MemoryEventStore} off the device.
  */
 public class EventEntry implements Serializable {
 
@@ -39,7 +33,7 @@ public class EventEntry implements Serializable {
 	 */
 	public EventEntry() {
 		mUpdateTime = mStartTime = System.currentTimeMillis();
-		mUUID = Networking.createUUID();
+		mUUID = UUID.randomUUID().toString();
 	}
 
 	/**
@@ -60,7 +54,7 @@ public class EventEntry implements Serializable {
 		mNotes = notes;
 		mUpdateTime = mStartTime = startTime;
 		mEndTime = endTime;
-		mUUID = Networking.createUUID();
+		mUUID = UUID.randomUUID().toString();
 		mTag = tag;
 	}
 
@@ -100,29 +94,11 @@ public class EventEntry implements Serializable {
 	}
 
 	/**
-	 * Creates an EventEntry corresponding to the event row at the given cursor.
-	 * Assumes the given cursor is at the correct entry.
-	 * 
-	 * @param eventCursor
-	 *            The cursor at the event to convert to an EventEntry.
-	 * @return The EventEntry corresponding to the cursor event row.
+	 * @return a new EventEntry with the same field values as this one
 	 */
-	public static EventEntry fromCursor(Cursor eventCursor, EventManager manager) {
-		if (eventCursor == null || eventCursor.isClosed() || eventCursor.isBeforeFirst()
-				|| eventCursor.isAfterLast())
-			return null;
-		long dbRowID = getLong(eventCursor, EventKey.ROW_ID);
-		String name = getString(eventCursor, EventKey.NAME);
-		String notes = getString(eventCursor, EventKey.NOTES);
-		long startTime = getLong(eventCursor, EventKey.START_TIME);
-		long endTime = getLong(eventCursor, EventKey.END_TIME);
-		long updateTime = getLong(eventCursor, EventKey.UPDATE_TIME);
-		String uuid = getString(eventCursor, EventKey.UUID);
-		String mTag = getString(eventCursor, EventKey.TAG);
-		boolean recievedAtServer = getBoolean(eventCursor, EventKey.RECEIVED_AT_SERVER);
-		boolean isDeleted = getBoolean(eventCursor, EventKey.IS_DELETED);
-		return new EventEntry(dbRowID, name, notes, startTime, endTime, updateTime, uuid,
-				isDeleted, recievedAtServer, true, mTag);
+	EventEntry copy() {
+		return new EventEntry(mDbRowID, mName, mNotes, mStartTime, mEndTime, mUpdateTime, mUUID,
+				deleted, receivedAtServer, persisted, mTag);
 	}
 
 	@Override
@@ -205,35 +181,16 @@ public class EventEntry implements Serializable {
 	}
 
 	/**
-	 * Queries the databae for the list of GPSCoordinates associated with this
-	 * event.
+	 * Checks if this event has been updated more recently than the given
+	 * time.
 	 * 
-	 * @return a list of GPSCoordinates.
+	 * @param updatedTime
+	 *            the time to compare with, as parsed by
+	 *            {@link edu.berkeley.security.eventtracker.network.Synchronizer}
+	 * @return whether or not the event is newer than the time.
 	 */
-	public List<GPSCoordinates> getGPSCoordinates() {
-		return EventActivity.mEventManager.getGPSCoordinates(mDbRowID);
-	}
-
-	/**
-	 * Checks if this event has been updated more recently than the timestamp.
-	 * 
-	 * @param timestamp
-	 *            the String timestamp to compare with.
-	 * @return whether or not the event is newer than the timestamp.
-	 */
-	public boolean newerThan(String timestamp) {
-	
-		// hack to get SimpleDateFormat working with UTC
-		timestamp = timestamp.replace("UTC", "GMT");
-	
-		Date otherUpdatedTime;
-		try {
-			otherUpdatedTime = Synchronizer.dateFormatter.parse(timestamp);
-		} catch (ParseException e) {
-			Log.e(EventActivity.LOG_TAG, "Could not parse remote update time.", e);
-			return false;
-		}
-		return new Date(mUpdateTime).after(otherUpdatedTime);
+	public boolean newerThan(Date updatedTime) {
+		return new Date(mUpdateTime).after(updatedTime);
 	}
 
 	/**
@@ -246,58 +203,4 @@ public class EventEntry implements Serializable {
 		return dateFormat.format(new Date(dateLong));
 	}
 
-	/**
-	 * Gets the value of the long column with the given columnName.
-	 * 
-	 * @param cursor
-	 *            a cursor at a particular row.
-	 * @param columnName
-	 *            the name of the column in the DB.
-	 * @return the long at the column with the given name, or 0 it doesn't
-	 *         exist.
-	 */
-	private static long getLong(Cursor cursor, EventKey columnType) {
-		return cursor.getLong(cursor.getColumnIndex(columnType.columnName()));
-	}
-
-	/**
-	 * Gets the value of the integer column with the given columnName.
-	 * 
-	 * @param cursor
-	 *            a cursor at a particular row.
-	 * @param columnName
-	 *            the name of the column in the DB.
-	 * @return the integer at the column with the given name, or 0 it doesn't
-	 *         exist.
-	 */
-	@SuppressWarnings("unused")
-	private static int getInt(Cursor cursor, EventKey columnType) {
-		return cursor.getInt(cursor.getColumnIndex(columnType.columnName()));
-	}
-
-	/**
-	 * 
-	 * @param cursor
-	 *            A cursor at a particular row.
-	 * @param columnName
-	 *            The name of the column in the DB.
-	 * @return The String at the column with the given name.
-	 */
-	private static String getString(Cursor cursor, EventKey columnType) {
-		return cursor.getString(cursor.getColumnIndex(columnType.columnName()));
-	}
-
-	/**
-	 * 
-	 * @param cursor
-	 *            A cursor at a particular row.
-	 * @param columnName
-	 *            The name of the column in the DB.
-	 * @return The boolean at the column with the given name.
-	 */
-	private static boolean getBoolean(Cursor cursor, EventKey columnType) {
-		long dbValue = cursor.getInt(cursor.getColumnIndex(columnType.columnName()));
-		return dbValue == 0 ? false : true;
-	}
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A table derived from eventData. {@link EventDbAdapter} tells every index
+ * about each event it writes, inside the transaction of the write, so the
+ * index never disagrees with the events it was derived from.
+ */
+interface EventIndex {
+
+	/**
+	 * Updates the index for one written event.
+	 * 
+	 * @param db
+	 *            the database, inside the write's transaction
+	 * @param before
+	 *            the event as it was before the write, or null if it was
+	 *            created
+	 * @param after
+	 *            the event as it is after the write, or null if it was
+	 *            permanently deleted
+	 */
+	void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after);
+
+	/**
+	 * Derives the whole index again from eventData. Used when the index is
+	 * first created, when it may be out of step, and after every event is
+	 * purged.
+	 * 
+	 * @param db
+	 *            the database, inside a transaction
+	 */
+	void rebuild(SQLiteDatabase db);
+}
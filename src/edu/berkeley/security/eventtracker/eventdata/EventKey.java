@@ -0,0 +1,70 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An enumeration of column key names in the event table. Plain Java, so that
+ * events can be read and written off the device.
+ */
+public enum EventKey {
+	ROW_ID("_id", ColumnType.INTEGER, "primary key autoincrement"), NAME("name",
+			ColumnType.TEXT), NOTES("notes", ColumnType.TEXT), START_TIME("startTime",
+			ColumnType.LONG), END_TIME("endTime", ColumnType.LONG), UPDATE_TIME("updateTime",
+			ColumnType.LONG), UUID("uuid", ColumnType.TEXT), IS_DELETED("isDeleted",
+			ColumnType.INTEGER, "DEFAULT 0"), RECEIVED_AT_SERVER("receivedAtServer",
+			ColumnType.INTEGER, "DEFAULT 0"), TAG("tag", ColumnType.TEXT);
+
+	private String mColumnName;
+	private ColumnType mColType;
+	private String mExtraCreateText;
+
+	private EventKey(String columnName, ColumnType type) {
+		mColumnName = columnName;
+		mColType = type;
+		mExtraCreateText = " not null";
+	}
+
+	private EventKey(String columnName, ColumnType type, String extraOptions) {
+		mColumnName = columnName;
+		mColType = type;
+		mExtraCreateText = " not null " + extraOptions;
+	}
+
+	public String columnName() {
+		return mColumnName;
+	}
+
+	public String getRowCreateString() {
+		return mColumnName + " " + mColType + mExtraCreateText;
+	}
+
+	/**
+	 * @return the names of all columns, in declaration order. The array
+	 *         is shared and must not be modified.
+	 */
+	public static String[] columnNames() {
+		return COLUMN_NAMES;
+	}
+
+	static EventKey fromColumnName(String columnName) {
+		return KEYS_BY_COLUMN_NAME.get(columnName);
+	}
+
+	// Built once, after all of the constants exist.
+	private static final String[] COLUMN_NAMES;
+	private static final Map<String, EventKey> KEYS_BY_COLUMN_NAME =
+			new HashMap<String, EventKey>();
+	static {
+		EventKey[] keys = EventKey.values();
+		COLUMN_NAMES = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			COLUMN_NAMES[i] = keys[i].columnName();
+			KEYS_BY_COLUMN_NAME.put(COLUMN_NAMES[i], keys[i]);
+		}
+	}
+
+	private enum ColumnType {
+		INTEGER, TEXT, LONG;
+	}
+}
@@ -2,31 +2,60 @@ package edu.berkeley.security.eventtracker.eventdata;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
 
 import android.content.Context;
-import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.util.Log;
 import edu.berkeley.security.eventtracker.EventActivity;
-import edu.berkeley.security.eventtracker.prediction.PredictionService;
 
 /**
  * Manages the event data back-end and acts as a wrapper around a database
  * adapter. A manager should be shared across all event-related activities.
  */
 public class EventManager {
-	private TagsDBAdapter mTagHelper;
-	private GPSDbAdapter mGPSHelper;
-	private EventDbAdapter mDbHelper;
+	/** Where events, GPS fixes and tags are written and looked up. */
+	private final EventStore mStore;
+	/** Told about every write, or null if no one listens. */
+	private volatile EventWriteListener mWriteListener;
+	/** When each event took place, for overlap and gap queries. */
+	private final TimelineIndex mTimeline;
+	private GPSFixBuffer mGPSBuffer;
+	private final Context mCtx;
 	private static EventManager mEventManager;
 
+	/**
+	 * The event in progress, kept up to date by every write so that it can be
+	 * read without querying. It is the newest event, if that event is open.
+	 */
+	private EventEntry mCurrentEvent;
+	/** The start time of the newest undeleted event. */
+	private long mLatestStartTime;
+	/** Whether the two fields above reflect the database. */
+	private boolean mCurrentEventLoaded;
+	private final Object mCurrentEventLock = new Object();
+
 	private EventManager(Context context) {
-		mDbHelper = new EventDbAdapter(context);
-		mGPSHelper = new GPSDbAdapter(context);
-		mTagHelper = new TagsDBAdapter(context);
+		this(context, new SQLiteEventStore(context));
+	}
+
+	/**
+	 * Creates a manager of its own over the given store, rather than the one
+	 * shared through {@link #getManager(Context)}.
+	 * 
+	 * @param context
+	 *            the context whose files hold unwritten GPS fixes
+	 * @param store
+	 *            where events, GPS fixes and tags are kept
+	 */
+	public EventManager(Context context, EventStore store) {
+		mCtx = context;
+		mStore = store;
+		mTimeline = new TimelineIndex(mStore);
 	}
 
 	/**
@@ -46,6 +75,16 @@ public class EventManager {
 		return mEventManager;
 	}
 
+	/**
+	 * Sets who to tell about the events written from now on.
+	 * 
+	 * @param listener
+	 *            the listener, or null to tell no one
+	 */
+	public void setWriteListener(EventWriteListener listener) {
+		mWriteListener = listener;
+	}
+
 	/**
 	 * Opens the database.
 	 * 
@@ -53,9 +92,8 @@ public class EventManager {
 	 *         initialization call)
 	 */
 	public EventManager open() {
-		mDbHelper.open();
-		mGPSHelper.open();
-		mTagHelper.open();
+		mStore.open();
+		mGPSBuffer = new GPSFixBuffer(mCtx, mStore);
 		return this;
 	}
 
@@ -63,9 +101,8 @@ public class EventManager {
 	 * Closes the database and shuts down the GPS service.
 	 */
 	public void close() {
-		mDbHelper.close();
-		mGPSHelper.close();
-		mTagHelper.close();
+		mGPSBuffer.close();
+		mStore.close();
 	}
 
 	/**
@@ -100,35 +137,74 @@ public class EventManager {
 		if (event == null)
 			return false;
 		if (event.mDbRowID == -1) {
-			event.mDbRowID = mDbHelper.createEvent(event.mName, event.mNotes, event.mStartTime,
+			event.mDbRowID = mStore.createEvent(event.mName, event.mNotes, event.mStartTime,
 					event.mEndTime, event.mUUID, receivedAtServer, event.mTag);
 			event.persisted = event.mDbRowID != -1;
-			if (event.persisted)
-				getPredictionService().addNewEvent(event);
+			if (event.persisted) {
+				if (registerWrite(event))
+					currentEventChanged(Collections.singletonList(event));
+				EventWriteListener listener = mWriteListener;
+				if (listener != null)
+					listener.addNewEvent(event);
+			}
 			return event.persisted;
 		} else {
-			boolean updateSuccessful = mDbHelper.updateEvent(event.mDbRowID, event.mName,
+			boolean updateSuccessful = mStore.updateEvent(event.mDbRowID, event.mName,
 					event.mNotes, event.mStartTime, event.mEndTime, event.mUUID, event.deleted,
 					receivedAtServer, event.mTag);
 			if (updateSuccessful) {
 				event.persisted = true;
-				getPredictionService().updateEvent(event);
+				if (registerWrite(event))
+					currentEventChanged(Collections.singletonList(event));
+				EventWriteListener listener = mWriteListener;
+				if (listener != null)
+					listener.updateEvent(event);
 			}
 			return updateSuccessful;
 		}
 	}
 
 	/**
-	 * Creates or updates the database with the given list of events.
+	 * Creates or updates the database with the given list of events. All of
+	 * the events are written in a single transaction and the prediction
+	 * service is notified once for the whole list.
+	 * 
+	 * @param listOfEvents
+	 *            the events to push to the database
+	 * @return for each event, whether or not it was successfully written
 	 */
-	public void updateDatabaseBulk(ArrayList<EventEntry> listOfEvents, boolean receivedAtServer) {
+	public boolean[] updateDatabaseBulk(List<EventEntry> listOfEvents, boolean receivedAtServer) {
 		if (listOfEvents == null) {
-			return; // TODO remove this call?
+			return new boolean[0]; // TODO remove this call?
 		}
-		for (EventEntry event : listOfEvents) {
-			updateDatabase(event, receivedAtServer);
+		boolean[] isNew = new boolean[listOfEvents.size()];
+		for (int i = 0; i < isNew.length; i++) {
+			EventEntry event = listOfEvents.get(i);
+			isNew[i] = event != null && event.mDbRowID == -1;
 		}
-
+		boolean[] written = mStore.writeEvents(listOfEvents, receivedAtServer);
+
+		List<EventEntry> newEvents = new ArrayList<EventEntry>();
+		List<EventEntry> updatedEvents = new ArrayList<EventEntry>();
+		List<EventEntry> startedOrStopped = new ArrayList<EventEntry>();
+		for (int i = 0; i < written.length; i++) {
+			if (!written[i])
+				continue;
+			EventEntry event = listOfEvents.get(i);
+			event.persisted = true;
+			if (registerWrite(event))
+				startedOrStopped.add(event);
+			if (isNew[i])
+				newEvents.add(event);
+			else
+				updatedEvents.add(event);
+		}
+		if (!startedOrStopped.isEmpty())
+			currentEventChanged(startedOrStopped);
+		EventWriteListener listener = mWriteListener;
+		if (listener != null && (!newEvents.isEmpty() || !updatedEvents.isEmpty()))
+			listener.eventsChanged(newEvents, updatedEvents);
+		return written;
 	}
 
 	/**
@@ -139,39 +215,129 @@ public class EventManager {
 	 * @return true if deleted, false otherwise
 	 */
 	public boolean deleteEvent(long rowId) {
-		boolean successful = mDbHelper.markDeleted(rowId);
+		boolean successful = mStore.markDeleted(rowId);
 		if (successful) {
-			getPredictionService().deleteEvent(fetchEvent(rowId));
+			EventEntry deletedEvent = fetchEvent(rowId);
+			registerWrite(deletedEvent);
+			EventWriteListener listener = mWriteListener;
+			if (listener != null)
+				listener.deleteEvent(deletedEvent);
 		}
 		return successful;
 	}
 
 	/**
-	 * Deletes all events and GPS entries in the database. TODO make more
-	 * efficient.
+	 * Permanently deletes all events and GPS entries in the database.
 	 * 
 	 * @return the number of events deleted
 	 */
 	public int permanentlyDeleteAllEntries() {
-		EventCursor cursor = actuallyFetchAllEvents();
-		int nDeleted = 0;
-		while (cursor.moveToNext()) {
-			long rowId = cursor.getEvent().mDbRowID;
-			permanentlyDeleteEvent(rowId);
-			nDeleted++;
-		}
-		return nDeleted;
+		mGPSBuffer.flush();
+		return eventsPurged(mStore.purgeAllEvents());
+	}
+
+	/**
+	 * Permanently deletes the events starting in the given range, along with
+	 * their GPS entries.
+	 * 
+	 * @param startTime
+	 *            the earliest start time to delete, inclusive
+	 * @param endTime
+	 *            the latest start time to delete, exclusive
+	 * @return the number of events deleted
+	 */
+	public int permanentlyDeleteEvents(long startTime, long endTime) {
+		mGPSBuffer.flush();
+		return eventsPurged(mStore.purgeEvents(startTime, endTime));
+	}
+
+	/**
+	 * Permanently deletes the events with the given tag, along with their GPS
+	 * entries.
+	 * 
+	 * @return the number of events deleted
+	 */
+	public int permanentlyDeleteEventsWithTag(String tag) {
+		mGPSBuffer.flush();
+		return eventsPurged(mStore.purgeEventsWithTag(tag));
+	}
+
+	/**
+	 * Physically removes events that were deleted more than the retention
+	 * period ago and whose deletion the web server has received, along with
+	 * their GPS entries. Works in short transactions, so it can run next to
+	 * UI reads, but it should not be called from the UI thread.
+	 * 
+	 * @param retentionMillis
+	 *            how long deleted events are kept
+	 * @param budgetMillis
+	 *            the time after which no further batch is started
+	 * @return the number of events removed
+	 */
+	public int compactTombstones(long retentionMillis, long budgetMillis) {
+		mGPSBuffer.flush();
+		long deletedBefore = System.currentTimeMillis() - retentionMillis;
+		return mStore.compactTombstones(deletedBefore, budgetMillis);
+	}
+
+	/**
+	 * Moves finished events that started more than the given age ago, with
+	 * their GPS tracks, out of the tables the screens read into the archive.
+	 * Archived events can still be read, searched and edited. Works in short
+	 * transactions, but it should not be called from the UI thread.
+	 * 
+	 * @param ageMillis
+	 *            how old an event must be to be archived
+	 * @param budgetMillis
+	 *            the time after which no further batch is started
+	 * @return the number of events archived
+	 */
+	public int archiveEvents(long ageMillis, long budgetMillis) {
+		mGPSBuffer.flush();
+		long startedBefore = System.currentTimeMillis() - ageMillis;
+		return mStore.archiveEvents(startedBefore, budgetMillis);
+	}
+
+	/**
+	 * Returns the space left by deleted rows to the file system. This can
+	 * take a while, so it should not be called from the UI thread.
+	 */
+	public void reclaimSpace() {
+		mStore.reclaimSpace();
 	}
 
 	public EventCursor fetchAllEvents() {
-		return new EventCursor(mDbHelper.fetchUndeletedEvents(), this);
+		final List<EventEntry> events = new ArrayList<EventEntry>();
+		mStore.scanEvents(new EventStore.EventVisitor() {
+			@Override
+			public void visit(EventEntry event) {
+				events.add(event.copy());
+			}
+		});
+		return toCursor(events);
 	}
 
 	/**
-	 * @return a cursor over all events in descending endTime order
+	 * @return the events written after the given time, deleted or not, so
+	 *         that a saved copy of derived data can catch up
+	 */
+	public List<EventEntry> fetchEventsUpdatedSince(long updateTime) {
+		return mStore.fetchEventsUpdatedSince(updateTime);
+	}
+
+	/**
+	 * Shows the name, start time and first GPS fix of every undeleted event
+	 * to the visitor, in one read of the store.
+	 */
+	public void scanEventStarts(EventStartVisitor visitor) {
+		mStore.scanEventStarts(visitor);
+	}
+
+	/**
+	 * @return a cursor over the latest events, latest first
 	 */
 	public EventCursor fetchSortedEvents() {
-		return new EventCursor(mDbHelper.fetchSortedEvents(), this);
+		return toCursor(mStore.fetchLatestEvents(20));
 	}
 
 	/**
@@ -189,21 +355,47 @@ public class EventManager {
 	}
 
 	/**
-	 * @return the date of the event that comes before date
+	 * @return the start of the latest day before date that has events, or
+	 *         null if there is none
 	 */
 	public Date fetchDateBefore(Date date) {
-		EventCursor cursor = new EventCursor(mDbHelper.fetchSortedEventsBeforeDate(earliestTime(
-				date).getTime()), this);
-		return getFirstDate(cursor);
+		return dayToDate(mStore.fetchDayBefore(DayKeys.dayKey(date.getTime())));
 	}
 
 	/**
-	 * @return the date of the event that comes after after date
+	 * @return the start of the earliest day after date that has events, or
+	 *         null if there is none
 	 */
 	public Date fetchDateAfter(Date date) {
-		EventCursor cursor = new EventCursor(mDbHelper.fetchSortedEventsAfterDate(latestTime(date)
-				.getTime()), this);
-		return getFirstDate(cursor);
+		return dayToDate(mStore.fetchDayAfter(DayKeys.dayKey(date.getTime())));
+	}
+
+	/**
+	 * Totals the time spent on each tag between two dates. Only finished,
+	 * undeleted events count, and events spanning midnight are split between
+	 * the days they touch.
+	 * 
+	 * @param firstDay
+	 *            a time on the first day to include
+	 * @param lastDay
+	 *            a time on the last day to include
+	 * @param perDay
+	 *            whether to total each day separately
+	 * @return the totals, longest first within each day
+	 */
+	public List<RollupTotal> fetchTagTotals(Date firstDay, Date lastDay, boolean perDay) {
+		return mStore.fetchTagTotals(DayKeys.dayKey(firstDay.getTime()),
+				DayKeys.dayKey(lastDay.getTime()), perDay);
+	}
+
+	/**
+	 * Totals the time spent on each event name between two dates.
+	 * 
+	 * @see #fetchTagTotals(Date, Date, boolean)
+	 */
+	public List<RollupTotal> fetchNameTotals(Date firstDay, Date lastDay, boolean perDay) {
+		return mStore.fetchNameTotals(DayKeys.dayKey(firstDay.getTime()),
+				DayKeys.dayKey(lastDay.getTime()), perDay);
 	}
 
 	/**
@@ -212,16 +404,66 @@ public class EventManager {
 	public EventCursor fetchSortedEvents(Date date) {
 		Date startDate = earliestTime(date);
 		Date endDate = latestTime(date);
-		return new EventCursor(mDbHelper.fetchSortedEvents(startDate.getTime(), endDate.getTime()),
-				this);
+		return toCursor(mStore.fetchSortedEvents(startDate.getTime(), endDate.getTime()));
+	}
+
+	/**
+	 * Finds the undeleted events that took place during any part of a period,
+	 * including events that started before it. An event that has not ended
+	 * overlaps every period after its start.
+	 * 
+	 * @param from
+	 *            the start of the period, in milliseconds
+	 * @param to
+	 *            the end of the period, exclusive
+	 * @return the events, in start time order
+	 */
+	public List<EventEntry> fetchOverlappingEvents(long from, long to) {
+		return fetchEvents(mTimeline.findOverlapping(from, to));
+	}
+
+	/**
+	 * @return the undeleted events that last from before the start of the
+	 *         period to after its end, in start time order
+	 * @see #fetchOverlappingEvents(long, long)
+	 */
+	public List<EventEntry> fetchEventsContaining(long from, long to) {
+		return fetchEvents(mTimeline.findContaining(from, to));
+	}
+
+	/**
+	 * @return the parts of the period during which no event took place, in
+	 *         time order
+	 * @see #fetchOverlappingEvents(long, long)
+	 */
+	public List<TimelineIndex.Span> fetchGaps(long from, long to) {
+		return mTimeline.findGaps(from, to);
+	}
+
+	/**
+	 * @return the sequence number up to which to read and then acknowledge
+	 *         unsynced events, 0 if there are none
+	 */
+	public long getSyncSequence() {
+		return mStore.fetchSyncSequence();
+	}
+
+	/**
+	 * @param upToSequence
+	 *            the value of {@link #getSyncSequence()} for this upload
+	 * @return the events that are not yet on the web server, in the order
+	 *         they were written
+	 */
+	public List<EventEntry> fetchUnsyncedEvents(long upToSequence) {
+		return mStore.fetchUnsyncedEvents(upToSequence);
 	}
 
 	/**
-	 * @return a cursor over the list of all events in the database that are not
-	 *         yet on the web server
+	 * Marks the events read with the given sequence number as received by the
+	 * web server. Events changed since they were read stay unsynced.
 	 */
-	public EventCursor fetchPhoneOnlyEvents() {
-		return new EventCursor(mDbHelper.fetchPhoneOnlyEvents(), this);
+	public void acknowledgeSync(long upToSequence) {
+		mStore.acknowledgeSync(upToSequence);
 	}
 
 	/**
@@ -232,8 +474,7 @@ public class EventManager {
 	 * @return an {@link EventEntry} for the event, or null if not found
 	 */
 	public EventEntry fetchEvent(long rowId) throws SQLException {
-		EventCursor events = new EventCursor(mDbHelper.fetchEvent(rowId), this);
-		return events.getCount() > 0 ? events.getEvent() : null;
+		return mStore.fetchEvent(rowId);
 	}
 
 	/**
@@ -244,12 +485,33 @@ public class EventManager {
 	 * @return the first event with the given name
 	 */
 	public EventEntry fetchFirstEvent(String name) throws SQLException {
-		EventCursor events = new EventCursor(mDbHelper.fetchEvents(name), this);
-		return events.getCount() > 0 ? events.getEvent() : null;
+		return mStore.fetchFirstEvent(name);
 	}
 
+	/**
+	 * @return the number of events with the given name, deleted or not
+	 */
 	public int getEventCount(String name) {
-		return new EventCursor(mDbHelper.fetchEvents(name), this).getCount();
+		return mStore.countEvents(name);
+	}
+
+	/**
+	 * Searches the names, notes and tags of all undeleted events. Every word
+	 * of the query must match, and each word also matches longer words it is
+	 * a prefix of, so the search can run as the user types. Events whose name
+	 * matches are ranked first, then the most recent.
+	 * 
+	 * @param query
+	 *            the words to search for
+	 * @param offset
+	 *            the number of matches to skip, for paging
+	 * @param limit
+	 *            the most matches to return
+	 * @return a cursor over the matching events, empty if the query has no
+	 *         words
+	 */
+	public EventCursor searchEvents(String query, int offset, int limit) {
+		return toCursor(mStore.searchEvents(query, offset, limit));
 	}
 
 	/**
@@ -261,8 +523,9 @@ public class EventManager {
 	 * @return the new or found event
 	 */
 	public EventEntry findOrCreateByUUID(String uuid) {
-		EventCursor events = new EventCursor(mDbHelper.fetchEvent(uuid), this);
-		EventEntry event = events.getCount() > 0 ? events.getEvent() : new EventEntry();
+		EventEntry event = mStore.fetchEvent(uuid);
+		if (event == null)
+			event = new EventEntry();
 		event.mUUID = uuid;
 		return event;
 	}
@@ -271,94 +534,191 @@ public class EventManager {
 	 * @return true if we are still tracking an activity, otherwise false.
 	 */
 	public boolean isTracking() {
-		return getCurrentEvent() != null;
+		synchronized (mCurrentEventLock) {
+			if (!mCurrentEventLoaded) {
+				loadCurrentEvent();
+			}
+			return mCurrentEvent != null;
+		}
 	}
 
+	/**
+	 * Retrieves the GPS fixes recorded for an event, in time order.
+	 * 
+	 * @param rowID
+	 *            the row id of the event
+	 * @return the fixes, empty if there are none or they could not be read
+	 */
 	public List<GPSCoordinates> getGPSCoordinates(Long rowID) {
-		ArrayList<GPSCoordinates> toBeReturned = new ArrayList<GPSCoordinates>();
-
-		Cursor cursor = null;
+		mGPSBuffer.flush();
 		try {
-			cursor = mGPSHelper.getGPSCoordinates(rowID);
-		} catch (Exception e) {
+			return mStore.getTrack(rowID);
+		} catch (SQLException e) {
 			Log.e(EventActivity.LOG_TAG, "Failed to get GPS coordinates.", e);
+			return new ArrayList<GPSCoordinates>();
 		}
+	}
 
-		if (cursor.getCount() > 0) {
-			while (cursor.moveToNext()) {
-				double latitude = cursor.getDouble(cursor
-						.getColumnIndex((GPSDbAdapter.KEY_LATITUDE)));
-				double longitude = cursor.getDouble(cursor
-						.getColumnIndex((GPSDbAdapter.KEY_LONGITUDE)));
-				long time = cursor.getLong(cursor.getColumnIndex((GPSDbAdapter.KEY_GPSTIME)));
-				toBeReturned.add(new GPSCoordinates(latitude, longitude, time));
-
-			}
+	/**
+	 * Retrieves the event name dictionary. It is cached, so this only touches
+	 * the database after event names changed.
+	 * 
+	 * @return the names with their ids, empty if they could not be read
+	 */
+	public EventNames getEventNames() {
+		try {
+			return mStore.fetchEventNames();
+		} catch (SQLException e) {
+			Log.e(EventActivity.LOG_TAG, "Failed to get event names.", e);
+			return EventNames.EMPTY;
 		}
-		cursor.close();
-		return toBeReturned;
-
 	}
 
+	/**
+	 * @return the names of all tags, in the order they were created
+	 */
 	public LinkedHashSet<String> getTags() {
 		LinkedHashSet<String> tagSet = new LinkedHashSet<String>();
-		Cursor cursor = null;
+		for (Tag tag : getTagList())
+			tagSet.add(tag.mName);
+		return tagSet;
+	}
+
+	/**
+	 * Lists the tag dictionary. The tags are cached, so this only touches the
+	 * database after tags or tagged events changed.
+	 * 
+	 * @return the tags in the order they were created, empty if they could not
+	 *         be read
+	 */
+	public List<Tag> getTagList() {
 		try {
-			cursor = mTagHelper.getTags();
-		} catch (Exception e) {
+			return mStore.getTagList();
+		} catch (SQLException e) {
 			Log.e(EventActivity.LOG_TAG, "Failed to get tags.", e);
+			return Collections.<Tag> emptyList();
 		}
+	}
 
-		if (cursor.getCount() > 0) {
-			while (cursor.moveToNext()) {
-				String tag = cursor.getString(cursor.getColumnIndex((TagsDBAdapter.KEY_TAG)));
-				tagSet.add(tag);
-
+	/**
+	 * Retrieves the event that is currently in progress. The event is cached,
+	 * so apart from the first call this does not touch the database.
+	 * 
+	 * @return a copy of the current event, which the caller may change and
+	 *         write back
+	 */
+	public EventEntry getCurrentEvent() {
+		synchronized (mCurrentEventLock) {
+			if (!mCurrentEventLoaded) {
+				loadCurrentEvent();
 			}
+			return mCurrentEvent != null ? mCurrentEvent.copy() : null;
 		}
-		cursor.close();
-		return tagSet;
+	}
 
+	/**
+	 * Reads the newest event from the database into the register.
+	 */
+	private void loadCurrentEvent() {
+		List<EventEntry> latest = mStore.fetchLatestEvents(1);
+		EventEntry latestEvent = latest.isEmpty() ? null : latest.get(0);
+		mLatestStartTime = latestEvent != null ? latestEvent.mStartTime : Long.MIN_VALUE;
+		// if end time is 0(initial value), we are still tracking.
+		mCurrentEvent = latestEvent != null && latestEvent.mEndTime == 0 ? latestEvent : null;
+		mCurrentEventLoaded = true;
 	}
 
 	/**
-	 * Retrieves the event that is currently in progress.
+	 * Updates the current event register after an event has been written.
+	 * The register keeps its own copy, so that later changes the caller makes
+	 * to the event do not reach it without being written.
 	 * 
-	 * @return the current event
+	 * @param event
+	 *            the event as it now is in the database
+	 * @return whether the write may have started or stopped the current event
 	 */
-	public EventEntry getCurrentEvent() {
-		EventCursor events = new EventCursor(mDbHelper.fetchSortedEvents(), this);
-		EventEntry currentEvent = null;
-		while (events.moveToNext()) {
-			// if end time is 0(initial value), we are still tracking.
-			EventEntry event = events.getEvent();
-			if (event.mEndTime == 0) {
-				currentEvent = event;
-				break;
-			}
-			// Once an event has begun before the current time, at this point 
-			// we know there can't be a current event
-			if (event.mStartTime < System.currentTimeMillis()) {
-				break;
+	private boolean registerWrite(EventEntry event) {
+		if (event == null)
+			return false;
+		mTimeline.eventWritten(event);
+		synchronized (mCurrentEventLock) {
+			if (!mCurrentEventLoaded)
+				return true; // the next read picks up the write
+			boolean isCurrent = mCurrentEvent != null && mCurrentEvent.mDbRowID == event.mDbRowID;
+			if (event.deleted || (isCurrent && event.mStartTime < mLatestStartTime)) {
+				// The newest event may have been removed; find it again.
+				if (isCurrent || event.mStartTime >= mLatestStartTime) {
+					mCurrentEventLoaded = false;
+					return true;
+				}
+			} else if (event.mStartTime >= mLatestStartTime) {
+				long previousRowID = mCurrentEvent != null ? mCurrentEvent.mDbRowID : -1;
+				mLatestStartTime = event.mStartTime;
+				mCurrentEvent = event.mEndTime == 0 ? event.copy() : null;
+				return previousRowID != (mCurrentEvent != null ? mCurrentEvent.mDbRowID : -1);
 			}
+			return false;
 		}
-		return currentEvent;
 	}
 
+	/**
+	 * Called after writes that may have started or stopped the current
+	 * event. Writes out the buffered fixes, then packs the tracks of the
+	 * written events that are now closed.
+	 * 
+	 * @param written
+	 *            the events whose writes may have started or stopped it
+	 */
+	private void currentEventChanged(List<EventEntry> written) {
+		if (!mGPSBuffer.flush())
+			return; // their fixes are not all in the database yet
+		for (EventEntry event : written) {
+			if (event.mEndTime != 0)
+				mStore.compactTrack(event.mDbRowID);
+		}
+	}
+
+	/**
+	 * Forces the current event to be read from the database again.
+	 */
+	private void invalidateCurrentEvent() {
+		synchronized (mCurrentEventLock) {
+			mCurrentEventLoaded = false;
+		}
+	}
+
+	/**
+	 * Buffers a GPS fix for the given event. The fix is written to the
+	 * database with the next batch; see {@link GPSFixBuffer}.
+	 */
 	public void addGPSCoordinates(GPSCoordinates coord, long eventRowID) {
-		mGPSHelper.createGPSEntry(eventRowID, coord.getLatitude(), coord.getLongitude(),
-				coord.getTime());
+		mGPSBuffer.add(eventRowID, coord);
+	}
 
+	/**
+	 * Writes any buffered GPS fixes to the database.
+	 */
+	public void flushGPSCoordinates() {
+		mGPSBuffer.flush();
+	}
+
+	/**
+	 * @return the buffer GPS fixes pass through on their way to the database
+	 */
+	public GPSFixBuffer getGPSFixBuffer() {
+		return mGPSBuffer;
 	}
 
 	/**
-	 * Adds a tag to the database
+	 * Adds a tag to the dictionary, unless it is already there. Tags of
+	 * written events are added automatically.
 	 * 
 	 * @param string
 	 *            - the tag to be added
+	 * @return the id of the tag, or -1 if it could not be added
 	 */
-	public void addTag(String tag) {
-		mTagHelper.createTagEntry(tag);
+	public long addTag(String tag) {
+		return mStore.addTag(tag);
 	}
 
 	/**
@@ -389,66 +749,60 @@ public class EventManager {
 		return dateToReturn;
 	}
 
-	/**
-	 * Gets the date of the first event in the cursor.
-	 * 
-	 * @param cursor
-	 *            a cursor of events
-	 * @return the data of the first event, or null if the cursor is empty
-	 */
-	private static Date getFirstDate(EventCursor cursor) {
-		if (cursor.moveToFirst()) {
-			EventEntry latestEvent = cursor.getEvent();
-			return new Date(latestEvent.mStartTime);
-		} else {
-			return null;
+	private List<EventEntry> fetchEvents(long[] rowIds) {
+		List<EventEntry> events = new ArrayList<EventEntry>(rowIds.length);
+		for (long rowId : rowIds) {
+			EventEntry event = mStore.fetchEvent(rowId);
+			if (event != null)
+				events.add(event);
 		}
+		return events;
 	}
 
 	/**
-	 * @return a cursor over all events (including deleted) in the database
+	 * @return the start of the day with the given key, or null for
+	 *         {@link DayKeys#NO_DAY}
 	 */
-	private EventCursor actuallyFetchAllEvents() {
-		return new EventCursor(mDbHelper.fetchAllEvents(), this);
+	private static Date dayToDate(int day) {
+		return day == DayKeys.NO_DAY ? null : new Date(DayKeys.dayStart(day));
 	}
 
 	/**
-	 * Delete the event with the given rowId
+	 * Brings the cached state up to date after events were permanently
+	 * deleted.
 	 * 
-	 * @param rowId
-	 *            id of note to delete
-	 * @return true if deleted, false otherwise
+	 * @param nDeleted
+	 *            the number of events deleted
+	 * @return nDeleted
 	 */
-	private boolean permanentlyDeleteEvent(long rowId) {
-		boolean successful = mDbHelper.deleteEvent(rowId);
-		if (successful) {
-			getPredictionService().deleteEvent(fetchEvent(rowId));
-			deleteGPSEntries(rowId);
+	private int eventsPurged(int nDeleted) {
+		if (nDeleted > 0) {
+			invalidateCurrentEvent();
+			mTimeline.invalidate();
+			EventWriteListener listener = mWriteListener;
+			if (listener != null)
+				listener.eventsPurged();
 		}
-		return successful;
+		return nDeleted;
 	}
 
 	/**
-	 * Delete all of the GPSEntrys with the given eventRowID.
-	 * 
-	 * @param eventRowID
-	 *            id of gpsEntrys to delete
-	 * @return true if deleted, false otherwise
+	 * Puts events read from the store in a cursor, for the screens. The
+	 * screens read a day or a page of events at a time, so copying them is
+	 * cheap next to reading them.
 	 */
-	private boolean deleteGPSEntries(long eventRowID) {
-		Cursor cursor = mGPSHelper.getGPSCoordinates(eventRowID);
-
-		if (cursor.getCount() > 0) {
-			while (cursor.moveToNext()) {
-				long rowID = cursor.getColumnIndex(GPSDbAdapter.KEY_ROWID);
-				mGPSHelper.deleteEntry(rowID);
+	private static EventCursor toCursor(List<EventEntry> events) {
+		EventKey[] keys = EventKey.values();
+		MatrixCursor cursor = new MatrixCursor(EventKey.columnNames(), events.size());
+		Object[] row = new Object[keys.length];
+		for (EventEntry event : events) {
+			for (int i = 0; i < keys.length; i++) {
+				Object value = event.getValue(keys[i]);
+				// Flags are stored as integers.
+				row[i] = value instanceof Boolean ? (((Boolean) value) ? 1 : 0) : value;
 			}
+			cursor.addRow(row);
 		}
-		cursor.close();
-		return true;
-	}
-
-	private PredictionService getPredictionService() {
-		return EventActivity.mPredictionService;
+		return new EventCursor(cursor);
 	}
 }
@@ -0,0 +1,84 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the event name dictionary. Each name has a stable
+ * integer id, so that code working with many events, like the prediction
+ * model, can hold small ids and only look up the strings for display.
+ */
+public final class EventNames {
+	/** The id of no name. */
+	public static final int NO_ID = -1;
+	/** The dictionary without any names. */
+	public static final EventNames EMPTY = new EventNames(new int[0], new String[0],
+			new int[0], new long[0]);
+
+	/** The ids in ascending order, with the other arrays parallel to it. */
+	private final int[] mIds;
+	private final String[] mNames;
+	private final int[] mOccurrences;
+	private final long[] mLastSeen;
+	private final Map<String, Integer> mIdsByName;
+
+	EventNames(int[] ids, String[] names, int[] occurrences, long[] lastSeen) {
+		mIds = ids;
+		mNames = names;
+		mOccurrences = occurrences;
+		mLastSeen = lastSeen;
+		mIdsByName = new HashMap<String, Integer>(names.length * 2);
+		for (int i = 0; i < names.length; i++)
+			mIdsByName.put(names[i], ids[i]);
+	}
+
+	/**
+	 * @return the number of names, including those no longer used
+	 */
+	public int size() {
+		return mIds.length;
+	}
+
+	/**
+	 * @return the id of the name at the given position, in order of creation
+	 */
+	public int idAt(int position) {
+		return mIds[position];
+	}
+
+	/**
+	 * @return the id of the name, or {@link #NO_ID} if it is not in the
+	 *         dictionary
+	 */
+	public int getId(String name) {
+		Integer id = name == null ? null : mIdsByName.get(name);
+		return id == null ? NO_ID : id;
+	}
+
+	/**
+	 * @return the name with the given id, or null if there is none
+	 */
+	public String getName(int id) {
+		int position = Arrays.binarySearch(mIds, id);
+		return position < 0 ? null : mNames[position];
+	}
+
+	/**
+	 * @return the number of undeleted events with the name, or 0 if there is
+	 *         none
+	 */
+	public int getOccurrences(int id) {
+		int position = Arrays.binarySearch(mIds, id);
+		return position < 0 ? 0 : mOccurrences[position];
+	}
+
+	/**
+	 * @return the latest start time of an event with the name, or 0 if there
+	 *         is none
+	 */
+	public long getLastSeen(int id) {
+		int position = Arrays.binarySearch(mIds, id);
+		return position < 0 ? 0 : mLastSeen[position];
+	}
+}
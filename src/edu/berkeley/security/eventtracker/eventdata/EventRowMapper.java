@@ -0,0 +1,85 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.Cursor;
+
+/**
+ * Maps rows of an event cursor to {@link EventEntry} objects. Column positions
+ * are looked up once, when the mapper is created, instead of by name for every
+ * field of every row. A mapper is only valid for cursors with the same columns
+ * as the one it was created from.
+ */
+public final class EventRowMapper {
+	/** The position of each EventKey, indexed by ordinal, or -1 if absent. */
+	private final int[] mColumnIndexes;
+	/** The EventKey of each column, indexed by position, or null if unknown. */
+	private final EventKey[] mColumnKeys;
+
+	/**
+	 * @param cursor
+	 *            a cursor over the event table
+	 */
+	public EventRowMapper(Cursor cursor) {
+		EventKey[] keys = EventKey.values();
+		mColumnIndexes = new int[keys.length];
+		for (EventKey key : keys)
+			mColumnIndexes[key.ordinal()] = cursor.getColumnIndex(key.columnName());
+		mColumnKeys = new EventKey[cursor.getColumnCount()];
+		for (int i = 0; i < mColumnKeys.length; i++)
+			mColumnKeys[i] = EventKey.fromColumnName(cursor.getColumnName(i));
+	}
+
+	/**
+	 * @return the position of the given column, or -1 if the cursor lacks it
+	 */
+	public int getColumnIndex(EventKey key) {
+		return mColumnIndexes[key.ordinal()];
+	}
+
+	/**
+	 * @return the EventKey of the column at the given position, or null if
+	 *         the column is not part of the event table
+	 */
+	public EventKey getColumnKey(int columnIndex) {
+		return mColumnKeys[columnIndex];
+	}
+
+	/**
+	 * Creates an EventEntry for the row the cursor is at.
+	 *
+	 * @return the event, or null if the cursor is not at a row
+	 */
+	public EventEntry map(Cursor cursor) {
+		return isAtRow(cursor) ? mapInto(cursor, new EventEntry(-1, null, null, 0, 0, 0, null,
+				false, false, true, null)) : null;
+	}
+
+	/**
+	 * Copies the row the cursor is at into an existing EventEntry, so that a
+	 * caller walking many rows can reuse a single entry.
+	 *
+	 * @param event
+	 *            the entry to overwrite
+	 * @return event, or null if the cursor is not at a row
+	 */
+	public EventEntry mapInto(Cursor cursor, EventEntry event) {
+		if (!isAtRow(cursor))
+			return null;
+		event.mDbRowID = cursor.getLong(getColumnIndex(EventKey.ROW_ID));
+		event.mName = cursor.getString(getColumnIndex(EventKey.NAME));
+		event.mNotes = cursor.getString(getColumnIndex(EventKey.NOTES));
+		event.mStartTime = cursor.getLong(getColumnIndex(EventKey.START_TIME));
+		event.mEndTime = cursor.getLong(getColumnIndex(EventKey.END_TIME));
+		event.mUpdateTime = cursor.getLong(getColumnIndex(EventKey.UPDATE_TIME));
+		event.mUUID = cursor.getString(getColumnIndex(EventKey.UUID));
+		event.mTag = cursor.getString(getColumnIndex(EventKey.TAG));
+		event.receivedAtServer = cursor.getInt(getColumnIndex(EventKey.RECEIVED_AT_SERVER)) != 0;
+		event.deleted = cursor.getInt(getColumnIndex(EventKey.IS_DELETED)) != 0;
+		event.persisted = true;
+		return event;
+	}
+
+	private static boolean isAtRow(Cursor cursor) {
+		return cursor != null && !cursor.isClosed() && !cursor.isBeforeFirst()
+				&& !cursor.isAfterLast();
+	}
+}
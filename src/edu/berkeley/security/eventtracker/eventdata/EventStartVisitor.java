@@ -0,0 +1,21 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+/**
+ * Receives how each event started, one event at a time, from a single read
+ * of the events and their first GPS fixes. Used to train the prediction
+ * model without reading whole events and tracks.
+ */
+public interface EventStartVisitor {
+
+	/**
+	 * @param rowId
+	 *            the row id of the event
+	 * @param name
+	 *            the name of the event, possibly empty
+	 * @param startTime
+	 *            when the event started
+	 * @param firstFix
+	 *            the earliest GPS fix of the event, or null if it has none
+	 */
+	void visit(long rowId, String name, long startTime, GPSCoordinates firstFix);
+}
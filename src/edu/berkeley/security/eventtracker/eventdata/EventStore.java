@@ -0,0 +1,276 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.List;
+
+/**
+ * Where events, their GPS fixes and tags are kept. {@link EventManager} does
+ * its writes and lookups through a store; {@link SQLiteEventStore} is the
+ * database of the app, and {@link MemoryEventStore} keeps everything in
+ * memory, for benchmarks and simulations that should not need a device.
+ * <p>
+ * Only plain Java types cross this interface, so that everything the manager
+ * does, from prediction training to sync, runs on any store.
+ */
+public interface EventStore {
+
+	/**
+	 * Receives the events of a scan one at a time.
+	 */
+	interface EventVisitor {
+		/**
+		 * @param event
+		 *            the event. The store may reuse the entry for the next
+		 *            call, so it must be copied to be kept.
+		 */
+		void visit(EventEntry event);
+	}
+
+	void open();
+
+	void close();
+
+	/**
+	 * Creates an event.
+	 *
+	 * @return the row id of the new event, or -1 if it could not be created
+	 */
+	long createEvent(String name, String notes, long startTime, long endTime, String uuid,
+			boolean receivedAtServer, String tag);
+
+	/**
+	 * Overwrites every field of an event.
+	 *
+	 * @return whether there was an event with the given row id
+	 */
+	boolean updateEvent(long rowId, String name, String notes, long startTime, long endTime,
+			String uuid, boolean deleted, boolean receivedAtServer, String tag);
+
+	/**
+	 * Creates or updates each of the given events at once. Events with a row
+	 * id of -1 are created and have their row id set.
+	 *
+	 * @return for each event, whether it was successfully written
+	 */
+	boolean[] writeEvents(List<EventEntry> events, boolean receivedAtServer);
+
+	/**
+	 * Marks an event as deleted, to be sent to the server as such.
+	 *
+	 * @return whether there was an event with the given row id
+	 */
+	boolean markDeleted(long rowId);
+
+	/**
+	 * Permanently deletes every event with its GPS fixes.
+	 *
+	 * @return the number of events deleted
+	 */
+	int purgeAllEvents();
+
+	/**
+	 * Permanently deletes the events starting in [startTime, endTime) with
+	 * their GPS fixes.
+	 *
+	 * @return the number of events deleted
+	 */
+	int purgeEvents(long startTime, long endTime);
+
+	/**
+	 * Permanently deletes the events with the given tag with their GPS fixes.
+	 *
+	 * @return the number of events deleted
+	 */
+	int purgeEventsWithTag(String tag);
+
+	/**
+	 * @return the event with the given row id, deleted or not, or null
+	 */
+	EventEntry fetchEvent(long rowId);
+
+	/**
+	 * @return the event with the given UUID, deleted or not, or null
+	 */
+	EventEntry fetchEvent(String uuid);
+
+	/**
+	 * @return the events with the given name, deleted or not
+	 */
+	List<EventEntry> fetchEvents(String name);
+
+	/**
+	 * Reads a single event with the given name, without reading the others.
+	 *
+	 * @return an event with the given name, deleted or not, or null
+	 */
+	EventEntry fetchFirstEvent(String name);
+
+	/**
+	 * Counts the events with the given name without reading them.
+	 *
+	 * @return the number of events with the given name, deleted or not
+	 */
+	int countEvents(String name);
+
+	/**
+	 * @return the undeleted events starting strictly between the two times,
+	 *         latest first
+	 */
+	List<EventEntry> fetchSortedEvents(long startTime, long endTime);
+
+	/**
+	 * @return at most the given number of undeleted events, latest first
+	 */
+	List<EventEntry> fetchLatestEvents(int limit);
+
+	/**
+	 * Shows every undeleted event to the visitor, in no particular order.
+	 */
+	void scanEvents(EventVisitor visitor);
+
+	/**
+	 * Shows the name, start time and first GPS fix of every undeleted event
+	 * to the visitor, in no particular order, without reading whole tracks.
+	 */
+	void scanEventStarts(EventStartVisitor visitor);
+
+	/**
+	 * @return the events last written after the given time, deleted or not
+	 */
+	List<EventEntry> fetchEventsUpdatedSince(long updateTime);
+
+	/**
+	 * Finds the undeleted events matching every word of the query in their
+	 * name, notes or tag, each word also matching longer words it is a prefix
+	 * of. Words are split as {@link SearchWords} splits them.
+	 *
+	 * @param offset
+	 *            the number of matches to skip
+	 * @param limit
+	 *            the most matches to return
+	 * @return the matches, those whose name matches first, then the latest
+	 *         first; empty if the query has no words
+	 */
+	List<EventEntry> searchEvents(String query, int offset, int limit);
+
+	/**
+	 * Totals the time spent per tag over a range of days. Only finished,
+	 * undeleted events count, and events spanning midnight are split between
+	 * the days they touch.
+	 *
+	 * @param firstDay
+	 *            the key of the first day, see {@link DayKeys#dayKey(long)}
+	 * @param lastDay
+	 *            the key of the last day, inclusive
+	 * @param perDay
+	 *            whether to total each day separately
+	 * @return the totals, longest first within each day
+	 */
+	List<RollupTotal> fetchTagTotals(int firstDay, int lastDay, boolean perDay);
+
+	/**
+	 * Totals the time spent per event name over a range of days.
+	 *
+	 * @see #fetchTagTotals(int, int, boolean)
+	 */
+	List<RollupTotal> fetchNameTotals(int firstDay, int lastDay, boolean perDay);
+
+	/**
+	 * @return the key of the latest day before the given one with an
+	 *         undeleted event, or {@link DayKeys#NO_DAY}
+	 */
+	int fetchDayBefore(int day);
+
+	/**
+	 * @return the key of the earliest day after the given one with an
+	 *         undeleted event, or {@link DayKeys#NO_DAY}
+	 */
+	int fetchDayAfter(int day);
+
+	/**
+	 * @return the sequence number up to which to read and then acknowledge
+	 *         unsynced events, 0 if there are none. Every local write of a
+	 *         finished event that the server has not received is journaled
+	 *         with the next sequence number.
+	 */
+	long fetchSyncSequence();
+
+	/**
+	 * @return the events journaled up to the given sequence number, each
+	 *         once, in the order they were last written
+	 */
+	List<EventEntry> fetchUnsyncedEvents(long upToSequence);
+
+	/**
+	 * Marks the events journaled up to the given sequence number as received
+	 * by the server, except those written again since, and drops their
+	 * journal entries.
+	 */
+	void acknowledgeSync(long upToSequence);
+
+	/**
+	 * Permanently deletes the events deleted before the given time whose
+	 * deletion the server has received, with their GPS fixes.
+	 *
+	 * @param budgetMillis
+	 *            the time after which the store should stop, if it works in
+	 *            batches
+	 * @return the number of events removed
+	 */
+	int compactTombstones(long deletedBefore, long budgetMillis);
+
+	/**
+	 * Moves finished events that started before the given time out of the
+	 * way of the reads for the screens. Archived events are still read,
+	 * searched and written like the others.
+	 *
+	 * @param budgetMillis
+	 *            the time after which the store should stop, if it works in
+	 *            batches
+	 * @return the number of events archived
+	 */
+	int archiveEvents(long startedBefore, long budgetMillis);
+
+	/**
+	 * Returns the space left by removed events, if the store holds on to it.
+	 */
+	void reclaimSpace();
+
+	/**
+	 * @return the dictionary of event names
+	 */
+	EventNames fetchEventNames();
+
+	/**
+	 * Records GPS fixes. The arrays are parallel; only the first count
+	 * entries are used.
+	 */
+	void createGPSEntries(long[] eventRowIDs, double[] latitudes, double[] longitudes,
+			long[] times, int count);
+
+	/**
+	 * @return every fix of the given event, in time order
+	 */
+	List<GPSCoordinates> getTrack(long eventRowID);
+
+	/**
+	 * Gives the store a chance to pack the fixes of an event that has just
+	 * closed.
+	 *
+	 * @param eventRowID
+	 *            the row id of the event
+	 * @return whether any fixes were packed
+	 */
+	boolean compactTrack(long eventRowID);
+
+	/**
+	 * @return every tag in the order they were created
+	 */
+	List<Tag> getTagList();
+
+	/**
+	 * Adds a tag to the dictionary, unless it is already there.
+	 *
+	 * @return the id of the tag, or -1 if it could not be added
+	 */
+	long addTag(String tag);
+}
@@ -0,0 +1,46 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.List;
+
+/**
+ * Told about the events an {@link EventManager} writes, after they are
+ * written. The prediction service keeps its model up to date this way, and a
+ * manager without a listener, such as one running off the device, simply
+ * tells no one.
+ */
+public interface EventWriteListener {
+
+	/**
+	 * @param event
+	 *            the event that was created
+	 */
+	void addNewEvent(EventEntry event);
+
+	/**
+	 * @param event
+	 *            the existing event that was written again
+	 */
+	void updateEvent(EventEntry event);
+
+	/**
+	 * Called once for a batch of events written together.
+	 * 
+	 * @param newEvents
+	 *            the events that were created
+	 * @param updatedEvents
+	 *            the existing events that were updated
+	 */
+	void eventsChanged(List<EventEntry> newEvents, List<EventEntry> updatedEvents);
+
+	/**
+	 * @param event
+	 *            the event that was marked as deleted
+	 */
+	void deleteEvent(EventEntry event);
+
+	/**
+	 * Called after events were permanently deleted, which cannot be told
+	 * apart one by one.
+	 */
+	void eventsPurged();
+}
@@ -16,10 +16,18 @@
 
 package edu.berkeley.security.eventtracker.eventdata;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 public class GPSDbAdapter extends AbstractDbAdapter {
 	public static final String KEY_EVENT_ROWID = "eventRowID";
@@ -27,7 +35,26 @@ public class GPSDbAdapter extends AbstractDbAdapter {
 	public static final String KEY_LONGITUDE = "longitude";
 	public static final String KEY_GPSTIME = "timeOfRecording";
 	public static final String KEY_ROWID = "_id";
-	private static final String DATABASE_TABLE = "gpsData";
+	static final String DATABASE_TABLE = "gpsData";
+
+	/**
+	 * Fixes of closed events are packed into one row of this table per event,
+	 * see {@link GPSTrackCodec}. Fixes of the open event stay in gpsData
+	 * until it closes.
+	 */
+	static final String TRACK_TABLE = "gpsTracks";
+	public static final String KEY_POINT_COUNT = "pointCount";
+	public static final String KEY_TRACK = "track";
+	static final String TABLE_CREATE_GPSTRACKS = "create table " + TRACK_TABLE + " ("
+			+ KEY_EVENT_ROWID + " integer primary key, " + KEY_POINT_COUNT + " integer, "
+			+ KEY_TRACK + " blob);";
+
+	private static final Comparator<GPSCoordinates> BY_TIME = new Comparator<GPSCoordinates>() {
+		@Override
+		public int compare(GPSCoordinates a, GPSCoordinates b) {
+			return a.getTime() < b.getTime() ? -1 : (a.getTime() == b.getTime() ? 0 : 1);
+		}
+	};
 
 	/**
 	 * Constructor - takes the context to allow the database to be
@@ -52,6 +79,36 @@ public class GPSDbAdapter extends AbstractDbAdapter {
 
 	}
 
+	/**
+	 * Inserts the first count fixes of the given arrays in a single
+	 * transaction. Either every fix is inserted or none are.
+	 * 
+	 * @param count
+	 *            the number of fixes to insert
+	 * @throws SQLException
+	 *             if any of the fixes could not be inserted
+	 */
+	public void createGPSEntries(long[] eventRowIDs, double[] latitudes, double[] longitudes,
+			long[] times, int count) throws SQLException {
+		SQLiteStatement insert = mDb.compileStatement(String.format(
+				"INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)", DATABASE_TABLE,
+				KEY_EVENT_ROWID, KEY_LATITUDE, KEY_LONGITUDE, KEY_GPSTIME));
+		mDb.beginTransaction();
+		try {
+			for (int i = 0; i < count; i++) {
+				insert.bindLong(1, eventRowIDs[i]);
+				insert.bindDouble(2, latitudes[i]);
+				insert.bindDouble(3, longitudes[i]);
+				insert.bindLong(4, times[i]);
+				insert.executeInsert();
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			insert.close();
+		}
+	}
+
 	/**
 	 * Delete the activity with the given rowId
 	 * 
@@ -105,4 +162,125 @@ public class GPSDbAdapter extends AbstractDbAdapter {
 
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Returns every fix of the given event in time order, whether packed,
+	 * not, or archived.
+	 * 
+	 * @param eventRowID
+	 *            the row id of the event
+	 * @return the fixes
+	 */
+	public List<GPSCoordinates> getTrack(long eventRowID) {
+		List<GPSCoordinates> track = readTrack(mDb, eventRowID);
+		if (track.isEmpty())
+			readPacked(mDb, EventArchive.TRACK_TABLE, eventRowID, track);
+		return track;
+	}
+
+	/**
+	 * Packs the unpacked fixes of an event that has just closed.
+	 * 
+	 * @param eventRowID
+	 *            the row id of the event
+	 * @return whether the event had fixes to pack
+	 */
+	public boolean compactTrack(long eventRowID) {
+		return compactTrack(mDb, eventRowID);
+	}
+
+	/**
+	 * Packs the fixes of an event that still has rows in gpsData into its row
+	 * in gpsTracks, merging them with any fixes packed before. Only touches
+	 * the rows of that event, through the index on gpsData(eventRowID).
+	 * 
+	 * @param db
+	 *            the database to compact
+	 * @param eventRowID
+	 *            the row id of a closed event
+	 * @return whether the event had fixes to pack
+	 */
+	static boolean compactTrack(SQLiteDatabase db, long eventRowID) {
+		String where = KEY_EVENT_ROWID + "=" + eventRowID;
+		if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + DATABASE_TABLE + " WHERE "
+				+ where, null) == 0)
+			return false;
+		db.beginTransaction();
+		try {
+			List<GPSCoordinates> track = readTrack(db, eventRowID);
+			ContentValues values = new ContentValues();
+			values.put(KEY_EVENT_ROWID, eventRowID);
+			values.put(KEY_POINT_COUNT, track.size());
+			values.put(KEY_TRACK, GPSTrackCodec.encode(track));
+			db.replace(TRACK_TABLE, null, values);
+			db.delete(DATABASE_TABLE, where, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return true;
+	}
+
+	/**
+	 * Packs the fixes of every closed event that still has rows in gpsData.
+	 * This scans the whole of gpsData, so it is only for upgrading a database
+	 * from before tracks were packed, and for benchmarks.
+	 * 
+	 * @param db
+	 *            the database to compact
+	 * @return the number of tracks packed
+	 */
+	static int compactAllClosedTracks(SQLiteDatabase db) {
+		Cursor closed = db.rawQuery("SELECT DISTINCT " + KEY_EVENT_ROWID + " FROM "
+				+ DATABASE_TABLE + " WHERE " + KEY_EVENT_ROWID + " IN (SELECT "
+				+ EventKey.ROW_ID.columnName() + " FROM "
+				+ EventDbAdapter.DATABASE_TABLE + " WHERE "
+				+ EventKey.END_TIME.columnName() + " != 0)", null);
+		long[] eventRowIDs = new long[closed.getCount()];
+		for (int i = 0; closed.moveToNext(); i++)
+			eventRowIDs[i] = closed.getLong(0);
+		closed.close();
+
+		db.beginTransaction();
+		try {
+			for (long eventRowID : eventRowIDs)
+				compactTrack(db, eventRowID);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return eventRowIDs.length;
+	}
+
+	/**
+	 * Reads the packed and unpacked fixes of an event, in time order.
+	 */
+	private static List<GPSCoordinates> readTrack(SQLiteDatabase db, long eventRowID) {
+		List<GPSCoordinates> track = new ArrayList<GPSCoordinates>();
+		readPacked(db, TRACK_TABLE, eventRowID, track);
+		int nPacked = track.size();
+
+		Cursor rows = db.query(DATABASE_TABLE, new String[] { KEY_LATITUDE, KEY_LONGITUDE,
+				KEY_GPSTIME }, KEY_EVENT_ROWID + "=" + eventRowID, null, null, null, KEY_GPSTIME);
+		while (rows.moveToNext())
+			track.add(new GPSCoordinates(rows.getDouble(0), rows.getDouble(1), rows.getLong(2)));
+		rows.close();
+
+		if (nPacked > 0 && track.size() > nPacked
+				&& track.get(nPacked).getTime() < track.get(nPacked - 1).getTime())
+			Collections.sort(track, BY_TIME);
+		return track;
+	}
+
+	/**
+	 * Appends the fixes of an event packed in the given track table.
+	 */
+	private static void readPacked(SQLiteDatabase db, String table, long eventRowID,
+			List<GPSCoordinates> track) {
+		Cursor packed = db.query(table, new String[] { KEY_TRACK }, KEY_EVENT_ROWID + "="
+				+ eventRowID, null, null, null, null);
+		if (packed.moveToFirst())
+			GPSTrackCodec.decode(packed.getBlob(0), track);
+		packed.close();
+	}
+
+}
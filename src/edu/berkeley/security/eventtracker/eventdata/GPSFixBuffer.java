@@ -0,0 +1,450 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.util.Log;
+import edu.berkeley.security.eventtracker.EventActivity;
+import edu.berkeley.security.eventtracker.eventdata.DataChange.Kind;
+import edu.berkeley.security.eventtracker.eventdata.DataChange.Table;
+
+/**
+ * Collects GPS fixes in a bounded in-memory buffer and writes them to the
+ * database in batches, one transaction per batch. A flush happens once enough
+ * fixes are buffered, once the oldest buffered fix has waited long enough, or
+ * when asked to (for example when an event starts or stops).
+ * <p>
+ * A flush swaps the buffered fixes out and writes them without holding the
+ * buffer's lock, so fixes keep arriving while the database is busy.
+ * <p>
+ * Every buffered fix is also appended to a spill file, so fixes survive the
+ * process being killed. When a flush swaps the fixes out, the spill file is
+ * renamed, and new fixes go to a new one; the renamed file is only deleted
+ * once the fixes it covers are committed. If the write fails, the fixes go
+ * back into the buffer and both files are replaced by one holding exactly
+ * the buffered fixes. The spill files are replayed into the database the
+ * next time the buffer is created, skipping fixes that are already there.
+ */
+public class GPSFixBuffer {
+	/** The most fixes held in memory. Older fixes are dropped beyond this. */
+	static final int CAPACITY = 128;
+	/** The number of buffered fixes that triggers a flush. */
+	static final int FLUSH_THRESHOLD = 16;
+	/** The longest a fix waits in the buffer before a flush. */
+	static final long FLUSH_DELAY_MILLIS = 10 * 60 * 1000;
+	private static final String SPILL_FILE = "gps_spill";
+	/** The spill file of the fixes a flush is writing. */
+	private static final String FLUSHING_SPILL_FILE = SPILL_FILE + ".flushing";
+	private static final String TEMPORARY_SPILL_FILE = SPILL_FILE + ".tmp";
+
+	private final Context mCtx;
+	private final EventStore mStore;
+	private final ScheduledExecutorService mFlusher = Executors
+			.newSingleThreadScheduledExecutor();
+	private ScheduledFuture<?> mScheduledFlush;
+	private DataOutputStream mSpill;
+
+	// The buffered fixes, oldest first.
+	private long[] mEventRowIds = new long[CAPACITY];
+	private double[] mLatitudes = new double[CAPACITY];
+	private double[] mLongitudes = new double[CAPACITY];
+	private long[] mTimes = new long[CAPACITY];
+	private int mSize;
+
+	// The fixes a flush is writing, swapped out of the buffer.
+	private long[] mFlushingRowIds = new long[CAPACITY];
+	private double[] mFlushingLatitudes = new double[CAPACITY];
+	private double[] mFlushingLongitudes = new double[CAPACITY];
+	private long[] mFlushingTimes = new long[CAPACITY];
+	/** Held for the whole of a flush, so that only one writes at a time. */
+	private final Object mFlushLock = new Object();
+
+	private long mBufferedCount;
+	private long mFlushedCount;
+	private long mDroppedCount;
+
+	/**
+	 * Creates the buffer and writes any fixes spilled by a previous process
+	 * to the database.
+	 *
+	 * @param context
+	 *            the context owning the spill file
+	 * @param store
+	 *            an open store to flush fixes to
+	 */
+	GPSFixBuffer(Context context, EventStore store) {
+		mCtx = context;
+		mStore = store;
+		synchronized (this) {
+			recoverSpill(FLUSHING_SPILL_FILE);
+			recoverSpill(SPILL_FILE);
+			dropRecorded();
+			rewriteSpill();
+		}
+		flush();
+	}
+
+	/**
+	 * Buffers a fix for the given event. Never blocks on the database.
+	 *
+	 * @param eventRowID
+	 *            the row id of the event the fix belongs to
+	 * @param coord
+	 *            the fix
+	 */
+	public synchronized void add(long eventRowID, GPSCoordinates coord) {
+		append(eventRowID, coord.getLatitude(), coord.getLongitude(), coord.getTime());
+		writeSpill(eventRowID, coord);
+		mBufferedCount++;
+		if (mSize >= FLUSH_THRESHOLD) {
+			scheduleFlush(0);
+		} else if (mScheduledFlush == null) {
+			scheduleFlush(FLUSH_DELAY_MILLIS);
+		}
+	}
+
+	/**
+	 * Writes every buffered fix to the database in a single transaction. The
+	 * buffer is only locked to swap the fixes out, not during the write. If
+	 * the write fails, the fixes go back into the buffer for the next
+	 * attempt.
+	 *
+	 * @return whether every fix buffered before the call is in the database
+	 */
+	public boolean flush() {
+		synchronized (mFlushLock) {
+			int count;
+			synchronized (this) {
+				if (mScheduledFlush != null) {
+					mScheduledFlush.cancel(false);
+					mScheduledFlush = null;
+				}
+				if (mSize == 0)
+					return true;
+				count = swapOut();
+			}
+			try {
+				mStore.createGPSEntries(mFlushingRowIds, mFlushingLatitudes, mFlushingLongitudes,
+						mFlushingTimes, count);
+			} catch (SQLException e) {
+				Log.e(EventActivity.LOG_TAG, "Failed to flush " + count + " GPS fixes.", e);
+				synchronized (this) {
+					putBack(count);
+					scheduleFlush(FLUSH_DELAY_MILLIS);
+				}
+				return false;
+			}
+			// The fixes are committed, so their spill file is no longer needed.
+			mCtx.deleteFile(FLUSHING_SPILL_FILE);
+			synchronized (this) {
+				mFlushedCount += count;
+			}
+			publishFlushed(count);
+			return true;
+		}
+	}
+
+	/**
+	 * Publishes the flushed fixes, once per run of fixes of the same event on
+	 * the same day.
+	 */
+	private void publishFlushed(int count) {
+		ChangeBus bus = ChangeBus.getInstance();
+		Calendar calendar = Calendar.getInstance();
+		long rowId = -1;
+		int day = DayKeys.NO_DAY;
+		for (int i = 0; i < count; i++) {
+			int fixDay = DayKeys.dayKey(calendar, mFlushingTimes[i]);
+			if (mFlushingRowIds[i] == rowId && fixDay == day)
+				continue;
+			rowId = mFlushingRowIds[i];
+			day = fixDay;
+			bus.publish(new DataChange(Table.GPS, Kind.INSERTED, rowId, day, DayKeys.NO_DAY));
+		}
+	}
+
+	/**
+	 * Flushes the buffer and stops the background flushes.
+	 */
+	void close() {
+		flush();
+		synchronized (this) {
+			mFlusher.shutdown();
+			closeSpill();
+		}
+	}
+
+	/**
+	 * @return the number of fixes accepted since the buffer was created
+	 */
+	public synchronized long getBufferedCount() {
+		return mBufferedCount;
+	}
+
+	/**
+	 * @return the number of fixes written to the database
+	 */
+	public synchronized long getFlushedCount() {
+		return mFlushedCount;
+	}
+
+	/**
+	 * @return the number of fixes dropped because the buffer was full
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * @return the number of fixes waiting to be written
+	 */
+	public synchronized int getPendingCount() {
+		return mSize;
+	}
+
+	/**
+	 * Adds a fix to the end of the buffer, dropping the oldest fix if the
+	 * buffer is full.
+	 */
+	private void append(long eventRowID, double latitude, double longitude, long time) {
+		if (mSize == CAPACITY) {
+			System.arraycopy(mEventRowIds, 1, mEventRowIds, 0, CAPACITY - 1);
+			System.arraycopy(mLatitudes, 1, mLatitudes, 0, CAPACITY - 1);
+			System.arraycopy(mLongitudes, 1, mLongitudes, 0, CAPACITY - 1);
+			System.arraycopy(mTimes, 1, mTimes, 0, CAPACITY - 1);
+			mSize--;
+			mDroppedCount++;
+		}
+		mEventRowIds[mSize] = eventRowID;
+		mLatitudes[mSize] = latitude;
+		mLongitudes[mSize] = longitude;
+		mTimes[mSize] = time;
+		mSize++;
+	}
+
+	/**
+	 * Moves the buffered fixes to the flushing arrays and starts a new spill
+	 * file for the fixes that arrive during the write.
+	 *
+	 * @return the number of fixes moved
+	 */
+	private int swapOut() {
+		int count = mSize;
+		File flushing = mCtx.getFileStreamPath(FLUSHING_SPILL_FILE);
+		// A failed flush may not have managed to merge the spill files.
+		if (flushing.exists())
+			rewriteSpill();
+		closeSpill();
+		// If they still are not, keep appending; fixes spilled twice are
+		// dropped on recovery.
+		if (!flushing.exists())
+			mCtx.getFileStreamPath(SPILL_FILE).renameTo(flushing);
+		swapArrays();
+		mSize = 0;
+		return count;
+	}
+
+	/**
+	 * Exchanges the buffered fixes with the flushing ones.
+	 */
+	private void swapArrays() {
+		long[] rowIds = mFlushingRowIds;
+		double[] latitudes = mFlushingLatitudes;
+		double[] longitudes = mFlushingLongitudes;
+		long[] times = mFlushingTimes;
+		mFlushingRowIds = mEventRowIds;
+		mFlushingLatitudes = mLatitudes;
+		mFlushingLongitudes = mLongitudes;
+		mFlushingTimes = mTimes;
+		mEventRowIds = rowIds;
+		mLatitudes = latitudes;
+		mLongitudes = longitudes;
+		mTimes = times;
+	}
+
+	/**
+	 * Puts the fixes of a failed flush back in front of those buffered since,
+	 * dropping the oldest if they no longer all fit, and replaces the spill
+	 * files with one holding exactly the buffered fixes.
+	 *
+	 * @param count
+	 *            the number of fixes the flush took
+	 */
+	private void putBack(int count) {
+		int dropped = Math.max(0, count + mSize - CAPACITY);
+		int kept = count - dropped;
+		System.arraycopy(mFlushingRowIds, dropped, mFlushingRowIds, 0, kept);
+		System.arraycopy(mFlushingLatitudes, dropped, mFlushingLatitudes, 0, kept);
+		System.arraycopy(mFlushingLongitudes, dropped, mFlushingLongitudes, 0, kept);
+		System.arraycopy(mFlushingTimes, dropped, mFlushingTimes, 0, kept);
+		System.arraycopy(mEventRowIds, 0, mFlushingRowIds, kept, mSize);
+		System.arraycopy(mLatitudes, 0, mFlushingLatitudes, kept, mSize);
+		System.arraycopy(mLongitudes, 0, mFlushingLongitudes, kept, mSize);
+		System.arraycopy(mTimes, 0, mFlushingTimes, kept, mSize);
+		int size = kept + mSize;
+		swapArrays();
+		mSize = size;
+		mDroppedCount += dropped;
+		rewriteSpill();
+	}
+
+	private void scheduleFlush(long delayMillis) {
+		if (mScheduledFlush != null)
+			mScheduledFlush.cancel(false);
+		mScheduledFlush = mFlusher.schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads the fixes left in a spill file by a previous process into the
+	 * buffer. A record cut short by the process dying is ignored.
+	 */
+	private void recoverSpill(String file) {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(mCtx.openFileInput(file)));
+		} catch (FileNotFoundException e) {
+			return; // nothing was spilled
+		}
+		try {
+			while (true) {
+				long eventRowID = in.readLong();
+				double latitude = in.readDouble();
+				double longitude = in.readDouble();
+				long time = in.readLong();
+				append(eventRowID, latitude, longitude, time);
+			}
+		} catch (EOFException e) {
+			// Reached the end of the file.
+		} catch (IOException e) {
+			Log.e(EventActivity.LOG_TAG, "Failed to read spilled GPS fixes.", e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Already read everything we could.
+			}
+		}
+	}
+
+	/**
+	 * Drops recovered fixes that are already in the database, as those of a
+	 * flush that committed just before the process died are, and fixes
+	 * recovered twice.
+	 */
+	private void dropRecorded() {
+		Map<Long, Set<Long>> recorded = new HashMap<Long, Set<Long>>();
+		int kept = 0;
+		for (int i = 0; i < mSize; i++) {
+			Set<Long> times = recorded.get(mEventRowIds[i]);
+			if (times == null) {
+				times = new HashSet<Long>();
+				try {
+					for (GPSCoordinates fix : mStore.getTrack(mEventRowIds[i]))
+						times.add(fix.getTime());
+				} catch (SQLException e) {
+					Log.e(EventActivity.LOG_TAG, "Failed to read a track to recover into.", e);
+				}
+				recorded.put(mEventRowIds[i], times);
+			}
+			if (!times.add(mTimes[i]))
+				continue;
+			mEventRowIds[kept] = mEventRowIds[i];
+			mLatitudes[kept] = mLatitudes[i];
+			mLongitudes[kept] = mLongitudes[i];
+			mTimes[kept] = mTimes[i];
+			kept++;
+		}
+		mSize = kept;
+	}
+
+	/**
+	 * Appends a fix to the spill file. The write reaches the operating system
+	 * before this returns, so it outlives the process.
+	 */
+	private void writeSpill(long eventRowID, GPSCoordinates coord) {
+		try {
+			if (mSpill == null)
+				mSpill = new DataOutputStream(mCtx.openFileOutput(SPILL_FILE,
+						Context.MODE_APPEND));
+			writeRecord(mSpill, eventRowID, coord.getLatitude(), coord.getLongitude(),
+					coord.getTime());
+			mSpill.flush();
+		} catch (IOException e) {
+			Log.e(EventActivity.LOG_TAG, "Failed to spill a GPS fix.", e);
+		}
+	}
+
+	/**
+	 * Replaces the spill files with one holding exactly the buffered fixes.
+	 * The new file is written aside and renamed into place, so the fixes are
+	 * on disk throughout.
+	 */
+	private void rewriteSpill() {
+		closeSpill();
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(mCtx.openFileOutput(
+					TEMPORARY_SPILL_FILE, Context.MODE_PRIVATE)));
+			for (int i = 0; i < mSize; i++)
+				writeRecord(out, mEventRowIds[i], mLatitudes[i], mLongitudes[i], mTimes[i]);
+			out.close();
+			out = null;
+			if (!mCtx.getFileStreamPath(TEMPORARY_SPILL_FILE).renameTo(
+					mCtx.getFileStreamPath(SPILL_FILE)))
+				throw new IOException("Failed to replace the GPS spill file.");
+			mCtx.deleteFile(FLUSHING_SPILL_FILE);
+		} catch (IOException e) {
+			// The old files still hold every fix, possibly twice.
+			Log.e(EventActivity.LOG_TAG, "Failed to rewrite the GPS spill file.", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// The file is incomplete either way.
+				}
+				mCtx.deleteFile(TEMPORARY_SPILL_FILE);
+			}
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, long eventRowID, double latitude,
+			double longitude, long time) throws IOException {
+		out.writeLong(eventRowID);
+		out.writeDouble(latitude);
+		out.writeDouble(longitude);
+		out.writeLong(time);
+	}
+
+	private void closeSpill() {
+		try {
+			if (mSpill != null)
+				mSpill.close();
+		} catch (IOException e) {
+			Log.e(EventActivity.LOG_TAG, "Failed to close the GPS spill file.", e);
+		}
+		mSpill = null;
+	}
+}
@@ -0,0 +1,105 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Packs a track of GPS fixes into a compact blob. Coordinates are stored in
+ * units of 10^-7 degrees (about a centimetre), and each fix is written as the
+ * difference from the previous one. The differences are zigzag encoded so that
+ * small negative values stay small, then written as variable-length integers
+ * of seven bits per byte. A typical fix takes 6 to 9 bytes instead of 32.
+ */
+final class GPSTrackCodec {
+	/** Units per degree for stored coordinates. */
+	private static final double SCALE = 1e7;
+	/** The most bytes the first fix of a track can take. */
+	static final int MAX_FIX_BYTES = 3 * 10;
+
+	private GPSTrackCodec() {
+	}
+
+	/**
+	 * Encodes the fixes, which should be sorted by time.
+	 *
+	 * @param track
+	 *            the fixes to encode
+	 * @return the encoded track
+	 */
+	static byte[] encode(List<GPSCoordinates> track) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(track.size() * 8);
+		long lastLatitude = 0, lastLongitude = 0, lastTime = 0;
+		for (GPSCoordinates coord : track) {
+			long latitude = Math.round(coord.getLatitude() * SCALE);
+			long longitude = Math.round(coord.getLongitude() * SCALE);
+			writeSigned(out, latitude - lastLatitude);
+			writeSigned(out, longitude - lastLongitude);
+			writeSigned(out, coord.getTime() - lastTime);
+			lastLatitude = latitude;
+			lastLongitude = longitude;
+			lastTime = coord.getTime();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a track written by {@link #encode}.
+	 *
+	 * @param encoded
+	 *            the encoded track
+	 * @param track
+	 *            the list to append the decoded fixes to
+	 */
+	static void decode(byte[] encoded, List<GPSCoordinates> track) {
+		int[] position = new int[1];
+		long latitude = 0, longitude = 0, time = 0;
+		while (position[0] < encoded.length) {
+			latitude += readSigned(encoded, position);
+			longitude += readSigned(encoded, position);
+			time += readSigned(encoded, position);
+			track.add(new GPSCoordinates(latitude / SCALE, longitude / SCALE, time));
+		}
+	}
+
+	/**
+	 * Decodes only the first fix of a track written by {@link #encode}.
+	 *
+	 * @param encoded
+	 *            the encoded track, or at least its first
+	 *            {@link #MAX_FIX_BYTES} bytes
+	 * @return the first fix, or null if the track is empty
+	 */
+	static GPSCoordinates decodeFirst(byte[] encoded) {
+		if (encoded.length == 0)
+			return null;
+		int[] position = new int[1];
+		long latitude = readSigned(encoded, position);
+		long longitude = readSigned(encoded, position);
+		long time = readSigned(encoded, position);
+		return new GPSCoordinates(latitude / SCALE, longitude / SCALE, time);
+	}
+
+	private static void writeSigned(ByteArrayOutputStream out, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.write((int) (zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.write((int) zigzag);
+	}
+
+	/**
+	 * Reads one value, advancing position[0] past it.
+	 */
+	private static long readSigned(byte[] in, int[] position) {
+		long zigzag = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in[position[0]++];
+			zigzag |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+}
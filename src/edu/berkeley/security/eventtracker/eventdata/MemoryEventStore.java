@@ -0,0 +1,824 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An event store that keeps everything in memory, for benchmarks and
+ * simulations that should run without a device.
+ * <p>
+ * Events are held in parallel arrays sorted by start time, so range queries
+ * and day navigation are binary searches. Row ids are given out in order and
+ * index an array of positions, so lookups by row id are direct. New events
+ * usually start after every other one and are appended; writes that move an
+ * event shift the arrays between its old and new position. The name and tag
+ * dictionaries and the sync journal are kept in step by every write, as the
+ * database indexes are.
+ */
+public class MemoryEventStore implements EventStore {
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Orders totals by day, then the longest first, as the rollup query does. */
+	private static final Comparator<RollupTotal> BY_DAY_LONGEST_FIRST =
+			new Comparator<RollupTotal>() {
+				@Override
+				public int compare(RollupTotal left, RollupTotal right) {
+					if (left.mDay != right.mDay)
+						return left.mDay < right.mDay ? -1 : 1;
+					return left.mDuration > right.mDuration ? -1
+							: left.mDuration < right.mDuration ? 1 : 0;
+				}
+			};
+
+	private int mSize;
+	private long[] mRowIds = new long[INITIAL_CAPACITY];
+	private long[] mStarts = new long[INITIAL_CAPACITY];
+	private long[] mEnds = new long[INITIAL_CAPACITY];
+	private long[] mUpdates = new long[INITIAL_CAPACITY];
+	private String[] mNames = new String[INITIAL_CAPACITY];
+	private String[] mNotes = new String[INITIAL_CAPACITY];
+	private String[] mUuids = new String[INITIAL_CAPACITY];
+	private String[] mTags = new String[INITIAL_CAPACITY];
+	private boolean[] mDeleted = new boolean[INITIAL_CAPACITY];
+	private boolean[] mReceived = new boolean[INITIAL_CAPACITY];
+
+	/** The position of each event in the arrays above by row id, or -1. */
+	private int[] mPositions = new int[INITIAL_CAPACITY];
+	private long mNextRowId = 1;
+	private final Map<String, Long> mRowIdsByUuid = new HashMap<String, Long>();
+
+	/** Per event name and per tag: id, count of undeleted events, last start. */
+	private final Map<String, long[]> mNameCounts = new LinkedHashMap<String, long[]>();
+	private final Map<String, long[]> mTagCounts = new LinkedHashMap<String, long[]>();
+	/** Snapshots of the dictionaries, or null once they changed. */
+	private EventNames mEventNames;
+	private List<Tag> mTagList;
+
+	private final Map<Long, Track> mTracks = new HashMap<Long, Track>();
+
+	/** The row id of the event of each journal entry, by sequence number. */
+	private final TreeMap<Long, Long> mJournal = new TreeMap<Long, Long>();
+	private long mLastSequence;
+
+	@Override
+	public void open() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public synchronized long createEvent(String name, String notes, long startTime,
+			long endTime, String uuid, boolean receivedAtServer, String tag) {
+		long rowId = mNextRowId++;
+		if (rowId >= mPositions.length) {
+			int[] positions = new int[mPositions.length * 2];
+			System.arraycopy(mPositions, 0, positions, 0, mPositions.length);
+			mPositions = positions;
+		}
+		int position = insertionPoint(startTime);
+		insertAt(position);
+		mRowIds[position] = rowId;
+		mPositions[(int) rowId] = position;
+		set(position, name, notes, startTime, endTime, uuid, false, receivedAtServer, tag);
+		indexWrite(null, entryAt(position));
+		return rowId;
+	}
+
+	@Override
+	public synchronized boolean updateEvent(long rowId, String name, String notes,
+			long startTime, long endTime, String uuid, boolean deleted, boolean receivedAtServer,
+			String tag) {
+		int position = positionOf(rowId);
+		if (position < 0)
+			return false;
+		EventEntry before = entryAt(position);
+		if (before.mUUID != null && !before.mUUID.equals(uuid))
+			mRowIdsByUuid.remove(before.mUUID);
+		if (startTime != mStarts[position]) {
+			removeAt(position);
+			position = insertionPoint(startTime);
+			insertAt(position);
+			mRowIds[position] = rowId;
+			mPositions[(int) rowId] = position;
+		}
+		set(position, name, notes, startTime, endTime, uuid, deleted, receivedAtServer, tag);
+		indexWrite(before, entryAt(position));
+		return true;
+	}
+
+	@Override
+	public synchronized boolean[] writeEvents(List<EventEntry> events, boolean receivedAtServer) {
+		boolean[] written = new boolean[events.size()];
+		for (int i = 0; i < written.length; i++) {
+			EventEntry event = events.get(i);
+			if (event == null)
+				continue;
+			if (event.mDbRowID == -1) {
+				event.mDbRowID = createEvent(event.mName, event.mNotes, event.mStartTime,
+						event.mEndTime, event.mUUID, receivedAtServer, event.mTag);
+				written[i] = true;
+			} else {
+				written[i] = updateEvent(event.mDbRowID, event.mName, event.mNotes,
+						event.mStartTime, event.mEndTime, event.mUUID, event.deleted,
+						receivedAtServer, event.mTag);
+			}
+			if (written[i]) {
+				event.mUpdateTime = mUpdates[positionOf(event.mDbRowID)];
+				event.receivedAtServer = receivedAtServer;
+			}
+		}
+		return written;
+	}
+
+	@Override
+	public synchronized boolean markDeleted(long rowId) {
+		int position = positionOf(rowId);
+		if (position < 0)
+			return false;
+		EventEntry before = entryAt(position);
+		mDeleted[position] = true;
+		mReceived[position] = false;
+		mUpdates[position] = System.currentTimeMillis();
+		indexWrite(before, entryAt(position));
+		return true;
+	}
+
+	@Override
+	public synchronized int purgeAllEvents() {
+		return purge(Long.MIN_VALUE, Long.MAX_VALUE, null);
+	}
+
+	@Override
+	public synchronized int purgeEvents(long startTime, long endTime) {
+		return purge(startTime, endTime, null);
+	}
+
+	@Override
+	public synchronized int purgeEventsWithTag(String tag) {
+		return purge(Long.MIN_VALUE, Long.MAX_VALUE, tag);
+	}
+
+	@Override
+	public synchronized EventEntry fetchEvent(long rowId) {
+		int position = positionOf(rowId);
+		return position < 0 ? null : entryAt(position);
+	}
+
+	@Override
+	public synchronized EventEntry fetchEvent(String uuid) {
+		Long rowId = mRowIdsByUuid.get(uuid);
+		return rowId == null ? null : fetchEvent(rowId);
+	}
+
+	@Override
+	public synchronized List<EventEntry> fetchEvents(String name) {
+		List<EventEntry> events = new ArrayList<EventEntry>();
+		for (int i = 0; i < mSize; i++)
+			if (name.equals(mNames[i]))
+				events.add(entryAt(i));
+		return events;
+	}
+
+	@Override
+	public synchronized EventEntry fetchFirstEvent(String name) {
+		for (int i = 0; i < mSize; i++)
+			if (name.equals(mNames[i]))
+				return entryAt(i);
+		return null;
+	}
+
+	@Override
+	public synchronized int countEvents(String name) {
+		int count = 0;
+		for (int i = 0; i < mSize; i++)
+			if (name.equals(mNames[i]))
+				count++;
+		return count;
+	}
+
+	@Override
+	public synchronized List<EventEntry> fetchSortedEvents(long startTime, long endTime) {
+		List<EventEntry> events = new ArrayList<EventEntry>();
+		int first = insertionPoint(startTime);
+		for (int i = lowerBound(endTime) - 1; i >= first; i--)
+			if (!mDeleted[i])
+				events.add(entryAt(i));
+		return events;
+	}
+
+	@Override
+	public synchronized List<EventEntry> fetchLatestEvents(int limit) {
+		List<EventEntry> events = new ArrayList<EventEntry>(limit);
+		for (int i = mSize - 1; i >= 0 && events.size() < limit; i--)
+			if (!mDeleted[i])
+				events.add(entryAt(i));
+		return events;
+	}
+
+	@Override
+	public synchronized void scanEvents(EventVisitor visitor) {
+		EventEntry event = new EventEntry(-1, null, null, 0, 0, 0, null, false, false, true, null);
+		for (int i = 0; i < mSize; i++) {
+			if (mDeleted[i])
+				continue;
+			event.mDbRowID = mRowIds[i];
+			event.mName = mNames[i];
+			event.mNotes = mNotes[i];
+			event.mStartTime = mStarts[i];
+			event.mEndTime = mEnds[i];
+			event.mUpdateTime = mUpdates[i];
+			event.mUUID = mUuids[i];
+			event.receivedAtServer = mReceived[i];
+			event.mTag = mTags[i];
+			visitor.visit(event);
+		}
+	}
+
+	@Override
+	public synchronized void scanEventStarts(EventStartVisitor visitor) {
+		for (int i = 0; i < mSize; i++) {
+			if (mDeleted[i])
+				continue;
+			Track track = mTracks.get(mRowIds[i]);
+			visitor.visit(mRowIds[i], mNames[i], mStarts[i], track == null ? null : track
+					.first());
+		}
+	}
+
+	@Override
+	public synchronized List<EventEntry> fetchEventsUpdatedSince(long updateTime) {
+		List<EventEntry> events = new ArrayList<EventEntry>();
+		for (int i = 0; i < mSize; i++)
+			if (mUpdates[i] > updateTime)
+				events.add(entryAt(i));
+		return events;
+	}
+
+	/**
+	 * Splits the name, notes and tag of every event into words, which is
+	 * slower than the full-text index of the database, but finds the same
+	 * events.
+	 */
+	@Override
+	public synchronized List<EventEntry> searchEvents(String query, int offset, int limit) {
+		List<String> words = SearchWords.split(query);
+		List<EventEntry> matches = new ArrayList<EventEntry>();
+		if (words.isEmpty())
+			return matches;
+		List<EventEntry> otherMatches = new ArrayList<EventEntry>();
+		for (int i = mSize - 1; i >= 0; i--) {
+			if (mDeleted[i])
+				continue;
+			List<String> eventWords = SearchWords.split(mNames[i]);
+			if (startsWords(eventWords, words)) {
+				matches.add(entryAt(i));
+			} else {
+				eventWords.addAll(SearchWords.split(mNotes[i]));
+				eventWords.addAll(SearchWords.split(mTags[i]));
+				if (startsWords(eventWords, words))
+					otherMatches.add(entryAt(i));
+			}
+		}
+		matches.addAll(otherMatches);
+		int from = Math.min(offset, matches.size());
+		int to = from + Math.min(limit, matches.size() - from);
+		return new ArrayList<EventEntry>(matches.subList(from, to));
+	}
+
+	@Override
+	public synchronized List<RollupTotal> fetchTagTotals(int firstDay, int lastDay,
+			boolean perDay) {
+		return fetchTotals(mTags, firstDay, lastDay, perDay);
+	}
+
+	@Override
+	public synchronized List<RollupTotal> fetchNameTotals(int firstDay, int lastDay,
+			boolean perDay) {
+		return fetchTotals(mNames, firstDay, lastDay, perDay);
+	}
+
+	@Override
+	public synchronized int fetchDayBefore(int day) {
+		for (int i = lowerBound(DayKeys.dayStart(day)) - 1; i >= 0; i--)
+			if (!mDeleted[i])
+				return DayKeys.dayKey(mStarts[i]);
+		return DayKeys.NO_DAY;
+	}
+
+	@Override
+	public synchronized int fetchDayAfter(int day) {
+		Calendar calendar = Calendar.getInstance();
+		for (int i = lowerBound(DayKeys.dayStart(day)); i < mSize; i++) {
+			if (mDeleted[i])
+				continue;
+			int startDay = DayKeys.dayKey(calendar, mStarts[i]);
+			if (startDay > day)
+				return startDay;
+		}
+		return DayKeys.NO_DAY;
+	}
+
+	@Override
+	public synchronized long fetchSyncSequence() {
+		return mJournal.isEmpty() ? 0 : mJournal.lastKey();
+	}
+
+	@Override
+	public synchronized List<EventEntry> fetchUnsyncedEvents(long upToSequence) {
+		// Adding a row id again moves it to the end, so the events end up in
+		// the order of their last entries.
+		Set<Long> rowIds = new LinkedHashSet<Long>();
+		for (Long rowId : mJournal.headMap(upToSequence + 1).values()) {
+			rowIds.remove(rowId);
+			rowIds.add(rowId);
+		}
+		List<EventEntry> events = new ArrayList<EventEntry>(rowIds.size());
+		for (Long rowId : rowIds) {
+			int position = positionOf(rowId);
+			if (position >= 0)
+				events.add(entryAt(position));
+		}
+		return events;
+	}
+
+	@Override
+	public synchronized void acknowledgeSync(long upToSequence) {
+		SortedMap<Long, Long> acknowledged = mJournal.headMap(upToSequence + 1);
+		Set<Long> rewritten = new HashSet<Long>(mJournal.tailMap(upToSequence + 1).values());
+		for (Long rowId : acknowledged.values()) {
+			int position = positionOf(rowId);
+			if (position >= 0 && !rewritten.contains(rowId))
+				mReceived[position] = true;
+		}
+		acknowledged.clear();
+	}
+
+	/**
+	 * Removes every tombstone at once, since there are no transactions to
+	 * keep short.
+	 */
+	@Override
+	public synchronized int compactTombstones(final long deletedBefore, long budgetMillis) {
+		return remove(new Selection() {
+			@Override
+			public boolean matches(int position) {
+				return mDeleted[position] && mReceived[position]
+						&& mUpdates[position] < deletedBefore;
+			}
+		});
+	}
+
+	/**
+	 * Everything is held in memory, so there is nothing to move aside.
+	 */
+	@Override
+	public int archiveEvents(long startedBefore, long budgetMillis) {
+		return 0;
+	}
+
+	/**
+	 * Removed events are not held on to, so there is nothing to return.
+	 */
+	@Override
+	public void reclaimSpace() {
+	}
+
+	@Override
+	public synchronized EventNames fetchEventNames() {
+		if (mEventNames == null) {
+			int count = mNameCounts.size();
+			int[] ids = new int[count];
+			String[] names = new String[count];
+			int[] occurrences = new int[count];
+			long[] lastSeen = new long[count];
+			int i = 0;
+			for (Map.Entry<String, long[]> entry : mNameCounts.entrySet()) {
+				ids[i] = (int) entry.getValue()[0];
+				names[i] = entry.getKey();
+				occurrences[i] = (int) entry.getValue()[1];
+				lastSeen[i] = entry.getValue()[2];
+				i++;
+			}
+			mEventNames = new EventNames(ids, names, occurrences, lastSeen);
+		}
+		return mEventNames;
+	}
+
+	@Override
+	public synchronized void createGPSEntries(long[] eventRowIDs, double[] latitudes,
+			double[] longitudes, long[] times, int count) {
+		for (int i = 0; i < count; i++) {
+			Track track = mTracks.get(eventRowIDs[i]);
+			if (track == null)
+				mTracks.put(eventRowIDs[i], track = new Track());
+			track.add(latitudes[i], longitudes[i], times[i]);
+		}
+	}
+
+	@Override
+	public synchronized List<GPSCoordinates> getTrack(long eventRowID) {
+		Track track = mTracks.get(eventRowID);
+		return track == null ? new ArrayList<GPSCoordinates>() : track.toList();
+	}
+
+	/**
+	 * Tracks are always held packed, so there is nothing to do.
+	 */
+	@Override
+	public boolean compactTrack(long eventRowID) {
+		return false;
+	}
+
+	@Override
+	public synchronized List<Tag> getTagList() {
+		if (mTagList == null) {
+			List<Tag> tags = new ArrayList<Tag>(mTagCounts.size());
+			for (Map.Entry<String, long[]> entry : mTagCounts.entrySet())
+				tags.add(new Tag(entry.getValue()[0], entry.getKey(), (int) entry.getValue()[1],
+						entry.getValue()[2]));
+			mTagList = Collections.unmodifiableList(tags);
+		}
+		return mTagList;
+	}
+
+	@Override
+	public synchronized long addTag(String tag) {
+		return counts(mTagCounts, tag)[0];
+	}
+
+	/**
+	 * @return the number of events in the store, deleted or not
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Permanently deletes the events starting in [startTime, endTime) that
+	 * have the given tag, or any tag if it is null.
+	 */
+	private int purge(final long startTime, final long endTime, final String tag) {
+		return remove(new Selection() {
+			@Override
+			public boolean matches(int position) {
+				return mStarts[position] >= startTime && mStarts[position] < endTime
+						&& (tag == null || tag.equals(mTags[position]));
+			}
+		});
+	}
+
+	/**
+	 * Permanently deletes the selected events with their GPS fixes.
+	 *
+	 * @return the number of events deleted
+	 */
+	private int remove(Selection selection) {
+		int kept = 0;
+		for (int i = 0; i < mSize; i++) {
+			if (selection.matches(i)) {
+				indexWrite(entryAt(i), null);
+				mPositions[(int) mRowIds[i]] = -1;
+				mRowIdsByUuid.remove(mUuids[i]);
+				mTracks.remove(mRowIds[i]);
+			} else {
+				if (kept != i)
+					move(i, kept);
+				mPositions[(int) mRowIds[kept]] = kept;
+				kept++;
+			}
+		}
+		int purged = mSize - kept;
+		for (int i = kept; i < mSize; i++)
+			clear(i);
+		mSize = kept;
+		return purged;
+	}
+
+	/**
+	 * Updates the name and tag counts and the sync journal for a written
+	 * event, the same way {@link NameIndex}, {@link TagUsageIndex} and
+	 * {@link SyncJournal} do.
+	 *
+	 * @param before
+	 *            the event before the write, or null if it was created
+	 * @param after
+	 *            the event after the write, or null if it was removed
+	 */
+	private void indexWrite(EventEntry before, EventEntry after) {
+		if (count(mNameCounts, isCounted(before) && before.isNamed() ? before.mName : null,
+				isCounted(after) && after.isNamed() ? after.mName : null, after))
+			mEventNames = null;
+		if (count(mTagCounts, isCounted(before) && isTagged(before) ? before.mTag : null,
+				isCounted(after) && isTagged(after) ? after.mTag : null, after))
+			mTagList = null;
+		if (after != null && !after.receivedAtServer && after.mEndTime > 0)
+			mJournal.put(++mLastSequence, after.mDbRowID);
+		else if (after == null && before != null)
+			mJournal.values().removeAll(Collections.singleton(before.mDbRowID));
+	}
+
+	/**
+	 * Totals the time spent per value of one field over a range of days, the
+	 * same way {@link RollupIndex} does.
+	 *
+	 * @param groups
+	 *            the value of the field for each event, by position
+	 */
+	private List<RollupTotal> fetchTotals(String[] groups, int firstDay, int lastDay,
+			boolean perDay) {
+		Calendar calendar = Calendar.getInstance();
+		long from = DayKeys.dayStart(firstDay);
+		long to = DayKeys.nextDayStart(calendar, DayKeys.dayStart(lastDay));
+		// The duration and event count by day, or by no day, and group.
+		Map<String, long[]> totals = new HashMap<String, long[]>();
+		for (int i = 0; i < mSize && mStarts[i] < to; i++) {
+			if (mDeleted[i] || mEnds[i] <= mStarts[i] || mEnds[i] <= from)
+				continue;
+			String group = groups[i] == null ? "" : groups[i];
+			long start = Math.max(mStarts[i], from);
+			long end = Math.min(mEnds[i], to);
+			while (start < end) {
+				int day = perDay ? DayKeys.dayKey(calendar, start) : DayKeys.NO_DAY;
+				long nextDay = DayKeys.nextDayStart(calendar, start);
+				String key = day + "\n" + group;
+				long[] total = totals.get(key);
+				if (total == null)
+					totals.put(key, total = new long[2]);
+				total[0] += Math.min(end, nextDay) - start;
+				total[1]++;
+				start = nextDay;
+			}
+		}
+		List<RollupTotal> list = new ArrayList<RollupTotal>(totals.size());
+		for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+			String key = entry.getKey();
+			int split = key.indexOf('\n');
+			list.add(new RollupTotal(Integer.parseInt(key.substring(0, split)), key
+					.substring(split + 1), entry.getValue()[0], (int) entry.getValue()[1]));
+		}
+		Collections.sort(list, BY_DAY_LONGEST_FIRST);
+		return list;
+	}
+
+	/**
+	 * @return whether every word starts one of the words of an event
+	 */
+	private static boolean startsWords(List<String> eventWords, List<String> words) {
+		for (String word : words) {
+			boolean found = false;
+			for (String eventWord : eventWords) {
+				if (eventWord.startsWith(word)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves one event from the count of one key to another.
+	 *
+	 * @return whether the counts changed
+	 */
+	private static boolean count(Map<String, long[]> counts, String beforeKey, String afterKey,
+			EventEntry after) {
+		if (beforeKey != null && !beforeKey.equals(afterKey))
+			counts.get(beforeKey)[1]--;
+		if (afterKey != null) {
+			long[] count = counts(counts, afterKey);
+			if (!afterKey.equals(beforeKey))
+				count[1]++;
+			count[2] = Math.max(count[2], after.mStartTime);
+		}
+		return beforeKey != null || afterKey != null;
+	}
+
+	/**
+	 * @return the id, count and last start of the key, added if absent
+	 */
+	private static long[] counts(Map<String, long[]> counts, String key) {
+		long[] count = counts.get(key);
+		if (count == null)
+			counts.put(key, count = new long[] { counts.size() + 1, 0, 0 });
+		return count;
+	}
+
+	private static boolean isCounted(EventEntry event) {
+		return event != null && !event.deleted;
+	}
+
+	private static boolean isTagged(EventEntry event) {
+		return event.mTag != null && event.mTag.length() > 0;
+	}
+
+	private int positionOf(long rowId) {
+		return rowId > 0 && rowId < mNextRowId ? mPositions[(int) rowId] : -1;
+	}
+
+	/**
+	 * @return the first position whose event starts at or after the time
+	 */
+	private int lowerBound(long time) {
+		int low = 0, high = mSize;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (mStarts[middle] < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the first position whose event starts after the time, which is
+	 *         where an event starting at that time is inserted
+	 */
+	private int insertionPoint(long time) {
+		return time == Long.MAX_VALUE ? mSize : lowerBound(time + 1);
+	}
+
+	private EventEntry entryAt(int position) {
+		return new EventEntry(mRowIds[position], mNames[position], mNotes[position],
+				mStarts[position], mEnds[position], mUpdates[position], mUuids[position],
+				mDeleted[position], mReceived[position], true, mTags[position]);
+	}
+
+	private void set(int position, String name, String notes, long startTime, long endTime,
+			String uuid, boolean deleted, boolean receivedAtServer, String tag) {
+		if (uuid != null)
+			mRowIdsByUuid.put(uuid, mRowIds[position]);
+		mNames[position] = name;
+		mNotes[position] = notes;
+		mStarts[position] = startTime;
+		mEnds[position] = endTime;
+		mUpdates[position] = System.currentTimeMillis();
+		mUuids[position] = uuid;
+		mDeleted[position] = deleted;
+		mReceived[position] = receivedAtServer;
+		mTags[position] = tag;
+	}
+
+	/**
+	 * Opens an empty slot at the position, shifting later events up.
+	 */
+	private void insertAt(int position) {
+		if (mSize == mRowIds.length)
+			grow();
+		int tail = mSize - position;
+		System.arraycopy(mRowIds, position, mRowIds, position + 1, tail);
+		System.arraycopy(mStarts, position, mStarts, position + 1, tail);
+		System.arraycopy(mEnds, position, mEnds, position + 1, tail);
+		System.arraycopy(mUpdates, position, mUpdates, position + 1, tail);
+		System.arraycopy(mNames, position, mNames, position + 1, tail);
+		System.arraycopy(mNotes, position, mNotes, position + 1, tail);
+		System.arraycopy(mUuids, position, mUuids, position + 1, tail);
+		System.arraycopy(mTags, position, mTags, position + 1, tail);
+		System.arraycopy(mDeleted, position, mDeleted, position + 1, tail);
+		System.arraycopy(mReceived, position, mReceived, position + 1, tail);
+		mSize++;
+		clear(position);
+		for (int i = position + 1; i < mSize; i++)
+			mPositions[(int) mRowIds[i]] = i;
+	}
+
+	/**
+	 * Closes the slot at the position, shifting later events down.
+	 */
+	private void removeAt(int position) {
+		int tail = mSize - position - 1;
+		System.arraycopy(mRowIds, position + 1, mRowIds, position, tail);
+		System.arraycopy(mStarts, position + 1, mStarts, position, tail);
+		System.arraycopy(mEnds, position + 1, mEnds, position, tail);
+		System.arraycopy(mUpdates, position + 1, mUpdates, position, tail);
+		System.arraycopy(mNames, position + 1, mNames, position, tail);
+		System.arraycopy(mNotes, position + 1, mNotes, position, tail);
+		System.arraycopy(mUuids, position + 1, mUuids, position, tail);
+		System.arraycopy(mTags, position + 1, mTags, position, tail);
+		System.arraycopy(mDeleted, position + 1, mDeleted, position, tail);
+		System.arraycopy(mReceived, position + 1, mReceived, position, tail);
+		mSize--;
+		clear(mSize);
+		for (int i = position; i < mSize; i++)
+			mPositions[(int) mRowIds[i]] = i;
+	}
+
+	private void move(int from, int to) {
+		mRowIds[to] = mRowIds[from];
+		mStarts[to] = mStarts[from];
+		mEnds[to] = mEnds[from];
+		mUpdates[to] = mUpdates[from];
+		mNames[to] = mNames[from];
+		mNotes[to] = mNotes[from];
+		mUuids[to] = mUuids[from];
+		mTags[to] = mTags[from];
+		mDeleted[to] = mDeleted[from];
+		mReceived[to] = mReceived[from];
+	}
+
+	/**
+	 * Drops the references held by a slot, so removed events can be
+	 * collected.
+	 */
+	private void clear(int position) {
+		mNames[position] = null;
+		mNotes[position] = null;
+		mUuids[position] = null;
+		mTags[position] = null;
+	}
+
+	/**
+	 * Doubles the capacity of the event arrays. Arrays.copyOf is not
+	 * available on every supported platform version.
+	 */
+	private void grow() {
+		int capacity = mRowIds.length * 2;
+		mRowIds = copy(mRowIds, new long[capacity], mSize);
+		mStarts = copy(mStarts, new long[capacity], mSize);
+		mEnds = copy(mEnds, new long[capacity], mSize);
+		mUpdates = copy(mUpdates, new long[capacity], mSize);
+		mNames = copy(mNames, new String[capacity], mSize);
+		mNotes = copy(mNotes, new String[capacity], mSize);
+		mUuids = copy(mUuids, new String[capacity], mSize);
+		mTags = copy(mTags, new String[capacity], mSize);
+		mDeleted = copy(mDeleted, new boolean[capacity], mSize);
+		mReceived = copy(mReceived, new boolean[capacity], mSize);
+	}
+
+	/**
+	 * Copies the first length entries of one array into another.
+	 * 
+	 * @return the array copied into
+	 */
+	private static <T> T copy(T from, T to, int length) {
+		System.arraycopy(from, 0, to, 0, length);
+		return to;
+	}
+
+	/**
+	 * Picks events by their position in the arrays.
+	 */
+	private interface Selection {
+		boolean matches(int position);
+	}
+
+	/**
+	 * The fixes of one event in parallel arrays, in time order.
+	 */
+	private static final class Track {
+		private double[] mLatitudes = new double[16];
+		private double[] mLongitudes = new double[16];
+		private long[] mTimes = new long[16];
+		private int mSize;
+
+		void add(double latitude, double longitude, long time) {
+			if (mSize == mTimes.length) {
+				mLatitudes = copy(mLatitudes, new double[mSize * 2], mSize);
+				mLongitudes = copy(mLongitudes, new double[mSize * 2], mSize);
+				mTimes = copy(mTimes, new long[mSize * 2], mSize);
+			}
+			// Fixes nearly always arrive in order, so this rarely shifts.
+			int position = mSize;
+			while (position > 0 && mTimes[position - 1] > time)
+				position--;
+			int tail = mSize - position;
+			System.arraycopy(mLatitudes, position, mLatitudes, position + 1, tail);
+			System.arraycopy(mLongitudes, position, mLongitudes, position + 1, tail);
+			System.arraycopy(mTimes, position, mTimes, position + 1, tail);
+			mLatitudes[position] = latitude;
+			mLongitudes[position] = longitude;
+			mTimes[position] = time;
+			mSize++;
+		}
+
+		/**
+		 * @return the earliest fix, or null if there is none
+		 */
+		GPSCoordinates first() {
+			return mSize == 0 ? null : new GPSCoordinates(mLatitudes[0], mLongitudes[0], mTimes[0]);
+		}
+
+		List<GPSCoordinates> toList() {
+			List<GPSCoordinates> track = new ArrayList<GPSCoordinates>(mSize);
+			for (int i = 0; i < mSize; i++)
+				track.add(new GPSCoordinates(mLatitudes[i], mLongitudes[i], mTimes[i]));
+			return track;
+		}
+	}
+}
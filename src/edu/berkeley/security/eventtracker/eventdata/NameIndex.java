@@ -0,0 +1,99 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The dictionary of event names: every name of an undeleted event once, with
+ * a stable integer id, the number of events with that name and the latest
+ * start time among them. Names stay in the dictionary, and keep their id,
+ * when their last event goes away. The latest start time only moves forward
+ * on writes; a rebuild lowers it again if events were removed.
+ */
+final class NameIndex implements EventIndex {
+	static final String TABLE = "eventNames";
+	static final String KEY_ID = "_id";
+	static final String KEY_OCCURRENCES = "occurrences";
+	static final String KEY_LAST_SEEN = "lastSeen";
+	static final String TABLE_CREATE = "create table " + TABLE + " (" + KEY_ID
+			+ " integer primary key autoincrement, " + EventKey.NAME.columnName()
+			+ " text not null unique, " + KEY_OCCURRENCES + " integer not null default 0, "
+			+ KEY_LAST_SEEN + " integer not null default 0);";
+
+	/** Counts the changes to the table, so that snapshots can be reused. */
+	private static final AtomicInteger sChangeCount = new AtomicInteger();
+
+	@Override
+	public void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after) {
+		String beforeName = isCounted(before) ? before.mName : null;
+		String afterName = isCounted(after) ? after.mName : null;
+		String name = EventKey.NAME.columnName();
+		if (beforeName != null && !beforeName.equals(afterName))
+			db.execSQL("UPDATE " + TABLE + " SET " + KEY_OCCURRENCES + " = " + KEY_OCCURRENCES
+					+ " - 1 WHERE " + name + " = ?", new Object[] { beforeName });
+		if (afterName != null) {
+			int increment = afterName.equals(beforeName) ? 0 : 1;
+			db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (" + name + ") VALUES (?)",
+					new Object[] { afterName });
+			db.execSQL("UPDATE " + TABLE + " SET " + KEY_OCCURRENCES + " = " + KEY_OCCURRENCES
+					+ " + " + increment + ", " + KEY_LAST_SEEN + " = MAX(" + KEY_LAST_SEEN + ", "
+					+ after.mStartTime + ") WHERE " + name + " = ?", new Object[] { afterName });
+		}
+		if (beforeName != null || afterName != null)
+			sChangeCount.incrementAndGet();
+	}
+
+	@Override
+	public void rebuild(SQLiteDatabase db) {
+		String events = EventArchive.allEvents(db);
+		String name = EventKey.NAME.columnName();
+		String counted = events + "." + EventKey.IS_DELETED.columnName() + " = 0 AND " + events
+				+ "." + name + " = " + TABLE + "." + name;
+		db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (" + name + ") SELECT " + name + " FROM "
+				+ events + " WHERE " + EventKey.IS_DELETED.columnName() + " = 0 AND " + name
+				+ " != '' GROUP BY " + name + " ORDER BY MIN(" + EventKey.START_TIME.columnName()
+				+ ")");
+		db.execSQL("UPDATE " + TABLE + " SET " + KEY_OCCURRENCES + " = (SELECT COUNT(*) FROM "
+				+ events + " WHERE " + counted + "), " + KEY_LAST_SEEN + " = IFNULL((SELECT MAX("
+				+ EventKey.START_TIME.columnName() + ") FROM " + events + " WHERE " + counted
+				+ "), 0)");
+		sChangeCount.incrementAndGet();
+	}
+
+	/**
+	 * @return a number that changes whenever the dictionary does
+	 */
+	static int getChangeCount() {
+		return sChangeCount.get();
+	}
+
+	/**
+	 * Reads the whole dictionary.
+	 */
+	static EventNames fetchAll(SQLiteDatabase db) {
+		Cursor cursor = db.query(TABLE, new String[] { KEY_ID, EventKey.NAME.columnName(),
+				KEY_OCCURRENCES, KEY_LAST_SEEN }, null, null, null, null, KEY_ID);
+		try {
+			int count = cursor.getCount();
+			int[] ids = new int[count];
+			String[] names = new String[count];
+			int[] occurrences = new int[count];
+			long[] lastSeen = new long[count];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				ids[i] = cursor.getInt(0);
+				names[i] = cursor.getString(1);
+				occurrences[i] = cursor.getInt(2);
+				lastSeen[i] = cursor.getLong(3);
+			}
+			return new EventNames(ids, names, occurrences, lastSeen);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static boolean isCounted(EventEntry event) {
+		return event != null && !event.deleted && event.isNamed();
+	}
+}
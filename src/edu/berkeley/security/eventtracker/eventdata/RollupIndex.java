@@ -0,0 +1,192 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The time spent and number of events per day for each value of one event
+ * column, such as the tag or the name. Only undeleted, finished events count.
+ * An event that spans midnight is split at each midnight, so every day it
+ * touches gets the part of its duration that fell on that day, and counts the
+ * event once.
+ */
+final class RollupIndex implements EventIndex {
+	static final String KEY_DAY = "day";
+	static final String KEY_DURATION = "duration";
+	static final String KEY_EVENT_COUNT = "eventCount";
+	static final String TAG_TABLE = "tagRollup";
+	static final String NAME_TABLE = "nameRollup";
+
+	private final String mTable;
+	private final EventKey mGroupKey;
+
+	/**
+	 * @param table
+	 *            the name of the rollup table
+	 * @param groupKey
+	 *            the event column to group by
+	 */
+	RollupIndex(String table, EventKey groupKey) {
+		mTable = table;
+		mGroupKey = groupKey;
+	}
+
+	/**
+	 * @return the rollup of time spent per day and tag
+	 */
+	static RollupIndex byTag() {
+		return new RollupIndex(TAG_TABLE, EventKey.TAG);
+	}
+
+	/**
+	 * @return the rollup of time spent per day and event name
+	 */
+	static RollupIndex byName() {
+		return new RollupIndex(NAME_TABLE, EventKey.NAME);
+	}
+
+	/**
+	 * @return the statement creating the rollup table
+	 */
+	String getTableCreate() {
+		return "create table " + mTable + " (" + KEY_DAY + " integer not null, "
+				+ mGroupKey.columnName() + " text not null, " + KEY_DURATION
+				+ " integer not null, " + KEY_EVENT_COUNT + " integer not null, primary key ("
+				+ KEY_DAY + ", " + mGroupKey.columnName() + "));";
+	}
+
+	@Override
+	public void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after) {
+		boolean countedBefore = isCounted(before);
+		boolean countedAfter = isCounted(after);
+		if (countedBefore && countedAfter && before.mStartTime == after.mStartTime
+				&& before.mEndTime == after.mEndTime && groupOf(before).equals(groupOf(after)))
+			return;
+		if (countedBefore)
+			add(db, before, -1);
+		if (countedAfter)
+			add(db, after, 1);
+	}
+
+	@Override
+	public void rebuild(SQLiteDatabase db) {
+		db.delete(mTable, null, null);
+		Map<String, long[]> totals = new HashMap<String, long[]>();
+		Cursor events = db.query(EventArchive.allEvents(db), new String[] {
+				EventKey.START_TIME.columnName(), EventKey.END_TIME.columnName(),
+				mGroupKey.columnName() }, EventKey.IS_DELETED.columnName() + " = 0 AND "
+				+ EventKey.END_TIME.columnName() + " > " + EventKey.START_TIME.columnName(), null,
+				null, null, null);
+		Calendar calendar = Calendar.getInstance();
+		try {
+			while (events.moveToNext()) {
+				String group = events.isNull(2) ? "" : events.getString(2);
+				long start = events.getLong(0);
+				long end = events.getLong(1);
+				while (start < end) {
+					long nextDay = DayKeys.nextDayStart(calendar, start);
+					long dayEnd = Math.min(end, nextDay);
+					String mapKey = DayKeys.dayKey(calendar, start) + "\n" + group;
+					long[] total = totals.get(mapKey);
+					if (total == null)
+						totals.put(mapKey, total = new long[2]);
+					total[0] += dayEnd - start;
+					total[1]++;
+					start = nextDay;
+				}
+			}
+		} finally {
+			events.close();
+		}
+
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " + mTable + " (" + KEY_DAY
+				+ ", " + mGroupKey.columnName() + ", " + KEY_DURATION + ", " + KEY_EVENT_COUNT
+				+ ") VALUES (?, ?, ?, ?)");
+		try {
+			for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+				int split = entry.getKey().indexOf('\n');
+				insert.bindLong(1, Long.parseLong(entry.getKey().substring(0, split)));
+				insert.bindString(2, entry.getKey().substring(split + 1));
+				insert.bindLong(3, entry.getValue()[0]);
+				insert.bindLong(4, entry.getValue()[1]);
+				insert.executeInsert();
+			}
+		} finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Sums the rollup over a range of days.
+	 *
+	 * @param firstDay
+	 *            the key of the first day to include
+	 * @param lastDay
+	 *            the key of the last day to include
+	 * @param perDay
+	 *            whether to total each day separately
+	 * @return the totals, longest duration first within each day
+	 */
+	List<RollupTotal> fetchTotals(SQLiteDatabase db, int firstDay, int lastDay, boolean perDay) {
+		String group = mGroupKey.columnName();
+		String groupBy = perDay ? KEY_DAY + ", " + group : group;
+		Cursor cursor = db.rawQuery("SELECT " + (perDay ? KEY_DAY : DayKeys.NO_DAY) + ", "
+				+ group + ", SUM(" + KEY_DURATION + ") AS total, SUM(" + KEY_EVENT_COUNT
+				+ ") FROM " + mTable + " WHERE " + KEY_DAY + " BETWEEN " + firstDay + " AND "
+				+ lastDay + " GROUP BY " + groupBy + " ORDER BY "
+				+ (perDay ? KEY_DAY + ", " : "") + "total DESC", null);
+		try {
+			List<RollupTotal> totals = new ArrayList<RollupTotal>(cursor.getCount());
+			while (cursor.moveToNext())
+				totals.add(new RollupTotal(cursor.getInt(0), cursor.getString(1), cursor
+						.getLong(2), cursor.getInt(3)));
+			return totals;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Adds (sign 1) or removes (sign -1) an event's contribution to each day
+	 * it touches.
+	 */
+	private void add(SQLiteDatabase db, EventEntry event, int sign) {
+		String group = groupOf(event);
+		String[] groupArg = new String[] { group };
+		String where = KEY_DAY + " = ? AND " + mGroupKey.columnName() + " = ?";
+		Calendar calendar = Calendar.getInstance();
+		long start = event.mStartTime;
+		while (start < event.mEndTime) {
+			long nextDay = DayKeys.nextDayStart(calendar, start);
+			long duration = Math.min(event.mEndTime, nextDay) - start;
+			String[] args = new String[] { Integer.toString(DayKeys.dayKey(calendar, start)),
+					group };
+			if (sign > 0)
+				db.execSQL("INSERT OR IGNORE INTO " + mTable + " (" + KEY_DAY + ", "
+						+ mGroupKey.columnName() + ", " + KEY_DURATION + ", " + KEY_EVENT_COUNT
+						+ ") VALUES (" + args[0] + ", ?, 0, 0)", groupArg);
+			db.execSQL("UPDATE " + mTable + " SET " + KEY_DURATION + " = " + KEY_DURATION + " + "
+					+ sign * duration + ", " + KEY_EVENT_COUNT + " = " + KEY_EVENT_COUNT + " + "
+					+ sign + " WHERE " + where, args);
+			if (sign < 0)
+				db.delete(mTable, where + " AND " + KEY_EVENT_COUNT + " <= 0", args);
+			start = nextDay;
+		}
+	}
+
+	private String groupOf(EventEntry event) {
+		Object group = event.getValue(mGroupKey);
+		return group == null ? "" : group.toString();
+	}
+
+	private static boolean isCounted(EventEntry event) {
+		return event != null && !event.deleted && event.mEndTime > event.mStartTime;
+	}
+}
@@ -0,0 +1,28 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+/**
+ * The time spent on one tag or event name, over a day or a range of days.
+ */
+public class RollupTotal {
+	/** The day as yyyyMMdd, or -1 if this totals a range of days. */
+	public final int mDay;
+	/** The tag or event name, empty for events without one. */
+	public final String mKey;
+	/** The time spent, in milliseconds. */
+	public final long mDuration;
+	/** The number of events, counting an event once for each day it touches. */
+	public final int mEventCount;
+
+	RollupTotal(int day, String key, long duration, int eventCount) {
+		mDay = day;
+		mKey = key;
+		mDuration = duration;
+		mEventCount = eventCount;
+	}
+
+	@Override
+	public String toString() {
+		return (mDay != DayKeys.NO_DAY ? mDay + " " : "") + mKey + ": " + mDuration + "ms in "
+				+ mEventCount + " events";
+	}
+}
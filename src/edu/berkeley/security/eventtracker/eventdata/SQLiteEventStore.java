@@ -0,0 +1,290 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The event store of the app: the routes database, through one adapter per
+ * table.
+ */
+public class SQLiteEventStore implements EventStore {
+	private final EventDbAdapter mEvents;
+	private final GPSDbAdapter mGPS;
+	private final TagsDBAdapter mTags;
+	/** The database the store was given to own, or null for the routes one. */
+	private final SQLiteDatabase mOwnedDb;
+
+	public SQLiteEventStore(Context context) {
+		this(context, null);
+	}
+
+	/**
+	 * Works on an already opened database, such as a scratch one, instead of
+	 * the routes database. The store is open from the start, and closing it
+	 * closes the database.
+	 * 
+	 * @param db
+	 *            the database to own, or null for the routes database
+	 */
+	SQLiteEventStore(Context context, SQLiteDatabase db) {
+		mEvents = new EventDbAdapter(context);
+		mGPS = new GPSDbAdapter(context);
+		mTags = new TagsDBAdapter(context);
+		mOwnedDb = db;
+		if (db != null)
+			open(db);
+	}
+
+	/**
+	 * Opens the routes database. A store that owns its database is already
+	 * open, so this does nothing for it.
+	 */
+	@Override
+	public void open() {
+		if (mOwnedDb != null)
+			return;
+		mEvents.open();
+		mGPS.open();
+		mTags.open();
+	}
+
+	/**
+	 * Works on an already opened database instead of the routes database.
+	 * The caller remains responsible for closing it.
+	 */
+	void open(SQLiteDatabase db) {
+		mEvents.open(db);
+		mGPS.open(db);
+		mTags.open(db);
+	}
+
+	@Override
+	public void close() {
+		mEvents.close();
+		mGPS.close();
+		mTags.close();
+		if (mOwnedDb != null)
+			mOwnedDb.close();
+	}
+
+	EventDbAdapter getEventAdapter() {
+		return mEvents;
+	}
+
+	@Override
+	public long createEvent(String name, String notes, long startTime, long endTime,
+			String uuid, boolean receivedAtServer, String tag) {
+		return mEvents.createEvent(name, notes, startTime, endTime, uuid, receivedAtServer, tag);
+	}
+
+	@Override
+	public boolean updateEvent(long rowId, String name, String notes, long startTime,
+			long endTime, String uuid, boolean deleted, boolean receivedAtServer, String tag) {
+		return mEvents.updateEvent(rowId, name, notes, startTime, endTime, uuid, deleted,
+				receivedAtServer, tag);
+	}
+
+	@Override
+	public boolean[] writeEvents(List<EventEntry> events, boolean receivedAtServer) {
+		return mEvents.writeEvents(events, receivedAtServer);
+	}
+
+	@Override
+	public boolean markDeleted(long rowId) {
+		return mEvents.markDeleted(rowId);
+	}
+
+	@Override
+	public int purgeAllEvents() {
+		return mEvents.purgeAllEvents();
+	}
+
+	@Override
+	public int purgeEvents(long startTime, long endTime) {
+		return mEvents.purgeEvents(startTime, endTime);
+	}
+
+	@Override
+	public int purgeEventsWithTag(String tag) {
+		return mEvents.purgeEventsWithTag(tag);
+	}
+
+	@Override
+	public EventEntry fetchEvent(long rowId) {
+		return first(mEvents.fetchEvent(rowId));
+	}
+
+	@Override
+	public EventEntry fetchEvent(String uuid) {
+		return first(mEvents.fetchEvent(uuid));
+	}
+
+	@Override
+	public List<EventEntry> fetchEvents(String name) {
+		return toList(mEvents.fetchEvents(name));
+	}
+
+	@Override
+	public EventEntry fetchFirstEvent(String name) {
+		return first(mEvents.fetchFirstEvent(name));
+	}
+
+	@Override
+	public int countEvents(String name) {
+		return mEvents.countEvents(name);
+	}
+
+	@Override
+	public List<EventEntry> fetchSortedEvents(long startTime, long endTime) {
+		return toList(mEvents.fetchSortedEvents(startTime, endTime));
+	}
+
+	@Override
+	public List<EventEntry> fetchLatestEvents(int limit) {
+		return toList(mEvents.fetchLatestEvents(limit));
+	}
+
+	@Override
+	public void scanEvents(EventVisitor visitor) {
+		Cursor cursor = mEvents.fetchUndeletedEvents();
+		try {
+			EventRowMapper mapper = new EventRowMapper(cursor);
+			EventEntry event = new EventEntry(-1, null, null, 0, 0, 0, null, false, false, true,
+					null);
+			while (cursor.moveToNext())
+				visitor.visit(mapper.mapInto(cursor, event));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void scanEventStarts(EventStartVisitor visitor) {
+		mEvents.scanEventStarts(visitor);
+	}
+
+	@Override
+	public List<EventEntry> fetchEventsUpdatedSince(long updateTime) {
+		return toList(mEvents.fetchEventsUpdatedSince(updateTime));
+	}
+
+	@Override
+	public List<EventEntry> searchEvents(String query, int offset, int limit) {
+		Cursor matches = mEvents.searchEvents(query, offset, limit);
+		return matches == null ? new ArrayList<EventEntry>() : toList(matches);
+	}
+
+	@Override
+	public List<RollupTotal> fetchTagTotals(int firstDay, int lastDay, boolean perDay) {
+		return mEvents.fetchTagTotals(firstDay, lastDay, perDay);
+	}
+
+	@Override
+	public List<RollupTotal> fetchNameTotals(int firstDay, int lastDay, boolean perDay) {
+		return mEvents.fetchNameTotals(firstDay, lastDay, perDay);
+	}
+
+	@Override
+	public int fetchDayBefore(int day) {
+		return mEvents.fetchDayBefore(day);
+	}
+
+	@Override
+	public int fetchDayAfter(int day) {
+		return mEvents.fetchDayAfter(day);
+	}
+
+	@Override
+	public long fetchSyncSequence() {
+		return mEvents.fetchSyncSequence();
+	}
+
+	@Override
+	public List<EventEntry> fetchUnsyncedEvents(long upToSequence) {
+		return toList(mEvents.fetchUnsyncedEvents(upToSequence));
+	}
+
+	@Override
+	public void acknowledgeSync(long upToSequence) {
+		mEvents.acknowledgeSync(upToSequence);
+	}
+
+	@Override
+	public int compactTombstones(long deletedBefore, long budgetMillis) {
+		return mEvents.compactTombstones(deletedBefore, budgetMillis);
+	}
+
+	@Override
+	public int archiveEvents(long startedBefore, long budgetMillis) {
+		return mEvents.archiveEvents(startedBefore, budgetMillis);
+	}
+
+	@Override
+	public void reclaimSpace() {
+		mEvents.reclaimSpace();
+	}
+
+	@Override
+	public EventNames fetchEventNames() {
+		return mEvents.fetchEventNames();
+	}
+
+	@Override
+	public void createGPSEntries(long[] eventRowIDs, double[] latitudes, double[] longitudes,
+			long[] times, int count) {
+		mGPS.createGPSEntries(eventRowIDs, latitudes, longitudes, times, count);
+	}
+
+	@Override
+	public List<GPSCoordinates> getTrack(long eventRowID) {
+		return mGPS.getTrack(eventRowID);
+	}
+
+	@Override
+	public boolean compactTrack(long eventRowID) {
+		return mGPS.compactTrack(eventRowID);
+	}
+
+	@Override
+	public List<Tag> getTagList() {
+		return mTags.getTagList();
+	}
+
+	@Override
+	public long addTag(String tag) {
+		return mTags.createTagEntry(tag);
+	}
+
+	/**
+	 * Maps the first row of the cursor and closes it.
+	 *
+	 * @return the event, or null if the cursor is empty
+	 */
+	private static EventEntry first(Cursor cursor) {
+		try {
+			return cursor.moveToFirst() ? new EventRowMapper(cursor).map(cursor) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Maps every row of the cursor and closes it.
+	 */
+	private static List<EventEntry> toList(Cursor cursor) {
+		try {
+			List<EventEntry> events = new ArrayList<EventEntry>(cursor.getCount());
+			EventRowMapper mapper = new EventRowMapper(cursor);
+			cursor.moveToPosition(-1);
+			while (cursor.moveToNext())
+				events.add(mapper.map(cursor));
+			return events;
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * The ordered list of in-place schema upgrades. Each migration upgrades the
+ * database by exactly one version, so a database at any supported version is
+ * brought up to date by applying every migration after it in turn. A freshly
+ * created database starts at {@link #BASE_VERSION} and is migrated the same
+ * way, so new and upgraded installs always end up with the same schema.
+ */
+final class SchemaMigrations {
+
+	/** The oldest version that can be upgraded in place. */
+	static final int BASE_VERSION = 4;
+
+	static final String INDEX_EVENTS_BY_START = "eventData_isDeleted_startTime";
+	static final String INDEX_EVENTS_BY_UUID = "eventData_uuid";
+	static final String INDEX_EVENTS_BY_NAME = "eventData_name";
+	static final String INDEX_EVENTS_BY_SYNC = "eventData_receivedAtServer_endTime";
+	static final String INDEX_GPS_BY_EVENT = "gpsData_eventRowID";
+	static final String INDEX_EVENTS_BY_UPDATE = "eventData_updateTime";
+
+	/**
+	 * A single step in the upgrade path.
+	 */
+	abstract static class Migration {
+		/**
+		 * Upgrades the database by one version. Runs inside the transaction
+		 * opened by {@link android.database.sqlite.SQLiteOpenHelper}.
+		 */
+		abstract void upgrade(SQLiteDatabase db);
+	}
+
+	/** Migration i upgrades from version BASE_VERSION + i. */
+	private static final Migration[] MIGRATIONS = new Migration[] {
+			// 4 -> 5: secondary indexes on eventData.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					// The uuid index is unique, so drop any duplicates first.
+					// The oldest row is the one findOrCreateByUUID returned.
+					db.execSQL("DELETE FROM eventData WHERE _id NOT IN "
+							+ "(SELECT MIN(_id) FROM eventData GROUP BY uuid)");
+					db.execSQL("DELETE FROM gpsData WHERE eventRowID NOT IN "
+							+ "(SELECT _id FROM eventData)");
+					createEventIndexes(db);
+				}
+			},
+			// 5 -> 6: packed GPS tracks for closed events.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL(GPSDbAdapter.TABLE_CREATE_GPSTRACKS);
+					db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_GPS_BY_EVENT
+							+ " ON gpsData (eventRowID)");
+					GPSDbAdapter.compactAllClosedTracks(db);
+				}
+			},
+			// 6 -> 7: days with events, for day to day navigation.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL(DayIndex.TABLE_CREATE);
+					new DayIndex().rebuild(db);
+				}
+			},
+			// 7 -> 8: time spent per day and tag, and per day and name.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					for (RollupIndex rollup : new RollupIndex[] { RollupIndex.byTag(),
+							RollupIndex.byName() }) {
+						db.execSQL(rollup.getTableCreate());
+						rollup.rebuild(db);
+					}
+				}
+			},
+			// 8 -> 9: full-text search over names, notes and tags.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL(SearchIndex.TABLE_CREATE);
+					new SearchIndex().rebuild(db);
+				}
+			},
+			// 9 -> 10: tagData becomes a dictionary, each tag once with its usage.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL("ALTER TABLE tagData RENAME TO oldTagData");
+					db.execSQL(TagsDBAdapter.TABLE_CREATE);
+					db.execSQL("INSERT INTO tagData (tag) SELECT tag FROM oldTagData WHERE tag"
+							+ " IS NOT NULL AND tag != '' GROUP BY tag ORDER BY MIN(_id)");
+					db.execSQL("DROP TABLE oldTagData");
+					new TagUsageIndex().rebuild(db);
+				}
+			},
+			// 10 -> 11: the dictionary of event names.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL(NameIndex.TABLE_CREATE);
+					new NameIndex().rebuild(db);
+				}
+			},
+			// 11 -> 12: the journal of events to upload.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL(SyncJournal.TABLE_CREATE);
+					db.execSQL(SyncJournal.INDEX_CREATE);
+					new SyncJournal().rebuild(db);
+				}
+			},
+			// 12 -> 13: the archive of old events.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					EventArchive.createTables(db);
+				}
+			},
+			// 13 -> 14: events by when they were last written, for replaying
+			// them into a saved prediction model.
+			new Migration() {
+				@Override
+				void upgrade(SQLiteDatabase db) {
+					db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_EVENTS_BY_UPDATE
+							+ " ON eventData (updateTime)");
+					db.execSQL("CREATE INDEX IF NOT EXISTS eventArchiveByUpdate ON "
+							+ EventArchive.TABLE + " (updateTime)");
+				}
+			}, };
+
+	/** The version of the database once every migration has been applied. */
+	static final int LATEST_VERSION = BASE_VERSION + MIGRATIONS.length;
+
+	private SchemaMigrations() {
+	}
+
+	/**
+	 * Applies each migration between the two versions, in order.
+	 *
+	 * @param db
+	 *            the database to upgrade
+	 * @param fromVersion
+	 *            the current version of the database, at least
+	 *            {@link #BASE_VERSION}
+	 * @param toVersion
+	 *            the version to upgrade to
+	 */
+	static void upgrade(SQLiteDatabase db, int fromVersion, int toVersion) {
+		if (fromVersion < BASE_VERSION || toVersion > LATEST_VERSION)
+			throw new IllegalArgumentException("Cannot migrate from version " + fromVersion
+					+ " to " + toVersion);
+		for (int version = fromVersion; version < toVersion; version++) {
+			Log.i(AbstractDbAdapter.TAG, "Migrating database from version " + version + " to "
+					+ (version + 1));
+			MIGRATIONS[version - BASE_VERSION].upgrade(db);
+		}
+	}
+
+	/**
+	 * Creates the indexes backing the range, uuid, name and unsynced event
+	 * queries of {@link EventDbAdapter}.
+	 */
+	static void createEventIndexes(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_EVENTS_BY_START
+				+ " ON eventData (isDeleted, startTime)");
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_EVENTS_BY_UUID
+				+ " ON eventData (uuid)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_EVENTS_BY_NAME + " ON eventData (name)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_EVENTS_BY_SYNC
+				+ " ON eventData (receivedAtServer, endTime)");
+	}
+
+	/**
+	 * Drops the indexes created by {@link #createEventIndexes}. Only used to
+	 * measure queries without them.
+	 */
+	static void dropEventIndexes(SQLiteDatabase db) {
+		for (String index : new String[] { INDEX_EVENTS_BY_START, INDEX_EVENTS_BY_UUID,
+				INDEX_EVENTS_BY_NAME, INDEX_EVENTS_BY_SYNC })
+			db.execSQL("DROP INDEX IF EXISTS " + index);
+	}
+}
@@ -0,0 +1,105 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A full-text index over the name, notes and tag of every undeleted event,
+ * stored in an FTS3 table whose docid is the event's row id.
+ */
+final class SearchIndex implements EventIndex {
+	static final String TABLE = "eventSearch";
+	static final String TABLE_CREATE = "create virtual table " + TABLE + " using fts3("
+			+ EventKey.NAME.columnName() + ", " + EventKey.NOTES.columnName() + ", "
+			+ EventKey.TAG.columnName() + ");";
+
+	@Override
+	public void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after) {
+		boolean indexedBefore = isIndexed(before);
+		boolean indexedAfter = isIndexed(after);
+		if (indexedBefore && indexedAfter && equal(before.mName, after.mName)
+				&& equal(before.mNotes, after.mNotes) && equal(before.mTag, after.mTag))
+			return;
+		if (indexedBefore)
+			db.execSQL("DELETE FROM " + TABLE + " WHERE docid = " + before.mDbRowID);
+		if (indexedAfter)
+			db.execSQL("INSERT INTO " + TABLE + " (docid, " + EventKey.NAME.columnName() + ", "
+					+ EventKey.NOTES.columnName() + ", " + EventKey.TAG.columnName()
+					+ ") VALUES (" + after.mDbRowID + ", ?, ?, ?)", new Object[] { after.mName,
+					after.mNotes, after.mTag });
+	}
+
+	@Override
+	public void rebuild(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM " + TABLE);
+		db.execSQL("INSERT INTO " + TABLE + " (docid, " + EventKey.NAME.columnName() + ", "
+				+ EventKey.NOTES.columnName() + ", " + EventKey.TAG.columnName() + ") SELECT "
+				+ EventKey.ROW_ID.columnName() + ", " + EventKey.NAME.columnName() + ", "
+				+ EventKey.NOTES.columnName() + ", " + EventKey.TAG.columnName() + " FROM "
+				+ EventArchive.allEvents(db) + " WHERE " + EventKey.IS_DELETED.columnName()
+				+ " = 0");
+	}
+
+	/**
+	 * Finds the undeleted events matching every word of the query, treating
+	 * each word as a prefix. Events whose name matches come first, and within
+	 * that, the most recent first. Hot and archived events are joined to the
+	 * matches separately, each by row id.
+	 *
+	 * @param query
+	 *            the words to search for, as typed by the user
+	 * @param offset
+	 *            the number of matches to skip
+	 * @param limit
+	 *            the most matches to return
+	 * @return a cursor over the matching events, or null if the query has no
+	 *         words
+	 */
+	static Cursor search(SQLiteDatabase db, String query, int offset, int limit) {
+		String anyColumn = toMatchExpression(query, null);
+		if (anyColumn == null)
+			return null;
+		String inName = toMatchExpression(query, EventKey.NAME.columnName());
+		StringBuilder columns = new StringBuilder();
+		for (String column : EventKey.columnNames())
+			columns.append(columns.length() == 0 ? "e." : ", e.").append(column);
+		// CROSS JOIN keeps the full-text match as the outer loop.
+		String select = "SELECT " + columns + ", s.docid IN (SELECT docid FROM " + TABLE
+				+ " WHERE " + TABLE + " MATCH ?) AS nameMatch FROM " + TABLE + " s CROSS JOIN ";
+		String on = " e ON e." + EventKey.ROW_ID.columnName() + " = s.docid WHERE s." + TABLE
+				+ " MATCH ?";
+		return db.rawQuery(select + EventDbAdapter.DATABASE_TABLE + on + " UNION ALL " + select
+				+ EventArchive.TABLE + on + " ORDER BY nameMatch DESC, "
+				+ EventKey.START_TIME.columnName() + " DESC LIMIT " + limit + " OFFSET " + offset,
+				new String[] { inName, anyColumn, inName, anyColumn });
+	}
+
+	/**
+	 * Turns what the user typed into an FTS query that matches every word as
+	 * a prefix. Words are split and lower-cased by {@link SearchWords}, as
+	 * the indexed text is. The user's input is never read as FTS operators.
+	 *
+	 * @param column
+	 *            the column to restrict each word to, or null for any column
+	 * @return the expression, or null if the query has no words
+	 */
+	static String toMatchExpression(String query, String column) {
+		StringBuilder expression = new StringBuilder();
+		for (String word : SearchWords.split(query)) {
+			if (expression.length() > 0)
+				expression.append(' ');
+			if (column != null)
+				expression.append(column).append(':');
+			expression.append(word).append('*');
+		}
+		return expression.length() == 0 ? null : expression.toString();
+	}
+
+	private static boolean isIndexed(EventEntry event) {
+		return event != null && !event.deleted;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,44 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into words as the FTS3 simple tokenizer splits and folds the
+ * text it indexes: any ASCII character but a letter or digit separates words,
+ * other characters are kept as they are, and only ASCII letters are
+ * lower-cased, whatever the default locale. Shared by {@link SearchIndex} and
+ * {@link MemoryEventStore}, so that both find the same events, and free of
+ * Android so that it runs on a plain JVM.
+ */
+final class SearchWords {
+
+	private SearchWords() {
+	}
+
+	/**
+	 * @return the words of the text, lower-cased, empty if it has none or is
+	 *         null
+	 */
+	static List<String> split(String text) {
+		List<String> words = new ArrayList<String>();
+		if (text == null)
+			return words;
+		for (String word : text.split("[^A-Za-z0-9\\u0080-\\uffff]+")) {
+			if (word.length() > 0)
+				words.add(toLowerAscii(word));
+		}
+		return words;
+	}
+
+	/**
+	 * Lower-cases the ASCII letters only, as the simple tokenizer does.
+	 */
+	private static String toLowerAscii(String word) {
+		char[] chars = word.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			if (chars[i] >= 'A' && chars[i] <= 'Z')
+				chars[i] += 'a' - 'A';
+		return new String(chars);
+	}
+}
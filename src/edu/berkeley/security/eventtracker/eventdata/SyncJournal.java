@@ -0,0 +1,100 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The outbox of events to upload. Every local write of a finished event
+ * appends an entry with the next sequence number, in the same transaction
+ * as the write. Sync reads the entries up to a sequence number, uploads
+ * their events, and then acknowledges that sequence number: the events are
+ * marked as received by the server unless they were written again since,
+ * and the acknowledged entries are removed.
+ */
+final class SyncJournal implements EventIndex {
+	static final String TABLE = "syncJournal";
+	static final String KEY_SEQUENCE = "seq";
+	static final String KEY_EVENT_ID = "eventId";
+	static final String TABLE_CREATE = "create table " + TABLE + " (" + KEY_SEQUENCE
+			+ " integer primary key autoincrement, " + KEY_EVENT_ID + " integer not null);";
+	static final String INDEX_CREATE = "create index syncJournalByEvent on " + TABLE + " ("
+			+ KEY_EVENT_ID + ");";
+
+	@Override
+	public void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after) {
+		if (after != null && isPending(after))
+			db.execSQL("INSERT INTO " + TABLE + " (" + KEY_EVENT_ID + ") VALUES ("
+					+ after.mDbRowID + ")");
+		else if (after == null && before != null)
+			db.execSQL("DELETE FROM " + TABLE + " WHERE " + KEY_EVENT_ID + " = "
+					+ before.mDbRowID);
+	}
+
+	/**
+	 * Drops the entries of events that no longer exist and adds entries for
+	 * pending events that have none, keeping the order of the others.
+	 */
+	@Override
+	public void rebuild(SQLiteDatabase db) {
+		String events = EventArchive.allEvents(db);
+		String rowId = EventKey.ROW_ID.columnName();
+		db.execSQL("DELETE FROM " + TABLE + " WHERE " + KEY_EVENT_ID + " NOT IN (SELECT " + rowId
+				+ " FROM " + events + ")");
+		db.execSQL("INSERT INTO " + TABLE + " (" + KEY_EVENT_ID + ") SELECT " + rowId + " FROM "
+				+ events + " WHERE " + EventKey.RECEIVED_AT_SERVER.columnName() + " = 0 AND "
+				+ EventKey.END_TIME.columnName() + " > 0 AND " + rowId + " NOT IN (SELECT "
+				+ KEY_EVENT_ID + " FROM " + TABLE + ") ORDER BY "
+				+ EventKey.UPDATE_TIME.columnName());
+	}
+
+	/**
+	 * @return the sequence number of the latest entry, or 0 if there is none
+	 */
+	static long lastSequence(SQLiteDatabase db) {
+		return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + KEY_SEQUENCE + "), 0) FROM "
+				+ TABLE, null);
+	}
+
+	/**
+	 * Reads the events with entries up to a sequence number, each once, in
+	 * the order they were last written. Archived events are joined
+	 * separately rather than through the view, so each side is a seek by
+	 * row id.
+	 */
+	static Cursor fetchEvents(SQLiteDatabase db, long upToSequence) {
+		StringBuilder columns = new StringBuilder();
+		for (String column : EventKey.columnNames())
+			columns.append(columns.length() == 0 ? "e." : ", e.").append(column);
+		String select = "SELECT " + columns + ", j.last AS journalSequence FROM (SELECT "
+				+ KEY_EVENT_ID + ", MAX(" + KEY_SEQUENCE + ") AS last FROM " + TABLE + " WHERE "
+				+ KEY_SEQUENCE + " <= " + upToSequence + " GROUP BY " + KEY_EVENT_ID + ") j JOIN ";
+		String on = " e ON e." + EventKey.ROW_ID.columnName() + " = j." + KEY_EVENT_ID;
+		return db.rawQuery(select + EventDbAdapter.DATABASE_TABLE + on + " UNION ALL " + select
+				+ EventArchive.TABLE + on + " ORDER BY journalSequence", null);
+	}
+
+	/**
+	 * Marks the events with entries up to a sequence number as received by
+	 * the server, except those with later entries, and removes the entries.
+	 * Must be called inside a transaction.
+	 */
+	static void acknowledge(SQLiteDatabase db, long upToSequence) {
+		String set = " SET " + EventKey.RECEIVED_AT_SERVER.columnName() + " = 1 WHERE "
+				+ EventKey.ROW_ID.columnName() + " IN (SELECT " + KEY_EVENT_ID + " FROM " + TABLE
+				+ " WHERE " + KEY_SEQUENCE + " <= " + upToSequence + ") AND "
+				+ EventKey.ROW_ID.columnName() + " NOT IN (SELECT " + KEY_EVENT_ID + " FROM "
+				+ TABLE + " WHERE " + KEY_SEQUENCE + " > " + upToSequence + ")";
+		db.execSQL("UPDATE " + EventDbAdapter.DATABASE_TABLE + set);
+		db.execSQL("UPDATE " + EventArchive.TABLE + set);
+		db.execSQL("DELETE FROM " + TABLE + " WHERE " + KEY_SEQUENCE + " <= " + upToSequence);
+	}
+
+	/**
+	 * @return whether the event must be uploaded. Matches the events the
+	 *         server used to be sent: finished and not yet received.
+	 */
+	private static boolean isPending(EventEntry event) {
+		return !event.receivedAtServer && event.mEndTime > 0;
+	}
+}
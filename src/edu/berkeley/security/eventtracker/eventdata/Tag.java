@@ -0,0 +1,26 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+/**
+ * An entry of the tag dictionary.
+ */
+public class Tag {
+	/** The tag's id, which never changes. */
+	public final long mId;
+	public final String mName;
+	/** The number of undeleted events with this tag. */
+	public final int mUsageCount;
+	/** The latest start time of an event with this tag, or 0 if none. */
+	public final long mLastUsed;
+
+	Tag(long id, String name, int usageCount, long lastUsed) {
+		mId = id;
+		mName = name;
+		mUsageCount = usageCount;
+		mLastUsed = lastUsed;
+	}
+
+	@Override
+	public String toString() {
+		return mName;
+	}
+}
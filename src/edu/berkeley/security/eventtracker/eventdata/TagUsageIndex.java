@@ -0,0 +1,73 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps the usage counts and last used times of the tag dictionary in step
+ * with the events, and adds the tags of written events to the dictionary.
+ * Tags are never removed when their count drops to zero, since the user may
+ * have created them without any events. The last used time only moves
+ * forward on writes; a rebuild lowers it again if events were removed.
+ */
+final class TagUsageIndex implements EventIndex {
+
+	@Override
+	public void eventWritten(SQLiteDatabase db, EventEntry before, EventEntry after) {
+		String beforeTag = isCounted(before) ? before.mTag : null;
+		String afterTag = isCounted(after) ? after.mTag : null;
+		if (beforeTag != null && !beforeTag.equals(afterTag))
+			db.execSQL("UPDATE " + TagsDBAdapter.DATABASE_TABLE + " SET "
+					+ TagsDBAdapter.KEY_USAGE_COUNT + " = " + TagsDBAdapter.KEY_USAGE_COUNT
+					+ " - 1 WHERE " + TagsDBAdapter.KEY_TAG + " = ?", new Object[] { beforeTag });
+		if (afterTag != null) {
+			int increment = afterTag.equals(beforeTag) ? 0 : 1;
+			TagsDBAdapter.insertIfAbsent(db, afterTag);
+			db.execSQL("UPDATE " + TagsDBAdapter.DATABASE_TABLE + " SET "
+					+ TagsDBAdapter.KEY_USAGE_COUNT + " = " + TagsDBAdapter.KEY_USAGE_COUNT + " + "
+					+ increment + ", " + TagsDBAdapter.KEY_LAST_USED + " = MAX("
+					+ TagsDBAdapter.KEY_LAST_USED + ", " + after.mStartTime + ") WHERE "
+					+ TagsDBAdapter.KEY_TAG + " = ?", new Object[] { afterTag });
+		}
+		if (beforeTag != null || afterTag != null)
+			TagsDBAdapter.tagsChanged();
+	}
+
+	@Override
+	public void rebuild(SQLiteDatabase db) {
+		String tag = EventKey.TAG.columnName();
+		String start = EventKey.START_TIME.columnName();
+		db.execSQL("UPDATE " + TagsDBAdapter.DATABASE_TABLE + " SET "
+				+ TagsDBAdapter.KEY_USAGE_COUNT + " = 0, " + TagsDBAdapter.KEY_LAST_USED + " = 0");
+		// One pass over the events, grouped by tag in the order the tags were
+		// first used, so that new tags get their ids in that order.
+		Cursor usage = db.query(EventArchive.allEvents(db), new String[] { tag, "COUNT(*)",
+				"MAX(" + start + ")" }, EventKey.IS_DELETED.columnName() + " = 0 AND " + tag
+				+ " != ''", null, tag, null, "MIN(" + start + ")");
+		SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+				+ TagsDBAdapter.DATABASE_TABLE + " (" + TagsDBAdapter.KEY_TAG + ") VALUES (?)");
+		SQLiteStatement update = db.compileStatement("UPDATE " + TagsDBAdapter.DATABASE_TABLE
+				+ " SET " + TagsDBAdapter.KEY_USAGE_COUNT + " = ?, " + TagsDBAdapter.KEY_LAST_USED
+				+ " = ? WHERE " + TagsDBAdapter.KEY_TAG + " = ?");
+		try {
+			while (usage.moveToNext()) {
+				insert.bindString(1, usage.getString(0));
+				insert.executeInsert();
+				update.bindLong(1, usage.getLong(1));
+				update.bindLong(2, usage.getLong(2));
+				update.bindString(3, usage.getString(0));
+				update.execute();
+			}
+		} finally {
+			usage.close();
+			insert.close();
+			update.close();
+		}
+		TagsDBAdapter.tagsChanged();
+	}
+
+	private static boolean isCounted(EventEntry event) {
+		return event != null && !event.deleted && event.mTag != null && event.mTag.length() > 0;
+	}
+}
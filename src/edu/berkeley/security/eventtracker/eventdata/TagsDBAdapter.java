@@ -16,15 +16,48 @@
 
 package edu.berkeley.security.eventtracker.eventdata;
 
-import android.content.ContentValues;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
-
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import edu.berkeley.security.eventtracker.eventdata.DataChange.Kind;
+
+/**
+ * The tag dictionary: every tag once, with an id, the number of undeleted
+ * events using it and when it was last used. The dictionary is read through
+ * an in-memory cache that is dropped whenever the table changes, so listing
+ * the tags normally does not touch the database.
+ */
 public class TagsDBAdapter extends AbstractDbAdapter {
 	public static final String KEY_TAG = "tag";
 	public static final String KEY_ROWID = "_id";
-	private static final String DATABASE_TABLE = "tagData";
+	public static final String KEY_USAGE_COUNT = "usageCount";
+	public static final String KEY_LAST_USED = "lastUsed";
+	static final String DATABASE_TABLE = "tagData";
+	static final String TABLE_CREATE = "create table " + DATABASE_TABLE + " (" + KEY_ROWID
+			+ " integer primary key autoincrement, " + KEY_TAG + " text not null unique, "
+			+ KEY_USAGE_COUNT + " integer not null default 0, " + KEY_LAST_USED
+			+ " integer not null default 0);";
+
+	/** Counts the changes to the table, shared by all adapters. */
+	private static final AtomicInteger sChangeCount = new AtomicInteger();
+	private static final Runnable sCountChange = new Runnable() {
+		@Override
+		public void run() {
+			sChangeCount.incrementAndGet();
+		}
+	};
+
+	/** The tags in the order they were created, or null until read. */
+	private List<Tag> mCachedTags;
+	/** The value of sChangeCount when mCachedTags was read. */
+	private int mCachedChangeCount;
 
 	/**
 	 * Constructor - takes the context to allow the database to be
@@ -37,14 +70,22 @@ public class TagsDBAdapter extends AbstractDbAdapter {
 		super(ctx);
 	}
 
+	/**
+	 * Adds a tag to the dictionary, unless it is already there.
+	 * 
+	 * @return the id of the tag, or -1 if it could not be added
+	 */
 	public long createTagEntry(String tag) {
-
-		ContentValues initialValues = new ContentValues();
-		initialValues.put(KEY_TAG, tag);
-
-		long toBeReturned = mDb.insert(DATABASE_TABLE, null, initialValues);
-		return toBeReturned;
-
+		long id = insertIfAbsent(mDb, tag);
+		if (id != -1)
+			return id;
+		Cursor cursor = mDb.query(DATABASE_TABLE, new String[] { KEY_ROWID }, KEY_TAG + " = ?",
+				new String[] { tag }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+		} finally {
+			cursor.close();
+		}
 	}
 
 	/**
@@ -55,8 +96,13 @@ public class TagsDBAdapter extends AbstractDbAdapter {
 	 * @return true if deleted, false otherwise
 	 */
 	public boolean deleteEntry(Long rowId) {
-
-		return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		boolean deleted = mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		if (deleted) {
+			tagsChanged();
+			if (isSharedDatabase())
+				ChangeBus.getInstance().publishOnCommit(DataChange.forTag(Kind.DELETED, rowId));
+		}
+		return deleted;
 	}
 
 	/**
@@ -72,8 +118,8 @@ public class TagsDBAdapter extends AbstractDbAdapter {
 
 		Cursor mCursor =
 
-		mDb.query(true, DATABASE_TABLE, new String[] { KEY_ROWID, KEY_TAG }, KEY_ROWID + "="
-				+ rowId, null, null, null, null, null);
+		mDb.query(true, DATABASE_TABLE, new String[] { KEY_ROWID, KEY_TAG, KEY_USAGE_COUNT,
+				KEY_LAST_USED }, KEY_ROWID + "=" + rowId, null, null, null, null, null);
 		if (mCursor != null) {
 			mCursor.moveToFirst();
 		}
@@ -84,9 +130,63 @@ public class TagsDBAdapter extends AbstractDbAdapter {
 	 * @return a cursor for all of the tags in the database
 	 */
 	public Cursor getTags() {
-		return mDb.query(DATABASE_TABLE, new String[] { KEY_ROWID, KEY_TAG }, null, null, null,
-				null, null);
+		return mDb.query(DATABASE_TABLE, new String[] { KEY_ROWID, KEY_TAG, KEY_USAGE_COUNT,
+				KEY_LAST_USED }, null, null, null, null, KEY_ROWID);
+	}
+
+	/**
+	 * @return every tag in the order they were created, read from the cache
+	 *         unless the table changed since it was last read
+	 */
+	public synchronized List<Tag> getTagList() {
+		int changeCount = sChangeCount.get();
+		if (mCachedTags == null || mCachedChangeCount != changeCount) {
+			Cursor cursor = getTags();
+			try {
+				List<Tag> tags = new ArrayList<Tag>(cursor.getCount());
+				while (cursor.moveToNext())
+					tags.add(new Tag(cursor.getLong(0), cursor.getString(1), cursor.getInt(2),
+							cursor.getLong(3)));
+				mCachedTags = Collections.unmodifiableList(tags);
+				mCachedChangeCount = changeCount;
+			} finally {
+				cursor.close();
+			}
+		}
+		return mCachedTags;
+	}
+
+	/**
+	 * Adds a tag to the dictionary of the given database unless it is already
+	 * there. The new tag is only published if the database is the routes
+	 * database.
+	 * 
+	 * @return the id of the new tag, or -1 if it was already there
+	 */
+	static long insertIfAbsent(SQLiteDatabase db, String tag) {
+		SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + DATABASE_TABLE
+				+ " (" + KEY_TAG + ") VALUES (?)");
+		try {
+			insert.bindString(1, tag);
+			long id = insert.executeInsert();
+			if (id != -1) {
+				tagsChanged();
+				if (isSharedDatabase(db))
+					ChangeBus.getInstance().publishOnCommit(DataChange.forTag(Kind.INSERTED, id));
+			}
+			return id;
+		} finally {
+			insert.close();
+		}
+	}
 
+	/**
+	 * Drops the cached tags of every adapter once the current transaction
+	 * commits, so that no adapter caches the tags as they were before it.
+	 * Must be called after each change to the table.
+	 */
+	static void tagsChanged() {
+		AfterCommit.run(sCountChange);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,319 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An in-memory index of when each undeleted event took place, answering
+ * which events overlap a period, which cover it, and which parts of it no
+ * event covers. Events are intervals [start, end); an event that has not
+ * ended yet lasts forever.
+ * <p>
+ * The intervals are held in parallel arrays sorted by start time, which are
+ * read as an implicit balanced binary tree: the node at index i is at the
+ * level given by the number of trailing one bits of i. Each node also holds
+ * the latest end in its subtree, so an overlap query only descends into
+ * subtrees that can contain a match and takes O(log n + k) for k matches.
+ * <p>
+ * The index is built from the store on the first query and kept up to date
+ * by {@link #eventWritten(EventEntry)}; each write costs O(n) array moves,
+ * which is cheap next to rebuilding it from the store.
+ */
+public final class TimelineIndex {
+
+	/**
+	 * A period of time, [mStart, mEnd).
+	 */
+	public static final class Span {
+		public final long mStart;
+		public final long mEnd;
+
+		Span(long start, long end) {
+			mStart = start;
+			mEnd = end;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + mStart + ", " + mEnd + ")";
+		}
+	}
+
+	/** The end of an event that has not ended. */
+	private static final long OPEN_END = Long.MAX_VALUE;
+	/** Subtrees of at most this level are scanned instead of descended. */
+	private static final int SCAN_LEVEL = 3;
+
+	private final EventStore mStore;
+	private boolean mBuilt;
+	private int mSize;
+	private long[] mStarts = new long[0];
+	private long[] mEnds = new long[0];
+	private long[] mRowIds = new long[0];
+	/** The latest end in the subtree of each node. */
+	private long[] mMaxEnds = new long[0];
+	/** The level of the root, or -1 if the index is empty. */
+	private int mRootLevel = -1;
+
+	/**
+	 * @param store
+	 *            the store to build the index from on first use
+	 */
+	public TimelineIndex(EventStore store) {
+		mStore = store;
+	}
+
+	/**
+	 * Updates the index after an event was written. Does nothing if the
+	 * index has not been built yet, since it will read the event then.
+	 *
+	 * @param event
+	 *            the event as it now is in the store
+	 */
+	public synchronized void eventWritten(EventEntry event) {
+		if (!mBuilt)
+			return;
+		for (int i = 0; i < mSize; i++) {
+			if (mRowIds[i] == event.mDbRowID) {
+				remove(i);
+				break;
+			}
+		}
+		if (!event.deleted)
+			insert(event.mStartTime, endOf(event), event.mDbRowID);
+		augment();
+	}
+
+	/**
+	 * Forgets the index, so that it is built again on the next query. Used
+	 * after many events changed at once.
+	 */
+	public synchronized void invalidate() {
+		mBuilt = false;
+		mSize = 0;
+		mStarts = mEnds = mRowIds = mMaxEnds = new long[0];
+		mRootLevel = -1;
+	}
+
+	/**
+	 * @return the row ids of the events that overlap [from, to), in start
+	 *         time order
+	 */
+	public synchronized long[] findOverlapping(long from, long to) {
+		ensureBuilt();
+		int[] matches = overlapping(from, to);
+		long[] rowIds = new long[matches.length];
+		for (int i = 0; i < matches.length; i++)
+			rowIds[i] = mRowIds[matches[i]];
+		return rowIds;
+	}
+
+	/**
+	 * @return the row ids of the events that cover all of [from, to), in
+	 *         start time order
+	 */
+	public synchronized long[] findContaining(long from, long to) {
+		ensureBuilt();
+		int[] matches = overlapping(from, to);
+		int count = 0;
+		for (int match : matches)
+			if (mStarts[match] <= from && mEnds[match] >= to)
+				matches[count++] = match;
+		long[] rowIds = new long[count];
+		for (int i = 0; i < count; i++)
+			rowIds[i] = mRowIds[matches[i]];
+		return rowIds;
+	}
+
+	/**
+	 * @return the parts of [from, to) that no event covers, in time order
+	 */
+	public synchronized List<Span> findGaps(long from, long to) {
+		ensureBuilt();
+		List<Span> gaps = new ArrayList<Span>();
+		long covered = from;
+		for (int match : overlapping(from, to)) {
+			if (mStarts[match] > covered)
+				gaps.add(new Span(covered, mStarts[match]));
+			covered = Math.max(covered, mEnds[match]);
+		}
+		if (covered < to)
+			gaps.add(new Span(covered, to));
+		return gaps;
+	}
+
+	/**
+	 * @return the number of events in the index
+	 */
+	public synchronized int size() {
+		ensureBuilt();
+		return mSize;
+	}
+
+	private static long endOf(EventEntry event) {
+		return event.mEndTime == 0 ? OPEN_END : event.mEndTime;
+	}
+
+	private void ensureBuilt() {
+		if (mBuilt)
+			return;
+		final List<long[]> intervals = new ArrayList<long[]>();
+		mStore.scanEvents(new EventStore.EventVisitor() {
+			@Override
+			public void visit(EventEntry event) {
+				intervals.add(new long[] { event.mStartTime, endOf(event), event.mDbRowID });
+			}
+		});
+		Collections.sort(intervals, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+			}
+		});
+		mSize = intervals.size();
+		mStarts = new long[mSize];
+		mEnds = new long[mSize];
+		mRowIds = new long[mSize];
+		mMaxEnds = new long[mSize];
+		for (int i = 0; i < mSize; i++) {
+			long[] interval = intervals.get(i);
+			mStarts[i] = interval[0];
+			mEnds[i] = interval[1];
+			mRowIds[i] = interval[2];
+		}
+		augment();
+		mBuilt = true;
+	}
+
+	/**
+	 * Finds the positions of the intervals overlapping [from, to), in order.
+	 */
+	private int[] overlapping(long from, long to) {
+		int[] matches = new int[16];
+		int count = 0;
+		if (mRootLevel < 0)
+			return new int[0];
+		// Each entry is a node, its level, and whether its left subtree is done.
+		int[] nodes = new int[64];
+		int[] levels = new int[64];
+		boolean[] leftDone = new boolean[64];
+		int top = 0;
+		nodes[top] = (1 << mRootLevel) - 1;
+		levels[top] = mRootLevel;
+		leftDone[top++] = false;
+		while (top > 0) {
+			int node = nodes[--top];
+			int level = levels[top];
+			if (level <= SCAN_LEVEL) {
+				// A small subtree: scan its nodes, which are contiguous.
+				int first = node >> level << level;
+				int last = Math.min(first + (1 << (level + 1)) - 1, mSize);
+				for (int i = first; i < last && mStarts[i] < to; i++) {
+					if (from < mEnds[i]) {
+						if (count == matches.length)
+							matches = grow(matches);
+						matches[count++] = i;
+					}
+				}
+			} else if (!leftDone[top]) {
+				int left = node - (1 << (level - 1));
+				nodes[top] = node;
+				levels[top] = level;
+				leftDone[top++] = true;
+				// Nodes past the end still have children within it.
+				if (left >= mSize || mMaxEnds[left] > from) {
+					nodes[top] = left;
+					levels[top] = level - 1;
+					leftDone[top++] = false;
+				}
+			} else if (node < mSize && mStarts[node] < to) {
+				if (from < mEnds[node]) {
+					if (count == matches.length)
+						matches = grow(matches);
+					matches[count++] = node;
+				}
+				nodes[top] = node + (1 << (level - 1));
+				levels[top] = level - 1;
+				leftDone[top++] = false;
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(matches, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Computes the latest end in the subtree of every node, bottom up, and
+	 * the level of the root.
+	 */
+	private void augment() {
+		if (mSize == 0) {
+			mRootLevel = -1;
+			return;
+		}
+		// The rightmost node of the current level, and its subtree's end.
+		int lastNode = 0;
+		long lastEnd = 0;
+		for (int i = 0; i < mSize; i += 2) {
+			lastNode = i;
+			lastEnd = mMaxEnds[i] = mEnds[i];
+		}
+		int level;
+		for (level = 1; 1 << level <= mSize; level++) {
+			int half = 1 << (level - 1);
+			for (int i = (half << 1) - 1; i < mSize; i += half << 2) {
+				long leftEnd = mMaxEnds[i - half];
+				// A right child past the end stands for the rightmost subtree.
+				long rightEnd = i + half < mSize ? mMaxEnds[i + half] : lastEnd;
+				mMaxEnds[i] = Math.max(mEnds[i], Math.max(leftEnd, rightEnd));
+			}
+			lastNode = (lastNode >> level & 1) != 0 ? lastNode - half : lastNode + half;
+			if (lastNode < mSize && mMaxEnds[lastNode] > lastEnd)
+				lastEnd = mMaxEnds[lastNode];
+		}
+		mRootLevel = level - 1;
+	}
+
+	private void insert(long start, long end, long rowId) {
+		if (mSize == mStarts.length) {
+			int capacity = Math.max(16, mSize * 2);
+			mStarts = copy(mStarts, capacity, mSize);
+			mEnds = copy(mEnds, capacity, mSize);
+			mRowIds = copy(mRowIds, capacity, mSize);
+			mMaxEnds = new long[capacity];
+		}
+		int position = mSize;
+		while (position > 0 && mStarts[position - 1] > start)
+			position--;
+		int tail = mSize - position;
+		System.arraycopy(mStarts, position, mStarts, position + 1, tail);
+		System.arraycopy(mEnds, position, mEnds, position + 1, tail);
+		System.arraycopy(mRowIds, position, mRowIds, position + 1, tail);
+		mStarts[position] = start;
+		mEnds[position] = end;
+		mRowIds[position] = rowId;
+		mSize++;
+	}
+
+	private void remove(int position) {
+		int tail = mSize - position - 1;
+		System.arraycopy(mStarts, position + 1, mStarts, position, tail);
+		System.arraycopy(mEnds, position + 1, mEnds, position, tail);
+		System.arraycopy(mRowIds, position + 1, mRowIds, position, tail);
+		mSize--;
+	}
+
+	private static long[] copy(long[] array, int capacity, int length) {
+		long[] copy = new long[capacity];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
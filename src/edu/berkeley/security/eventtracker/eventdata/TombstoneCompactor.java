@@ -0,0 +1,74 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+/**
+ * Physically removes soft-deleted events once the server has received their
+ * deletion and they have been deleted for long enough. The work is done in
+ * small batches, each in its own short transaction, so that reads on the
+ * shared connection get in between batches.
+ * <p>
+ * Deleted events contribute nothing to the derived indexes, so only the
+ * event rows, their GPS fixes and any journal entries need to go.
+ */
+final class TombstoneCompactor {
+	/** The most events removed in one transaction. */
+	static final int BATCH_SIZE = 50;
+
+	private TombstoneCompactor() {
+	}
+
+	/**
+	 * Removes tombstones until there are none left or the time budget is
+	 * spent. A batch that has started is always finished.
+	 *
+	 * @param deletedBefore
+	 *            only events deleted before this time are removed
+	 * @param budgetMillis
+	 *            the time after which no further batch is started
+	 * @return the number of events removed
+	 */
+	static int compact(SQLiteDatabase db, long deletedBefore, long budgetMillis) {
+		long deadline = SystemClock.uptimeMillis() + budgetMillis;
+		int removed = 0;
+		int batch;
+		do {
+			batch = compactBatch(db, deletedBefore);
+			removed += batch;
+		} while (batch == BATCH_SIZE && SystemClock.uptimeMillis() < deadline);
+		return removed;
+	}
+
+	private static int compactBatch(SQLiteDatabase db, long deletedBefore) {
+		db.beginTransaction();
+		try {
+			Cursor cursor = db.query(EventDbAdapter.DATABASE_TABLE,
+					new String[] { EventKey.ROW_ID.columnName() }, EventKey.IS_DELETED.columnName()
+							+ " = 1 AND " + EventKey.RECEIVED_AT_SERVER.columnName() + " = 1 AND "
+							+ EventKey.UPDATE_TIME.columnName() + " < " + deletedBefore, null, null,
+					null, null, Integer.toString(BATCH_SIZE));
+			StringBuilder ids = new StringBuilder();
+			int count = 0;
+			try {
+				while (cursor.moveToNext()) {
+					ids.append(count++ == 0 ? "" : ",").append(cursor.getLong(0));
+				}
+			} finally {
+				cursor.close();
+			}
+			if (count > 0) {
+				String in = " IN (" + ids + ")";
+				db.delete(GPSDbAdapter.DATABASE_TABLE, GPSDbAdapter.KEY_EVENT_ROWID + in, null);
+				db.delete(GPSDbAdapter.TRACK_TABLE, GPSDbAdapter.KEY_EVENT_ROWID + in, null);
+				db.delete(SyncJournal.TABLE, SyncJournal.KEY_EVENT_ID + in, null);
+				db.delete(EventDbAdapter.DATABASE_TABLE, EventKey.ROW_ID.columnName() + in, null);
+			}
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+}
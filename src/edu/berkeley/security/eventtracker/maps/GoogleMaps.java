@@ -21,6 +21,7 @@ import com.google.android.maps.OverlayItem;
 
 import edu.berkeley.security.eventtracker.R;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.EventManager;
 import edu.berkeley.security.eventtracker.eventdata.GPSCoordinates;
 
 public class GoogleMaps extends MapActivity {
@@ -45,8 +46,7 @@ public class GoogleMaps extends MapActivity {
 		super.onResume();
 
 		EventEntry entry = (EventEntry) this.getIntent().getExtras().getSerializable("EventData");
-		gpsList = new ArrayList<GPSCoordinates>();
-		gpsList = entry.getGPSCoordinates();
+		gpsList = EventManager.getManager().getGPSCoordinates(entry.mDbRowID);
 		if (gpsList.size() == 0) {
 			AlertDialog.Builder dialog = new AlertDialog.Builder(this);
 			dialog.setMessage("No data available yet");
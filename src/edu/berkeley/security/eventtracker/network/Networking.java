@@ -29,9 +29,9 @@ import android.content.Intent;
 import android.util.Log;
 import edu.berkeley.security.eventtracker.EventActivity;
 import edu.berkeley.security.eventtracker.Settings;
-import edu.berkeley.security.eventtracker.eventdata.EventCursor;
 import edu.berkeley.security.eventtracker.eventdata.EventDataSerializer;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.GPSCoordinates;
 
 /**
  * This is the networking class. Sends requests to the server.
@@ -50,18 +50,15 @@ public class Networking {
 
 	public static void sendAllEvents(Context context) {
 		if (Settings.isSychronizationEnabled()) {
-			EventCursor theCursor = EventActivity.mEventManager.fetchPhoneOnlyEvents();
+			long syncSequence = EventActivity.mEventManager.getSyncSequence();
+			if (syncSequence == 0)
+				return; // Nothing was ever journaled, or all of it was sent.
 			// send them all! LEAVE NO EVENT BEHIND
-			EventEntry nextEvent;
-			ArrayList<EventEntry> listOfEvents = new ArrayList<EventEntry>();
-			while (theCursor.moveToNext()) {
-				nextEvent = theCursor.getEvent();
-				if (nextEvent != null) {
-					listOfEvents.add(nextEvent);
-				}
-			}
+			ArrayList<EventEntry> listOfEvents = new ArrayList<EventEntry>(
+					EventActivity.mEventManager.fetchUnsyncedEvents(syncSequence));
 			if (!listOfEvents.isEmpty()) {
-				Networking.sendToServerBulk(ServerRequest.SENDDATA, listOfEvents, context);
+				Networking.sendToServerBulk(ServerRequest.SENDDATA, listOfEvents, syncSequence,
+						context);
 			}
 		}
 	}
@@ -161,16 +158,20 @@ public class Networking {
 	 *            update some event, delete some event)
 	 * @param data
 	 *            - the event to be send to the server
+	 * @param syncSequence
+	 *            - the sync journal sequence number the events were read up
+	 *            to, acknowledged once the server has them
 	 * @param context
 	 *            - dont't worry about this.
 	 */
 	public static void sendToServerBulk(ServerRequest request, ArrayList<EventEntry> listOfEvents,
-			Context context) {
+			long syncSequence, Context context) {
 		// check to see if allowed to send data
 		if (Settings.isSychronizationEnabled()) {
 
 			Intent intent = new Intent(context, Synchronizer.class);
 			intent.putExtra(Synchronizer.EVENT_LIST_EXTRA, listOfEvents);
+			intent.putExtra(Synchronizer.SYNC_SEQUENCE_EXTRA, syncSequence);
 			intent.putExtra(Synchronizer.REQUEST_EXTRA, request);
 			context.startService(intent);
 		}
@@ -254,13 +255,15 @@ public class Networking {
 			try {
 				JSONArray EventData = new JSONArray();
 				for (EventEntry data : listOfEvents) {
+					List<GPSCoordinates> track = EventActivity.mEventManager
+							.getGPSCoordinates(data.mDbRowID);
 					JSONObject eventJSON = new JSONObject();
 					eventJSON.accumulate(EVENT_UUID_PARAM, data.mUUID);
 					eventJSON.accumulate(EVENT_DELETED_PARAM, String.valueOf(data.deleted));
 					eventJSON.accumulate(EVENT_UPDATED_AT_PARAM,
 							Synchronizer.dateFormatter.format(data.mUpdateTime));
 					eventJSON.accumulate(EVENT_DATA_PARAM, EventDataSerializer
-							.encryptJSONObject(EventDataSerializer.toJSONObject(data)));
+							.encryptJSONObject(EventDataSerializer.toJSONObject(data, track)));
 					EventData.put(eventJSON);
 				}
 				params.add(new BasicNameValuePair(EVENT_DATA_PARAM, EventData.toString()));
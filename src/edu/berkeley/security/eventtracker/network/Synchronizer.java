@@ -1,7 +1,11 @@
 package edu.berkeley.security.eventtracker.network;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,9 +24,16 @@ import edu.berkeley.security.eventtracker.eventdata.EventManager;
 public class Synchronizer extends IntentService {
 	public static final String REQUEST_EXTRA = "Request";
 	public static final String EVENT_LIST_EXTRA = "EventList";
+	public static final String SYNC_SEQUENCE_EXTRA = "SyncSequence";
 	public static final SimpleDateFormat dateFormatter = new SimpleDateFormat(
 			"yyyy-MM-dd HH:mm:ss z");
 
+	private static final long ONE_DAY = 24 * 60 * 60 * 1000L;
+	/** How long to spend removing old deleted events after each upload. */
+	private static final long TOMBSTONE_BUDGET_MILLIS = 500;
+	/** How long to spend archiving old events after each upload. */
+	private static final long ARCHIVE_BUDGET_MILLIS = 500;
+
 	private EventManager manager;
 
 	public Synchronizer() {
@@ -95,8 +106,16 @@ public class Synchronizer extends IntentService {
 			break;
 		case SENDDATA:
 			response = Networking.sendPostRequest(listOfEvents, request);
-			if (response.isSuccess()) {
-				manager.updateDatabaseBulk(listOfEvents, true);
+			// Acknowledge through the journal rather than by writing back the
+			// events sent, which may have been edited since they were read.
+			long syncSequence = bundle.getLong(SYNC_SEQUENCE_EXTRA, 0);
+			if (response.isSuccess() && syncSequence > 0) {
+				manager.acknowledgeSync(syncSequence);
+				// Deletions the server now has may be old enough to drop.
+				manager.compactTombstones(Settings.getTombstoneRetentionDays() * ONE_DAY,
+						TOMBSTONE_BUDGET_MILLIS);
+				manager.archiveEvents(Settings.getArchiveAgeDays() * ONE_DAY,
+						ARCHIVE_BUDGET_MILLIS);
 			}
 			break;
 		case REGISTER:
@@ -124,7 +143,8 @@ public class Synchronizer extends IntentService {
 
 	/**
 	 * Parses a poll response. Updates and creates relevant events and updates
-	 * the pollTime.
+	 * the pollTime. If the response has an event more than once, only its
+	 * last version is applied, so that a new event is created only once.
 	 * 
 	 * @param jsonResponseString
 	 *            the response from the server.
@@ -137,8 +157,16 @@ public class Synchronizer extends IntentService {
 
 		String pollTime = jsonResponse.getString("pollTime");
 		JSONArray events = jsonResponse.getJSONArray("events");
+		Map<String, JSONObject> latestByUUID = new LinkedHashMap<String, JSONObject>();
 		for (int eventIndex = 0; eventIndex < events.length(); eventIndex++) {
 			JSONObject eventData = events.getJSONObject(eventIndex);
+			String uuid = eventData.getString("uuid");
+			latestByUUID.remove(uuid); // keep the order of the last versions
+			latestByUUID.put(uuid, eventData);
+		}
+		ArrayList<EventEntry> changedEvents = new ArrayList<EventEntry>(latestByUUID.size());
+		for (Map.Entry<String, JSONObject> latest : latestByUUID.entrySet()) {
+			JSONObject eventData = latest.getValue();
 			String encryptedData = eventData.getString("content");
 			String passwd = Settings.getPassword();
 			String unencryptedData = null;
@@ -150,23 +178,37 @@ public class Synchronizer extends IntentService {
 			}
 			JSONObject eventContents = new JSONObject(unencryptedData);
 
-			String uuid = eventData.getString("uuid");
-			EventEntry event = manager.findOrCreateByUUID(uuid);
-			String updated_at = eventData.getString("updated_at");
-			if (!event.persisted || !event.newerThan(updated_at)) {
+			EventEntry event = manager.findOrCreateByUUID(latest.getKey());
+			Date updated_at = parseUpdateTime(eventData.getString("updated_at"));
+			if (!event.persisted || updated_at == null || !event.newerThan(updated_at)) {
 				event.mName = eventContents.getString("name");
 				event.mNotes = eventContents.getString("notes");
 				event.mStartTime = eventContents.getLong("startTime");
 				event.mEndTime = eventContents.getLong("endTime");
 				event.deleted = eventData.getBoolean("deleted");
 				event.mTag = eventContents.getString("tag");
-				if (event.mTag != null && event.mTag.length() != 0)
-					EventActivity.mEventManager.addTag(event.mTag);
 				if (event.deleted && !event.persisted)
-					break; // trying to create a deleted event!
-				manager.updateDatabase(event, true);
+					continue; // trying to create a deleted event!
+				changedEvents.add(event);
 			}
 		}
+		manager.updateDatabaseBulk(changedEvents, true);
 		Settings.setPollTime(pollTime);
 	}
+
+	/**
+	 * Parses the time the web server last updated an event.
+	 * 
+	 * @return the time, or null if it could not be parsed
+	 */
+	private static Date parseUpdateTime(String timestamp) {
+		// hack to get SimpleDateFormat working with UTC
+		timestamp = timestamp.replace("UTC", "GMT");
+		try {
+			return dateFormatter.parse(timestamp);
+		} catch (ParseException e) {
+			Log.e(EventActivity.LOG_TAG, "Could not parse remote update time.", e);
+			return null;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,312 @@
+package edu.berkeley.security.eventtracker.prediction;
+
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A naive Bayes classifier that keeps nothing but counts and sums, so that an
+ * instance can be taken back out exactly as it was put in. Nominal attributes
+ * are counted per class and value with Laplace smoothing, as in Weka's
+ * NaiveBayes. Numeric attributes are modelled per class as a normal
+ * distribution, from the count, sum and sum of squares of their values.
+ * Missing values are skipped. Instances can also be counted as the arrays of
+ * their values, with NaN for missing values, as from
+ * {@link Instance#toDoubleArray()}.
+ * <p>
+ * {@link #score(double[], double[])} is the fast path for predictions. It
+ * reads log probabilities that are computed from the counts once after they
+ * change, into arrays allocated up front, and it allocates nothing. Its
+ * results are the same, bit for bit, as those of
+ * {@link #distributionForInstance(Instance)}, which works from the counts
+ * directly.
+ */
+final class CountingNaiveBayes implements UpdateableClassifier {
+	private final int mClassIndex;
+	private final int mNumClasses;
+	/** The smallest standard deviation of each numeric attribute. */
+	private final double[] mMinStdDevs;
+	private final double[] mClassCounts;
+	/** Per attribute and class, the number of instances with a value. */
+	private final double[][] mPresent;
+	/** Per nominal attribute, class and value, the number of instances. */
+	private final double[][][] mValueCounts;
+	/** Per numeric attribute and class, the sum of the values. */
+	private final double[][] mSums;
+	/** Per numeric attribute and class, the sum of the squared values. */
+	private final double[][] mSquares;
+	private int mInstanceCount;
+
+	/** Whether the tables below are out of date with the counts. */
+	private boolean mTablesStale = true;
+	/** Per class, the log of its prior probability. */
+	private final double[] mLogPriors;
+	/** Per nominal attribute, class and value, the log of its probability. */
+	private final double[][][] mLogValueProbs;
+	/** Whether each numeric attribute has any values at all. */
+	private final boolean[] mHasValues;
+	/** Per numeric attribute and class, the mean of the normal density. */
+	private final double[][] mMeans;
+	/** Per numeric attribute and class, the variance of the normal density. */
+	private final double[][] mVariances;
+	/** Per numeric attribute and class, the log of the density's scale. */
+	private final double[][] mLogScales;
+
+	/**
+	 * @param header
+	 *            the attributes of the instances, with the class set
+	 * @param minStdDevs
+	 *            for each attribute, the smallest standard deviation to
+	 *            assume if it is numeric, so that a class whose values are
+	 *            all the same does not rule out every other value
+	 */
+	CountingNaiveBayes(Instances header, double[] minStdDevs) {
+		int numAttributes = header.numAttributes();
+		mClassIndex = header.classIndex();
+		mNumClasses = header.numClasses();
+		mMinStdDevs = minStdDevs;
+		mClassCounts = new double[mNumClasses];
+		mPresent = new double[numAttributes][mNumClasses];
+		mValueCounts = new double[numAttributes][][];
+		mSums = new double[numAttributes][];
+		mSquares = new double[numAttributes][];
+		mLogPriors = new double[mNumClasses];
+		mLogValueProbs = new double[numAttributes][][];
+		mHasValues = new boolean[numAttributes];
+		mMeans = new double[numAttributes][];
+		mVariances = new double[numAttributes][];
+		mLogScales = new double[numAttributes][];
+		for (int a = 0; a < numAttributes; a++) {
+			if (a == mClassIndex)
+				continue;
+			if (header.attribute(a).isNominal()) {
+				int numValues = header.attribute(a).numValues();
+				mValueCounts[a] = new double[mNumClasses][numValues];
+				mLogValueProbs[a] = new double[mNumClasses][numValues];
+			} else {
+				mSums[a] = new double[mNumClasses];
+				mSquares[a] = new double[mNumClasses];
+				mMeans[a] = new double[mNumClasses];
+				mVariances[a] = new double[mNumClasses];
+				mLogScales[a] = new double[mNumClasses];
+			}
+		}
+	}
+
+	/**
+	 * Adds an instance with a class value to the counts.
+	 */
+	@Override
+	public void updateClassifier(Instance instance) {
+		count(instance.toDoubleArray(), 1);
+	}
+
+	/**
+	 * Adds the values of an instance with a class value to the counts.
+	 */
+	void add(double[] values) {
+		count(values, 1);
+	}
+
+	/**
+	 * Takes the values of an instance that was added before back out of the
+	 * counts.
+	 */
+	void forget(double[] values) {
+		count(values, -1);
+	}
+
+	/**
+	 * @return the number of instances counted
+	 */
+	int getInstanceCount() {
+		return mInstanceCount;
+	}
+
+	/**
+	 * @return the number of instances counted with the given class value
+	 */
+	int getClassCount(int classValue) {
+		return (int) mClassCounts[classValue];
+	}
+
+	/**
+	 * @return the probability of each class for the instance, whose class
+	 *         value is ignored
+	 */
+	double[] distributionForInstance(Instance instance) {
+		double[] logs = new double[mNumClasses];
+		for (int c = 0; c < mNumClasses; c++)
+			logs[c] = Math.log((mClassCounts[c] + 1) / (mInstanceCount + mNumClasses));
+		for (int a = 0; a < mPresent.length; a++) {
+			if (a == mClassIndex || instance.isMissing(a))
+				continue;
+			double value = instance.value(a);
+			if (mValueCounts[a] != null) {
+				int index = (int) value;
+				int numValues = mValueCounts[a][0].length;
+				for (int c = 0; c < mNumClasses; c++)
+					logs[c] += Math.log((mValueCounts[a][c][index] + 1)
+							/ (mPresent[a][c] + numValues));
+			} else {
+				addLogDensities(a, value, logs);
+			}
+		}
+		// Scale by the largest, so that unlikely instances do not underflow.
+		double max = Double.NEGATIVE_INFINITY;
+		for (double log : logs)
+			max = Math.max(max, log);
+		double total = 0;
+		for (int c = 0; c < mNumClasses; c++) {
+			logs[c] = Math.exp(logs[c] - max);
+			total += logs[c];
+		}
+		for (int c = 0; c < mNumClasses; c++)
+			logs[c] /= total;
+		return logs;
+	}
+
+	/**
+	 * Computes the probability of each class for an instance, without
+	 * allocating.
+	 * 
+	 * @param values
+	 *            the values of the instance, NaN for missing ones; the class
+	 *            value is ignored
+	 * @param scores
+	 *            receives the probability of each class, by class value
+	 */
+	void score(double[] values, double[] scores) {
+		if (mTablesStale)
+			computeTables();
+		for (int c = 0; c < mNumClasses; c++)
+			scores[c] = mLogPriors[c];
+		for (int a = 0; a < mPresent.length; a++) {
+			double value = values[a];
+			if (a == mClassIndex || Double.isNaN(value))
+				continue;
+			if (mLogValueProbs[a] != null) {
+				int index = (int) value;
+				for (int c = 0; c < mNumClasses; c++)
+					scores[c] += mLogValueProbs[a][c][index];
+			} else if (mHasValues[a]) {
+				double[] means = mMeans[a];
+				double[] variances = mVariances[a];
+				double[] logScales = mLogScales[a];
+				for (int c = 0; c < mNumClasses; c++) {
+					double deviation = value - means[c];
+					scores[c] += logScales[c] - deviation * deviation / (2 * variances[c]);
+				}
+			}
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c < mNumClasses; c++)
+			max = Math.max(max, scores[c]);
+		double total = 0;
+		for (int c = 0; c < mNumClasses; c++) {
+			scores[c] = Math.exp(scores[c] - max);
+			total += scores[c];
+		}
+		for (int c = 0; c < mNumClasses; c++)
+			scores[c] /= total;
+	}
+
+	/**
+	 * Computes the log probabilities read by {@link #score}, with the same
+	 * arithmetic as {@link #distributionForInstance(Instance)}.
+	 */
+	private void computeTables() {
+		for (int c = 0; c < mNumClasses; c++)
+			mLogPriors[c] = Math.log((mClassCounts[c] + 1) / (mInstanceCount + mNumClasses));
+		for (int a = 0; a < mPresent.length; a++) {
+			if (a == mClassIndex)
+				continue;
+			if (mValueCounts[a] != null) {
+				int numValues = mValueCounts[a][0].length;
+				for (int c = 0; c < mNumClasses; c++)
+					for (int v = 0; v < numValues; v++)
+						mLogValueProbs[a][c][v] = Math.log((mValueCounts[a][c][v] + 1)
+								/ (mPresent[a][c] + numValues));
+				continue;
+			}
+			double pooledCount = 0, pooledSum = 0, pooledSquares = 0;
+			for (int c = 0; c < mNumClasses; c++) {
+				pooledCount += mPresent[a][c];
+				pooledSum += mSums[a][c];
+				pooledSquares += mSquares[a][c];
+			}
+			mHasValues[a] = pooledCount != 0;
+			double minVariance = mMinStdDevs[a] * mMinStdDevs[a];
+			for (int c = 0; c < mNumClasses && mHasValues[a]; c++) {
+				double count = mPresent[a][c];
+				double sum = mSums[a][c];
+				double squares = mSquares[a][c];
+				if (count == 0) {
+					count = pooledCount;
+					sum = pooledSum;
+					squares = pooledSquares;
+				}
+				double mean = sum / count;
+				double variance = Math.max(squares / count - mean * mean, minVariance);
+				mMeans[a][c] = mean;
+				mVariances[a][c] = variance;
+				mLogScales[a][c] = -0.5 * Math.log(2 * Math.PI * variance);
+			}
+		}
+		mTablesStale = false;
+	}
+
+	private void count(double[] values, int weight) {
+		mTablesStale = true;
+		int c = (int) values[mClassIndex];
+		mClassCounts[c] += weight;
+		mInstanceCount += weight;
+		for (int a = 0; a < mPresent.length; a++) {
+			double value = values[a];
+			if (a == mClassIndex || Double.isNaN(value))
+				continue;
+			mPresent[a][c] += weight;
+			if (mValueCounts[a] != null) {
+				mValueCounts[a][c][(int) value] += weight;
+			} else if (mPresent[a][c] == 0) {
+				// Start over exactly, rather than from rounding errors.
+				mSums[a][c] = 0;
+				mSquares[a][c] = 0;
+			} else {
+				mSums[a][c] += weight * value;
+				mSquares[a][c] += weight * value * value;
+			}
+		}
+	}
+
+	/**
+	 * Adds the log of the normal density of a numeric value under each class.
+	 * A class without values for the attribute uses those of all classes.
+	 */
+	private void addLogDensities(int attribute, double value, double[] logs) {
+		double pooledCount = 0, pooledSum = 0, pooledSquares = 0;
+		for (int c = 0; c < mNumClasses; c++) {
+			pooledCount += mPresent[attribute][c];
+			pooledSum += mSums[attribute][c];
+			pooledSquares += mSquares[attribute][c];
+		}
+		if (pooledCount == 0)
+			return; // the same for every class
+		double minVariance = mMinStdDevs[attribute] * mMinStdDevs[attribute];
+		for (int c = 0; c < mNumClasses; c++) {
+			double count = mPresent[attribute][c];
+			double sum = mSums[attribute][c];
+			double squares = mSquares[attribute][c];
+			if (count == 0) {
+				count = pooledCount;
+				sum = pooledSum;
+				squares = pooledSquares;
+			}
+			double mean = sum / count;
+			double variance = Math.max(squares / count - mean * mean, minVariance);
+			double deviation = value - mean;
+			logs[c] += -0.5 * Math.log(2 * Math.PI * variance) - deviation * deviation
+					/ (2 * variance);
+		}
+	}
+}
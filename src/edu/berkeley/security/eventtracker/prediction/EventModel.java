@@ -1,111 +1,359 @@
 package edu.berkeley.security.eventtracker.prediction;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.TimeZone;
 
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayesUpdateable;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.EventNames;
 import edu.berkeley.security.eventtracker.eventdata.GPSCoordinates;
 
 /**
- * A wrapper for the prediction <tt>Classifier</tt>.
+ * A wrapper for the prediction <tt>Classifier</tt>. The model remembers what
+ * each event contributed to it, so that an edited or deleted event can be
+ * taken back out without rebuilding the model.
  */
 class EventModel {
+	/** Events rarely span more than an hour of start times between them. */
+	private static final double HOUR_MIN_STD_DEV = 0.5;
+	/** About a hundred meters. */
+	private static final double COORDINATE_MIN_STD_DEV = 0.001;
+	private static final long HOUR_MILLIS = 60 * 60 * 1000;
+	private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+	/** The day of the week of January 1, 1970. */
+	private static final int EPOCH_DAY_OF_WEEK = DayOfWeek.THURSDAY.ordinal();
 
 	/** Used to generate new instances with the correct attributes. */
 	private final Instances mBlankInstances;
-	private Collection<String> mClassifiedEventNames;
-	private DefaultClassifier mClassifier;
-	private boolean isEmpty = true;
+	/** Resolves name ids to names, only needed for display. */
+	private final EventNames mEventNames;
+	/** The ids of the classified names, ascending, in class value order. */
+	private final int[] mClassifiedIds;
+	private final CountingNaiveBayes mClassifier;
+	/**
+	 * The attribute values each event was counted with, by row id, or null
+	 * for events that are not counted.
+	 */
+	private double[][] mCounted = new double[64][];
+	/** Every event written before this time is reflected in the model. */
+	private long mSeenUntil;
+	/**
+	 * The time zone hours and days are scored in, fixed when the model is
+	 * created, so that scoring does not clone the default one each time.
+	 */
+	private final TimeZone mTimeZone = TimeZone.getDefault();
+	/** Scratch space for the values of the instance being scored. */
+	private final double[] mScoredValues = new double[5];
 
-	EventModel(Collection<String> eventNames) {
-		mClassifiedEventNames = eventNames;
+	/**
+	 * @param eventNames
+	 *            the name dictionary the ids refer to
+	 * @param classifiedIds
+	 *            the ids of the names to classify
+	 */
+	EventModel(EventNames eventNames, BitSet classifiedIds) {
+		mEventNames = eventNames;
+		mClassifiedIds = new int[classifiedIds.cardinality()];
+		for (int id = classifiedIds.nextSetBit(0), i = 0; id >= 0; id = classifiedIds
+				.nextSetBit(id + 1))
+			mClassifiedIds[i++] = id;
 		// Generate a blank set of instances.
-		ArrayList<Attribute> attributes = generateEventAttributes(eventNames);
+		ArrayList<Attribute> attributes = generateEventAttributes(mClassifiedIds);
 		Instances eventInstances = new Instances("EventData", attributes, 0);
 		eventInstances.setClassIndex(attributes.size() - 1);
 		// Store a copy of the instances to keep track of attributes.
 		mBlankInstances = new Instances(eventInstances, 0);
-		mClassifier = new DefaultClassifier(eventInstances);
+		mClassifier = new CountingNaiveBayes(eventInstances, new double[] { HOUR_MIN_STD_DEV, 0,
+				COORDINATE_MIN_STD_DEV, COORDINATE_MIN_STD_DEV, 0 });
 	}
 
 	/**
-	 * Calculates the distribution of probabilities over all predictable events.
+	 * Calculates the distribution of probabilities over all predictable events
+	 * starting at the given time.
 	 * 
-	 * @return a <tt>SortedMap</tt> mapping probabilities to events. In order
-	 *         from highest to lowest probability
-	 */
-	SortedSet<PredictedPair> getEventDistribution() {
-		SortedSet<PredictedPair> predictionResults = new TreeSet<PredictedPair>(
-				new PredictedPairComparator());
-		if (!isEmpty() && mClassifiedEventNames.size() > 1) {
-			Instance newEventInstance = newInstance();
-			double[] predictions;
-			try {
-				predictions = mClassifier.distributionForInstance(newEventInstance);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
-			for (int attributeIndex = 0; attributeIndex < predictions.length; attributeIndex++) {
-				predictionResults.add(new PredictedPair(getEventName(attributeIndex),
-						predictions[attributeIndex]));
-			}
+	 * @param names
+	 *            an up to date name dictionary, to rank names with the same
+	 *            probability by
+	 * @return the ranking of the predictable events, empty if there is
+	 *         nothing to choose between
+	 */
+	PredictionRanking rank(long time, EventNames names) {
+		if (isEmpty() || mClassifiedIds.length <= 1)
+			return PredictionRanking.EMPTY;
+		int nClasses = mClassifiedIds.length;
+		double[] scores = new double[nClasses];
+		score(time, scores);
+		String[] eventNames = new String[nClasses];
+		long[] lastSeen = new long[nClasses];
+		int[] occurrences = new int[nClasses];
+		for (int i = 0; i < nClasses; i++) {
+			int id = mClassifiedIds[i];
+			eventNames[i] = mEventNames.getName(id);
+			lastSeen[i] = names.getLastSeen(id);
+			occurrences[i] = names.getOccurrences(id);
+		}
+		return new PredictionRanking(mClassifiedIds, eventNames, scores, lastSeen, occurrences);
+	}
+
+	/**
+	 * Computes the probability of each class for an event starting at the
+	 * given time at an unknown place, without allocating. The hour and day
+	 * are worked out from the offset of the time zone rather than through a
+	 * <tt>Calendar</tt>, and come out the same. Not thread safe; the model is
+	 * only used from one thread at a time.
+	 * 
+	 * @param scores
+	 *            receives the probability of each class, by class value
+	 */
+	void score(long time, double[] scores) {
+		long local = time + mTimeZone.getOffset(time);
+		long day = local / DAY_MILLIS;
+		if (local % DAY_MILLIS < 0)
+			day--;
+		mScoredValues[0] = (local - day * DAY_MILLIS) / HOUR_MILLIS;
+		mScoredValues[1] = ((day + EPOCH_DAY_OF_WEEK) % 7 + 7) % 7;
+		mScoredValues[2] = Double.NaN;
+		mScoredValues[3] = Double.NaN;
+		mClassifier.score(mScoredValues, scores);
+	}
+
+	/**
+	 * Computes what {@link #score(long, double[])} does the way predictions
+	 * used to be made, through a <tt>Calendar</tt> and an {@link Instance}.
+	 * Kept to check the fast path against.
+	 * 
+	 * @return the probability of each class, by class value
+	 */
+	double[] scoreInstance(long time) {
+		return mClassifier.distributionForInstance(toInstance(Calendar.getInstance(
+				mTimeZone), time, Double.NaN, Double.NaN, -1));
+	}
+
+	/**
+	 * Computes the probability of each class with another classifier trained
+	 * on the same attributes, such as the one from {@link #trainReference()}.
+	 * 
+	 * @return the probability of each class, by class value
+	 */
+	double[] scoreInstance(Classifier classifier, long time) throws Exception {
+		return classifier.distributionForInstance(toInstance(Calendar.getInstance(mTimeZone),
+				time, Double.NaN, Double.NaN, -1));
+	}
+
+	/**
+	 * Trains Weka's <tt>NaiveBayesUpdateable</tt>, which the model was built
+	 * on before {@link CountingNaiveBayes}, on the events this model counts.
+	 * Kept to time and check the fast path against.
+	 */
+	NaiveBayesUpdateable trainReference() throws Exception {
+		NaiveBayesUpdateable reference = new NaiveBayesUpdateable();
+		reference.buildClassifier(new Instances(mBlankInstances, 0));
+		for (double[] values : mCounted) {
+			if (values == null)
+				continue;
+			Instance eventInstance = new DenseInstance(1, values.clone());
+			eventInstance.setDataset(mBlankInstances);
+			reference.updateClassifier(eventInstance);
 		}
-		return predictionResults;
+		return reference;
 	}
 
 	/**
-	 * Incrementally updates the model with new event data.
+	 * @return the number of classes the model predicts between
+	 */
+	int getClassCount() {
+		return mClassifiedIds.length;
+	}
+
+	/**
+	 * Incrementally updates the model with new or changed event data. If the
+	 * event was counted before, what it contributed then is taken out first,
+	 * and a deleted event is only taken out.
 	 * 
 	 * @param newEvent
 	 *            the event to update the model with
-	 * @throws Exception
+	 * @param firstFix
+	 *            the first position recorded for the event, or null if none
+	 * @throws NoAttributeValueException
+	 *             the event's name is not one of the classes of the model
 	 */
-	void updateModel(EventEntry newEvent) throws NoAttributeValueException {
-		Instance eventInstance = newInstance(newEvent, true);
-		if (!newEvent.isNamed()) {
+	void updateModel(EventEntry newEvent, GPSCoordinates firstFix)
+			throws NoAttributeValueException {
+		removeFromModel(newEvent.mDbRowID);
+		if (newEvent.deleted || !newEvent.isNamed()) {
 			return;
 		}
-		if (!mClassifiedEventNames.contains(newEvent.mName)) {
+		if (!isClassified(newEvent.mName)) {
 			throw new NoAttributeValueException();
 		}
-		if (eventInstance != null) {
-			try {
-				mClassifier.updateClassifier(eventInstance);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
-			isEmpty = false;
+		countInstance(newEvent.mDbRowID, newInstance(newEvent, firstFix, true));
+	}
+
+	/**
+	 * Adds many events to the model at once, from the parts of them the model
+	 * uses. The arrays are parallel; only the first count entries are used.
+	 * Events whose names are not classes of the model are skipped.
+	 * 
+	 * @param latitudes
+	 *            the latitude of the first GPS fix of each event, or NaN if
+	 *            the event has none
+	 */
+	void addEvents(long[] rowIds, int[] nameIds, long[] startTimes, double[] latitudes,
+			double[] longitudes, int count) {
+		Calendar calendar = Calendar.getInstance();
+		for (int i = 0; i < count; i++) {
+			int classIndex = Arrays.binarySearch(mClassifiedIds, nameIds[i]);
+			if (classIndex < 0)
+				continue;
+			removeFromModel(rowIds[i]);
+			countInstance(rowIds[i], toInstance(calendar, startTimes[i], latitudes[i],
+					longitudes[i], classIndex));
 		}
 	}
 
-	boolean isClassified(String eventName) {
-		return mClassifiedEventNames.contains(eventName);
+	/**
+	 * Takes what an event contributed out of the model, if it was counted.
+	 * 
+	 * @param rowId
+	 *            the row id of the event
+	 */
+	void removeFromModel(long rowId) {
+		if (rowId < 0 || rowId >= mCounted.length || mCounted[(int) rowId] == null)
+			return;
+		mClassifier.forget(mCounted[(int) rowId]);
+		mCounted[(int) rowId] = null;
 	}
 
-	static enum DayOfWeek {
-		SUNDAY, MONDAY, TUESDAY, WEDNESDAY, THURSDAY, FRIDAY, SATURDAY
+	/**
+	 * Counts a classified instance, remembering it by the event's row id.
+	 */
+	private void countInstance(long rowId, Instance eventInstance) {
+		mClassifier.updateClassifier(eventInstance);
+		if (rowId < 0)
+			return;
+		grow(rowId);
+		mCounted[(int) rowId] = eventInstance.toDoubleArray();
+	}
+
+	/**
+	 * Makes room for the values of an event with the given row id.
+	 */
+	private void grow(long rowId) {
+		if (rowId >= mCounted.length) {
+			double[][] counted = new double[(int) Math.max(mCounted.length * 2, rowId + 1)][];
+			System.arraycopy(mCounted, 0, counted, 0, mCounted.length);
+			mCounted = counted;
+		}
+	}
+
+	/**
+	 * @return the time before which every written event is reflected in the
+	 *         model
+	 */
+	long getSeenUntil() {
+		return mSeenUntil;
+	}
+
+	/**
+	 * Records that every event written before the given time is reflected in
+	 * the model. Earlier times than the current one are ignored.
+	 */
+	void seenUntil(long time) {
+		mSeenUntil = Math.max(mSeenUntil, time);
+	}
+
+	/**
+	 * Checks that the model counts exactly the events of each class that the
+	 * dictionary does, as it does when it has seen every write.
+	 * 
+	 * @param names
+	 *            an up to date name dictionary
+	 */
+	boolean agreesWith(EventNames names) {
+		for (int i = 0; i < mClassifiedIds.length; i++) {
+			if (mClassifier.getClassCount(i) != names.getOccurrences(mClassifiedIds[i]))
+				return false;
+		}
+		return true;
 	}
 
 	/**
-	 * A comparator that orders {@link PredictedPair} instances from high to low
-	 * probability.
+	 * Writes the classes of the model, the time it has seen events until, and
+	 * the values each event was counted with. The counts themselves are
+	 * derived from the values again when the model is read.
 	 */
-	private static class PredictedPairComparator implements Comparator<PredictedPair> {
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(mSeenUntil);
+		out.writeInt(mClassifiedIds.length);
+		for (int id : mClassifiedIds)
+			out.writeInt(id);
+		// Instances counted without a row id have no entry to write.
+		int nCounted = 0;
+		for (double[] values : mCounted)
+			if (values != null)
+				nCounted++;
+		out.writeInt(nCounted);
+		for (int rowId = 0; rowId < mCounted.length; rowId++) {
+			double[] values = mCounted[rowId];
+			if (values == null)
+				continue;
+			out.writeInt(rowId);
+			out.writeByte((int) values[0]); // hour of day
+			out.writeByte((int) values[1]); // day of week
+			out.writeDouble(values[2]); // latitude, NaN if unknown
+			out.writeDouble(values[3]); // longitude
+			out.writeInt((int) values[4]); // class
+		}
+	}
 
-		@Override
-		public int compare(PredictedPair left, PredictedPair right) {
-			return Double.compare(right.getLikelihood(), left.getLikelihood());
+	/**
+	 * Reads a model written by {@link #writeTo(DataOutputStream)}.
+	 * 
+	 * @param eventNames
+	 *            the name dictionary the ids refer to
+	 */
+	static EventModel readFrom(DataInputStream in, EventNames eventNames) throws IOException {
+		long seenUntil = in.readLong();
+		BitSet classifiedIds = new BitSet();
+		for (int i = in.readInt(); i > 0; i--)
+			classifiedIds.set(in.readInt());
+		EventModel model = new EventModel(eventNames, classifiedIds);
+		model.mSeenUntil = seenUntil;
+		int nCounted = in.readInt();
+		for (int i = 0; i < nCounted; i++) {
+			int rowId = in.readInt();
+			double[] values = new double[5];
+			values[0] = in.readByte();
+			values[1] = in.readByte();
+			values[2] = in.readDouble();
+			values[3] = in.readDouble();
+			values[4] = in.readInt();
+			if (rowId < 0 || values[4] < 0 || values[4] >= model.mClassifiedIds.length)
+				throw new IOException("Corrupt entry for row " + rowId);
+			model.mClassifier.add(values);
+			model.grow(rowId);
+			model.mCounted[rowId] = values;
 		}
+		return model;
+	}
+
+	boolean isClassified(String eventName) {
+		return classIndexOf(eventName) >= 0;
+	}
 
+	static enum DayOfWeek {
+		SUNDAY, MONDAY, TUESDAY, WEDNESDAY, THURSDAY, FRIDAY, SATURDAY
 	}
 
 	/**
@@ -122,11 +370,11 @@ class EventModel {
 	/**
 	 * Constructs a list of attributes to classify on.
 	 * 
-	 * @param eventNames
-	 *            the event names to classify
+	 * @param eventIds
+	 *            the ids of the event names to classify
 	 * @return an <tt>ArrayList</tt> of event attributes
 	 */
-	private static ArrayList<Attribute> generateEventAttributes(Collection<String> eventNames) {
+	private static ArrayList<Attribute> generateEventAttributes(int[] eventIds) {
 		// Declare a numeric hourOfDay
 		Attribute attrHourOfDay = new Attribute("hourOfDay");
 		// Declare a numeric Longitude
@@ -138,8 +386,11 @@ class EventModel {
 		for (DayOfWeek day : DayOfWeek.values())
 			daysOfWeekNominal.add(day.toString());
 		Attribute attrDayOfWeek = new Attribute("dayOfWeek", daysOfWeekNominal);
-		// Declare the event name attribute along with its values
-		ArrayList<String> namesNominal = new ArrayList<String>(eventNames);
+		// Declare the event name attribute along with its values, which are
+		// the name ids rather than the names.
+		ArrayList<String> namesNominal = new ArrayList<String>(eventIds.length);
+		for (int id : eventIds)
+			namesNominal.add(Integer.toString(id));
 		Attribute attrNamesNominal = new Attribute("eventNames", namesNominal);
 		// Declare the feature vector
 		ArrayList<Attribute> eventAttributes = new ArrayList<Attribute>(5);
@@ -151,36 +402,22 @@ class EventModel {
 		return eventAttributes;
 	}
 
-	/**
-	 * Constructs an instance belonging to this model corresponding to an event
-	 * that just started.
-	 * 
-	 * @return a new {@link Instance} corresponding to a new event
-	 */
-	private Instance newInstance() {
-		return newInstance(new EventEntry(), false);
-	}
-
 	/**
 	 * Whether the model has any instances classified.
 	 * 
 	 * @return true if the model has any instances classified, otherwise false
 	 */
 	private boolean isEmpty() {
-		return isEmpty;
+		return mClassifier.getInstanceCount() == 0;
 	}
 
 	/**
-	 * Gets the name of an event based on its index in the attributes.
-	 * 
-	 * @param attributeIndex
-	 *            the index of the attribute to get the name of.
-	 * @param attributes
-	 *            the list of attributes.
-	 * @return the name of the event the attribute at the index corresponds to.
+	 * @return the index of the class value for the event name, or a negative
+	 *         number if the name is not classified
 	 */
-	private String getEventName(double attributeIndex) {
-		return mBlankInstances.classAttribute().value((int) attributeIndex);
+	private int classIndexOf(String eventName) {
+		int id = mEventNames.getId(eventName);
+		return id == EventNames.NO_ID ? -1 : Arrays.binarySearch(mClassifiedIds, id);
 	}
 
 	/**
@@ -189,10 +426,13 @@ class EventModel {
 	 * 
 	 * @param event
 	 *            the <tt>EventEntry</tt> to convert
+	 * @param firstFix
+	 *            the first position recorded for the event, or null if none
 	 * @return the new {@link Instance}, or null if the event was invalid
 	 */
-	private Instance newInstance(EventEntry event, boolean checkValidEvent) {
-		return eventToInstance(event, checkValidEvent);
+	private Instance newInstance(EventEntry event, GPSCoordinates firstFix,
+			boolean checkValidEvent) {
+		return eventToInstance(event, firstFix, checkValidEvent);
 	}
 
 	/**
@@ -201,35 +441,56 @@ class EventModel {
 	 * 
 	 * @param event
 	 *            the <tt>EventEntry</tt> to convert.
+	 * @param firstFix
+	 *            the first position recorded for the event, or null if none
 	 * @param attributes
 	 *            the list of attributes to extract.
 	 * @return the <tt>Instance</tt> corresponding to the <tt>EventEntry</tt>.
 	 */
-	private Instance eventToInstance(EventEntry event, boolean checkValidEvent) {
+	private Instance eventToInstance(EventEntry event, GPSCoordinates firstFix,
+			boolean checkValidEvent) {
 		if (checkValidEvent) {
 			// Validate event
-			if (!event.isNamed() || !mClassifiedEventNames.contains(event.mName)) {
+			if (!event.isNamed() || !isClassified(event.mName)) {
 				return null;
 			}
 		}
-		Calendar localCal = Calendar.getInstance();
+		double latitude = Double.NaN, longitude = Double.NaN;
+		if (firstFix != null) {
+			latitude = firstFix.getLatitude();
+			longitude = firstFix.getLongitude();
+		}
+		return toInstance(Calendar.getInstance(), event.mStartTime, latitude, longitude,
+				classIndexOf(event.mName));
+	}
+
+	/**
+	 * Constructs the <tt>Instance</tt> of an event from its parts.
+	 * 
+	 * @param calendar
+	 *            a calendar to compute the hour and day with
+	 * @param latitude
+	 *            the latitude of the starting position, or NaN if unknown
+	 * @param classIndex
+	 *            the class value, or a negative number if unknown
+	 */
+	private Instance toInstance(Calendar calendar, long startTime, double latitude,
+			double longitude, int classIndex) {
 		// Create the instance
 		Instance eventInstance = new DenseInstance(5);
 		// Add start hour
-		localCal.setTimeInMillis(event.mStartTime);
-		eventInstance.setValue(mBlankInstances.attribute(0), localCal.get(Calendar.HOUR_OF_DAY));
+		calendar.setTimeInMillis(startTime);
+		eventInstance.setValue(mBlankInstances.attribute(0), calendar.get(Calendar.HOUR_OF_DAY));
 		// Add start day of week
-		eventInstance.setValue(mBlankInstances.attribute(1), getDay(localCal).toString());
+		eventInstance.setValue(mBlankInstances.attribute(1), getDay(calendar).toString());
 		// Add starting position (if exists)
-		List<GPSCoordinates> eventCoords = event.getGPSCoordinates();
-		if (eventCoords.size() > 0) {
-			GPSCoordinates startPos = eventCoords.get(0);
-			eventInstance.setValue(mBlankInstances.attribute(2), startPos.getLatitude());
-			eventInstance.setValue(mBlankInstances.attribute(3), startPos.getLongitude());
+		if (!Double.isNaN(latitude)) {
+			eventInstance.setValue(mBlankInstances.attribute(2), latitude);
+			eventInstance.setValue(mBlankInstances.attribute(3), longitude);
 		}
-		// Add name (if exists)
-		if (event.mName != null && event.mName.length() != 0) {
-			eventInstance.setValue(mBlankInstances.attribute(4), event.mName);
+		// Add name (if exists and classified)
+		if (classIndex >= 0) {
+			eventInstance.setValue(mBlankInstances.attribute(4), classIndex);
 		}
 		// Associate with this set of instances
 		eventInstance.setDataset(mBlankInstances);
@@ -0,0 +1,100 @@
+package edu.berkeley.security.eventtracker.prediction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+import edu.berkeley.security.eventtracker.EventActivity;
+import edu.berkeley.security.eventtracker.eventdata.EventNames;
+
+/**
+ * Saves the prediction model to a private file, so that a new process can
+ * start from it instead of training from every event. The file starts with a
+ * magic number and a format version; a file with another version is ignored,
+ * and the model is trained again.
+ */
+final class ModelSnapshot {
+	private static final String FILE = "prediction_model";
+	private static final String TEMPORARY_FILE = FILE + ".tmp";
+	private static final int MAGIC = 0x45544d53;
+	/** Bump whenever the format of {@link EventModel#writeTo} changes. */
+	private static final int VERSION = 1;
+
+	private ModelSnapshot() {
+	}
+
+	/**
+	 * Writes the model to the snapshot file. The file is replaced only once
+	 * the new snapshot is complete, so a process dying midway leaves the
+	 * previous one.
+	 */
+	static void save(Context context, EventModel model) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(context.openFileOutput(
+					TEMPORARY_FILE, Context.MODE_PRIVATE)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			model.writeTo(out);
+			out.close();
+			out = null;
+			if (!context.getFileStreamPath(TEMPORARY_FILE).renameTo(
+					context.getFileStreamPath(FILE)))
+				Log.e(EventActivity.LOG_TAG, "Failed to replace the prediction model snapshot.");
+		} catch (IOException e) {
+			Log.e(EventActivity.LOG_TAG, "Failed to save the prediction model.", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// The snapshot is incomplete either way.
+				}
+				context.deleteFile(TEMPORARY_FILE);
+			}
+		}
+	}
+
+	/**
+	 * Reads the model from the snapshot file.
+	 *
+	 * @param eventNames
+	 *            the name dictionary the ids of the model refer to
+	 * @return the model as it was saved, or null if there is no snapshot or
+	 *         it cannot be read
+	 */
+	static EventModel load(Context context, EventNames eventNames) {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(context.openFileInput(FILE)));
+		} catch (FileNotFoundException e) {
+			return null; // never saved
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			return EventModel.readFrom(in, eventNames);
+		} catch (IOException e) {
+			Log.e(EventActivity.LOG_TAG, "Failed to read the prediction model.", e);
+			return null;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Already read everything we could.
+			}
+		}
+	}
+
+	/**
+	 * Deletes the snapshot, for when the events it was taken from are gone.
+	 */
+	static void delete(Context context) {
+		context.deleteFile(FILE);
+	}
+}
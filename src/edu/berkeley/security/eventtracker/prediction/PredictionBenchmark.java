@@ -0,0 +1,246 @@
+package edu.berkeley.security.eventtracker.prediction;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import weka.classifiers.bayes.NaiveBayesUpdateable;
+import android.content.Context;
+import edu.berkeley.security.eventtracker.eventdata.DatabaseBenchmark;
+import edu.berkeley.security.eventtracker.eventdata.EventEntry;
+import edu.berkeley.security.eventtracker.eventdata.EventManager;
+import edu.berkeley.security.eventtracker.eventdata.EventNames;
+import edu.berkeley.security.eventtracker.eventdata.EventStore;
+import edu.berkeley.security.eventtracker.eventdata.GPSCoordinates;
+import edu.berkeley.security.eventtracker.eventdata.SQLiteEventStore;
+import edu.berkeley.security.eventtracker.prediction.PredictionRanking.TieBreak;
+import edu.berkeley.security.eventtracker.prediction.PredictionService.EventStartBuffer;
+
+/**
+ * Benchmarks for the prediction model. Every benchmark trains a model on
+ * generated events, in memory or in a scratch database, so the user's data
+ * is never touched. Results are returned
+ * as human readable reports for the debugging screen.
+ */
+public class PredictionBenchmark {
+	private static final long ONE_HOUR = 1000 * 60 * 60;
+	private static final long ONE_DAY = ONE_HOUR * 24;
+
+	private final Context mCtx;
+	private final Random mRandom = new Random(42);
+
+	public PredictionBenchmark(Context context) {
+		mCtx = context;
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @return the combined report
+	 */
+	public String runAll() {
+		StringBuilder report = new StringBuilder();
+		report.append(benchmarkScoring(30, 50000, 20000));
+		report.append(benchmarkTraining(50000, 3));
+		return report.toString();
+	}
+
+	/**
+	 * Measures a prediction the way it used to be made, by Weka's
+	 * <tt>NaiveBayesUpdateable</tt> through a <tt>Calendar</tt> and an
+	 * <tt>Instance</tt>, with every name put in a sorted set of pairs,
+	 * against {@link EventModel#rank(long, EventNames)} and reading the
+	 * {@link PredictionRanking} in order, as the name suggestions do. Both
+	 * classifiers are trained on the same events. Also checks that the
+	 * probabilities agree: bit for bit with the slow path of
+	 * {@link CountingNaiveBayes}, and in the most likely name with Weka, whose
+	 * numeric estimates are rounded to a precision and so differ slightly.
+	 *
+	 * @param nClasses
+	 *            the number of event names the model predicts between
+	 * @param nEvents
+	 *            the number of events the model is trained on
+	 * @param nPredictions
+	 *            the number of predictions to time each way
+	 * @return the report
+	 */
+	String benchmarkScoring(int nClasses, int nEvents, int nPredictions) {
+		EventModel model = trainModel(nClasses, nEvents);
+		long now = System.currentTimeMillis();
+		long[] times = new long[nPredictions];
+		for (int i = 0; i < nPredictions; i++)
+			times[i] = now - (long) (mRandom.nextDouble() * 365 * ONE_DAY);
+
+		Comparator<PredictedPair> byLikelihood = new Comparator<PredictedPair>() {
+			@Override
+			public int compare(PredictedPair left, PredictedPair right) {
+				return Double.compare(right.getLikelihood(), left.getLikelihood());
+			}
+		};
+		try {
+			NaiveBayesUpdateable reference = model.trainReference();
+			// Warm up both paths before timing them.
+			for (int i = 0; i < 1000; i++) {
+				model.scoreInstance(reference, times[i % nPredictions]);
+				readInOrder(model.rank(times[i % nPredictions], EventNames.EMPTY));
+			}
+
+			long start = System.nanoTime();
+			for (long time : times) {
+				double[] distribution = model.scoreInstance(reference, time);
+				SortedSet<PredictedPair> ranked = new TreeSet<PredictedPair>(byLikelihood);
+				for (int c = 0; c < distribution.length; c++)
+					ranked.add(new PredictedPair(null, distribution[c]));
+			}
+			long wekaNanos = (System.nanoTime() - start) / nPredictions;
+
+			start = System.nanoTime();
+			for (long time : times)
+				readInOrder(model.rank(time, EventNames.EMPTY));
+			long rankingNanos = (System.nanoTime() - start) / nPredictions;
+
+			double[] scores = new double[nClasses];
+			int identical = 0;
+			int sameBest = 0;
+			for (long time : times) {
+				double[] distribution = model.scoreInstance(time);
+				model.score(time, scores);
+				boolean same = true;
+				for (int c = 0; c < nClasses; c++)
+					same &= Double.doubleToLongBits(distribution[c]) == Double
+							.doubleToLongBits(scores[c]);
+				if (same)
+					identical++;
+				if (best(model.scoreInstance(reference, time)) == best(scores))
+					sameBest++;
+			}
+
+			StringBuilder report = new StringBuilder();
+			report.append("Prediction, ").append(nClasses).append(" names, ").append(nEvents)
+					.append(" events (Weka -> ranking):\n");
+			report.append(String.format("  %-12s %8d -> %8d ns\n", "predict", wekaNanos,
+					rankingNanos));
+			report.append(String.format("  %-12s %8.1f x\n", "speedup", (double) wekaNanos
+					/ Math.max(1, rankingNanos)));
+			report.append(String.format("  %-12s %8d / %d\n", "identical", identical,
+					nPredictions));
+			report.append(String.format("  %-12s %8d / %d\n", "same as Weka", sameBest,
+					nPredictions));
+			return report.toString();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Times training the model from the database, reading included: mapping
+	 * each event and reading its track separately, as the model used to be
+	 * trained, against the single joined read of
+	 * {@link EventManager#scanEventStarts} that
+	 * {@link PredictionService#trainModel(EventManager)} uses. Both build the
+	 * model the same way, so the difference is in the read.
+	 * 
+	 * @param nEvents
+	 *            the number of events in the scratch database
+	 * @param fixesPerEvent
+	 *            the number of fixes in each track
+	 * @return the report
+	 */
+	String benchmarkTraining(int nEvents, int fixesPerEvent) {
+		final SQLiteEventStore store = new DatabaseBenchmark(mCtx).createScratchStore(nEvents,
+				fixesPerEvent);
+		try {
+			// Not opened, so that no spilled fixes are written to the scratch
+			// database; the reads below do not need the GPS buffer.
+			EventManager manager = new EventManager(mCtx, store);
+
+			long start = System.nanoTime();
+			final EventStartBuffer starts = new EventStartBuffer(manager.getEventNames());
+			store.scanEvents(new EventStore.EventVisitor() {
+				@Override
+				public void visit(EventEntry event) {
+					List<GPSCoordinates> track = store.getTrack(event.mDbRowID);
+					starts.visit(event.mDbRowID, event.mName, event.mStartTime, track
+							.isEmpty() ? null : track.get(0));
+				}
+			});
+			EventModel perEvent = starts.buildModel();
+			long perEventMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			EventModel joined = PredictionService.trainModel(manager);
+			long joinedMillis = (System.nanoTime() - start) / 1000000;
+
+			StringBuilder report = new StringBuilder();
+			report.append("Model training, ").append(nEvents).append(" events x ")
+					.append(fixesPerEvent).append(" fixes (per event -> joined):\n");
+			report.append(String.format("  %-12s %8d -> %8d ms\n", "read + build",
+					perEventMillis, joinedMillis));
+			report.append(String.format("  %-12s %8d -> %8d\n", "classes", perEvent
+					.getClassCount(), joined.getClassCount()));
+			return report.toString();
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Trains a model on events whose names each prefer an hour of the day, a
+	 * day of the week and a place, with a third of them missing the place.
+	 */
+	private EventModel trainModel(int nClasses, int nEvents) {
+		BitSet classifiedIds = new BitSet();
+		classifiedIds.set(0, nClasses);
+		EventModel model = new EventModel(EventNames.EMPTY, classifiedIds);
+		long[] rowIds = new long[nEvents];
+		int[] nameIds = new int[nEvents];
+		long[] startTimes = new long[nEvents];
+		double[] latitudes = new double[nEvents];
+		double[] longitudes = new double[nEvents];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < nEvents; i++) {
+			int name = mRandom.nextInt(nClasses);
+			long day = now / ONE_DAY - mRandom.nextInt(365);
+			if (mRandom.nextInt(3) == 0)
+				day -= day % 7 - name % 7; // the name's day of the week
+			long hour = (name * 5 + (long) (mRandom.nextGaussian() * 2) + 24) % 24;
+			rowIds[i] = i + 1;
+			nameIds[i] = name;
+			startTimes[i] = day * ONE_DAY + hour * ONE_HOUR;
+			if (mRandom.nextInt(3) == 0) {
+				latitudes[i] = longitudes[i] = Double.NaN;
+			} else {
+				latitudes[i] = 37.87 + name * 0.01 + mRandom.nextGaussian() * 0.005;
+				longitudes[i] = -122.26 + name * 0.01 + mRandom.nextGaussian() * 0.005;
+			}
+		}
+		model.addEvents(rowIds, nameIds, startTimes, latitudes, longitudes, nEvents);
+		return model;
+	}
+
+	/**
+	 * Reads every name of a ranking, most likely first, as the name
+	 * suggestions read them.
+	 */
+	private static void readInOrder(PredictionRanking ranking) {
+		for (Iterator<PredictedPair> pairs = ranking.rest(0, TieBreak.RECENCY); pairs
+				.hasNext();)
+			pairs.next();
+	}
+
+	/**
+	 * @return the class value with the highest probability, the lowest one
+	 *         if several tie
+	 */
+	private static int best(double[] distribution) {
+		int best = 0;
+		for (int c = 1; c < distribution.length; c++)
+			if (distribution[c] > distribution[best])
+				best = c;
+		return best;
+	}
+}
@@ -0,0 +1,230 @@
+package edu.berkeley.security.eventtracker.prediction;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The probabilities of the predictable event names at one point in time,
+ * which can be read in order without sorting all of them. The best few are
+ * picked with a heap bounded to their number, and the rest are streamed from
+ * a heap popped one name at a time.
+ * <p>
+ * The order is total: names with the same probability are ordered by a
+ * {@link TieBreak}, then by the other one, then by name id, so that no name
+ * is ever dropped for tying with another and the order does not change from
+ * one ranking to the next. Instances are immutable and can be read from any
+ * thread.
+ */
+public final class PredictionRanking {
+
+	/**
+	 * How to order names with the same probability.
+	 */
+	public static enum TieBreak {
+		/** The name of the latest event first. */
+		RECENCY,
+		/** The name of the most events first. */
+		FREQUENCY
+	}
+
+	/** The ranking without any names. */
+	static final PredictionRanking EMPTY = new PredictionRanking(new int[0], new String[0],
+			new double[0], new long[0], new int[0]);
+
+	private final int[] mIds;
+	private final String[] mNames;
+	private final double[] mScores;
+	private final long[] mLastSeen;
+	private final int[] mOccurrences;
+
+	/**
+	 * The arrays are parallel, one entry per name, and are not copied.
+	 *
+	 * @param lastSeen
+	 *            the latest start time of an event with each name
+	 * @param occurrences
+	 *            the number of events with each name
+	 */
+	PredictionRanking(int[] ids, String[] names, double[] scores, long[] lastSeen,
+			int[] occurrences) {
+		mIds = ids;
+		mNames = names;
+		mScores = scores;
+		mLastSeen = lastSeen;
+		mOccurrences = occurrences;
+	}
+
+	/**
+	 * @return the number of names ranked
+	 */
+	public int size() {
+		return mIds.length;
+	}
+
+	/**
+	 * Picks the most likely names, in O(n log k) for n names.
+	 *
+	 * @param k
+	 *            the largest number of names to return
+	 * @return the k most likely names with their probabilities, most likely
+	 *         first, or all of them if there are fewer
+	 */
+	public List<PredictedPair> top(int k, TieBreak tieBreak) {
+		int[] top = selectTop(k, tieBreak);
+		List<PredictedPair> pairs = new ArrayList<PredictedPair>(top.length);
+		for (int position : top)
+			pairs.add(pairAt(position));
+		return pairs;
+	}
+
+	/**
+	 * Streams the names after the k most likely, most likely first. Building
+	 * the iterator takes O(n log k) for n names, and each name read from it
+	 * O(log n), so reading only a few of them stays cheap.
+	 *
+	 * @param k
+	 *            the number of names to skip, as returned by
+	 *            {@link #top(int, TieBreak)}
+	 */
+	public Iterator<PredictedPair> rest(int k, TieBreak tieBreak) {
+		int[] top = selectTop(k, tieBreak);
+		boolean[] skipped = new boolean[mIds.length];
+		for (int position : top)
+			skipped[position] = true;
+		int[] heap = new int[mIds.length - top.length];
+		int size = 0;
+		for (int position = 0; position < mIds.length; position++)
+			if (!skipped[position])
+				heap[size++] = position;
+		return new RestIterator(heap, tieBreak);
+	}
+
+	/**
+	 * @return the positions of the k most likely names, most likely first
+	 */
+	private int[] selectTop(int k, TieBreak tieBreak) {
+		int size = Math.max(0, Math.min(k, mIds.length));
+		// The heap has the least likely of the names picked so far on top.
+		int[] heap = new int[size];
+		int filled = 0;
+		for (int position = 0; position < mIds.length && size > 0; position++) {
+			if (filled < size) {
+				heap[filled] = position;
+				siftUp(heap, filled++, tieBreak, false);
+			} else if (before(position, heap[0], tieBreak)) {
+				heap[0] = position;
+				siftDown(heap, 0, size, tieBreak, false);
+			}
+		}
+		// Pop the least likely to the back until the heap is sorted.
+		for (int end = size - 1; end > 0; end--) {
+			int least = heap[0];
+			heap[0] = heap[end];
+			heap[end] = least;
+			siftDown(heap, 0, end, tieBreak, false);
+		}
+		return heap;
+	}
+
+	/**
+	 * @return whether the name at the first position ranks before the one at
+	 *         the second
+	 */
+	private boolean before(int first, int second, TieBreak tieBreak) {
+		if (mScores[first] != mScores[second])
+			return mScores[first] > mScores[second];
+		int byRecency = compare(mLastSeen[second], mLastSeen[first]);
+		int byFrequency = compare(mOccurrences[second], mOccurrences[first]);
+		int tie;
+		if (tieBreak == TieBreak.RECENCY)
+			tie = byRecency != 0 ? byRecency : byFrequency;
+		else
+			tie = byFrequency != 0 ? byFrequency : byRecency;
+		return tie != 0 ? tie < 0 : mIds[first] < mIds[second];
+	}
+
+	private static int compare(long first, long second) {
+		return first < second ? -1 : first > second ? 1 : 0;
+	}
+
+	/**
+	 * @param maxOnTop
+	 *            whether the heap has the first name to rank on top, or the
+	 *            last
+	 */
+	private boolean above(int first, int second, TieBreak tieBreak, boolean maxOnTop) {
+		return maxOnTop ? before(first, second, tieBreak) : before(second, first, tieBreak);
+	}
+
+	private void siftUp(int[] heap, int index, TieBreak tieBreak, boolean maxOnTop) {
+		int position = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!above(position, heap[parent], tieBreak, maxOnTop))
+				break;
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		heap[index] = position;
+	}
+
+	private void siftDown(int[] heap, int index, int size, TieBreak tieBreak,
+			boolean maxOnTop) {
+		int position = heap[index];
+		while (2 * index + 1 < size) {
+			int child = 2 * index + 1;
+			if (child + 1 < size && above(heap[child + 1], heap[child], tieBreak, maxOnTop))
+				child++;
+			if (!above(heap[child], position, tieBreak, maxOnTop))
+				break;
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = position;
+	}
+
+	private PredictedPair pairAt(int position) {
+		return new PredictedPair(mNames[position], mScores[position]);
+	}
+
+	/**
+	 * Pops the names off a heap with the most likely on top, as they are
+	 * read.
+	 */
+	private class RestIterator implements Iterator<PredictedPair> {
+		private final int[] mHeap;
+		private final TieBreak mTieBreak;
+		private int mSize;
+
+		RestIterator(int[] heap, TieBreak tieBreak) {
+			mHeap = heap;
+			mTieBreak = tieBreak;
+			mSize = heap.length;
+			for (int index = mSize / 2 - 1; index >= 0; index--)
+				siftDown(mHeap, index, mSize, mTieBreak, true);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mSize > 0;
+		}
+
+		@Override
+		public PredictedPair next() {
+			if (mSize == 0)
+				throw new NoSuchElementException();
+			int position = mHeap[0];
+			mHeap[0] = mHeap[--mSize];
+			if (mSize > 0)
+				siftDown(mHeap, 0, mSize, mTieBreak, true);
+			return pairAt(position);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package edu.berkeley.security.eventtracker.prediction;
 
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -12,30 +14,76 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
-import edu.berkeley.security.eventtracker.eventdata.EventCursor;
 import edu.berkeley.security.eventtracker.eventdata.EventEntry;
 import edu.berkeley.security.eventtracker.eventdata.EventManager;
+import edu.berkeley.security.eventtracker.eventdata.EventNames;
+import edu.berkeley.security.eventtracker.eventdata.EventStartVisitor;
+import edu.berkeley.security.eventtracker.eventdata.EventWriteListener;
+import edu.berkeley.security.eventtracker.eventdata.GPSCoordinates;
 import edu.berkeley.security.eventtracker.prediction.EventModel.NoAttributeValueException;
+import edu.berkeley.security.eventtracker.prediction.PredictionRanking.TieBreak;
 
 /**
  * A service that can make predictions about events that are currently
  * occurring.
  */
-public class PredictionService extends Service {
+public class PredictionService extends Service implements EventWriteListener {
+	/**
+	 * How many edits and deletions are applied to the model incrementally
+	 * before it is rebuilt from the events, as a consistency check.
+	 */
+	private static final int CHANGES_BETWEEN_REBUILDS = 500;
+	/** How many changes are applied to the model between two snapshots. */
+	private static final int CHANGES_BETWEEN_SNAPSHOTS = 20;
+	/**
+	 * How far before the time a snapshot has seen events until to replay
+	 * events from, for writes that were notified out of order.
+	 */
+	private static final long REPLAY_MARGIN_MILLIS = 60 * 1000;
 
 	private ExecutorService mExecutor = Executors.newSingleThreadExecutor();
 	private EventManager mManager = EventManager.getManager();
 	private EventModel mEventModel;
 	private Set<String> mCachedDistribution;
+	private PredictionRanking mCachedRanking = PredictionRanking.EMPTY;
+	/** The edits and deletions applied since the model was last rebuilt. */
+	private int mChangesSinceRebuild;
+	/** The changes applied since the model was last saved. */
+	private int mChangesSinceSnapshot;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mManager.setWriteListener(this);
+	}
 
 	@Override
 	public IBinder onBind(Intent intent) {
 		if (mEventModel == null || mCachedDistribution == null) {
-			regenerateAllAsync();
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					getEventModel(); // loads the saved model if there is one
+					regenerateCache();
+				}
+			});
 		}
 		return new PredictionBinder();
 	}
 
+	@Override
+	public void onDestroy() {
+		mManager.setWriteListener(null);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mEventModel != null && mChangesSinceSnapshot > 0)
+					saveModel();
+			}
+		});
+		super.onDestroy();
+	}
+
 	public class PredictionBinder extends Binder {
 		public PredictionService getService() {
 			return PredictionService.this;
@@ -57,50 +105,160 @@ public class PredictionService extends Service {
 		return mCachedDistribution;
 	}
 
+	/**
+	 * Retrieves the most likely names of an event starting now, from the
+	 * best prediction currently available. Names that the model does not
+	 * predict are not included.
+	 * 
+	 * @param k
+	 *            the largest number of names to return
+	 * @param tieBreak
+	 *            how to order names with the same probability
+	 * @return the names with their probabilities, most likely first
+	 */
+	synchronized public List<PredictedPair> getTopPredictions(int k, TieBreak tieBreak) {
+		return mCachedRanking.top(k, tieBreak);
+	}
+
+	/**
+	 * Streams the predicted names after those of
+	 * {@link #getTopPredictions(int, TieBreak)}, most likely first. Only the
+	 * names read from the iterator are put in order.
+	 * 
+	 * @param k
+	 *            the number of names to skip
+	 * @param tieBreak
+	 *            how to order names with the same probability
+	 * @return the remaining names with their probabilities
+	 */
+	synchronized public Iterator<PredictedPair> getRemainingPredictions(int k,
+			TieBreak tieBreak) {
+		return mCachedRanking.rest(k, tieBreak);
+	}
+
 	/**
 	 * Updates the model with a new event.
 	 * 
 	 * @param event
 	 *            the new event to add to the model
 	 */
+	@Override
 	public void addNewEvent(final EventEntry event) {
 		if (!event.isNamed()) {
 			return;
 		}
+		final long notified = System.currentTimeMillis();
 		Runnable updateModel = new Runnable() {
 			@Override
 			public void run() {
-				try {
-					getEventModel().updateModel(event);
-				} catch (NoAttributeValueException e) {
-					regenerateModel(); // TODO check if necessary
+				if (!applyToModel(getEventModel(), event)) {
+					regenerateModel();
 					regenerateCache();
+					return;
 				}
+				changesApplied(notified, 0);
 			}
 		};
 		mExecutor.execute(updateModel);
 	}
 
 	/**
-	 * Updates the model with the existing event.
+	 * Updates the model with the existing event. What the event contributed
+	 * before is taken out of the model and the event is added again.
 	 * 
 	 * @param event
 	 *            the event to update
 	 */
+	@Override
 	public void updateEvent(EventEntry event) {
-		if (event.isNamed()) {
-			regenerateAllAsync();
-		}
+		List<EventEntry> noEvents = Collections.emptyList();
+		eventsChanged(noEvents, Collections.singletonList(event));
+	}
+
+	/**
+	 * Updates the model with a batch of written events, taking updated events
+	 * out of the model before adding them again.
+	 * 
+	 * @param newEvents
+	 *            the events that were created
+	 * @param updatedEvents
+	 *            the existing events that were updated
+	 */
+	@Override
+	public void eventsChanged(final List<EventEntry> newEvents,
+			final List<EventEntry> updatedEvents) {
+		final long notified = System.currentTimeMillis();
+		Runnable updateModel = new Runnable() {
+			@Override
+			public void run() {
+				EventModel model = getEventModel();
+				boolean classesKept = true;
+				for (EventEntry event : newEvents) {
+					if (event.isNamed())
+						classesKept &= applyToModel(model, event);
+				}
+				for (EventEntry event : updatedEvents)
+					classesKept &= applyToModel(model, event);
+				if (!classesKept) {
+					regenerateModel();
+					regenerateCache();
+					return;
+				}
+				changesApplied(notified, updatedEvents.size());
+				if (!updatedEvents.isEmpty())
+					regenerateCache();
+			}
+		};
+		mExecutor.execute(updateModel);
+	}
+
+	/**
+	 * Deletes the event from the model.
+	 * 
+	 * @param event
+	 *            the event that was deleted
+	 */
+	@Override
+	public void deleteEvent(final EventEntry event) {
+		final long notified = System.currentTimeMillis();
+		Runnable updateModel = new Runnable() {
+			@Override
+			public void run() {
+				getEventModel().removeFromModel(event.mDbRowID);
+				changesApplied(notified, 1);
+				regenerateCache();
+			}
+		};
+		mExecutor.execute(updateModel);
+	}
+
+	/**
+	 * Rebuilds the model after events were permanently deleted. The saved
+	 * model is deleted at once, since it describes the deleted events.
+	 */
+	@Override
+	public void eventsPurged() {
+		ModelSnapshot.delete(this);
+		regenerateAllAsync();
 	}
 
 	/**
-	 * Deletes the event with the given id from the model.
+	 * Records that changes notified at the given time were applied to the
+	 * model. Saves the model every few changes, and rebuilds it once enough
+	 * edits and deletions have been applied. Runs on the executor.
 	 * 
-	 * @param eventId
-	 *            the id of event to delete
+	 * @param notified
+	 *            when the changes were notified, after they were written
+	 * @param nEdits
+	 *            the number of edits and deletions among the changes
 	 */
-	public void deleteEvent(EventEntry event) {
-		updateEvent(event);
+	private void changesApplied(long notified, int nEdits) {
+		getEventModel().seenUntil(notified);
+		mChangesSinceRebuild += nEdits;
+		if (mChangesSinceRebuild >= CHANGES_BETWEEN_REBUILDS)
+			regenerateModel();
+		else if (++mChangesSinceSnapshot >= CHANGES_BETWEEN_SNAPSHOTS)
+			saveModel();
 	}
 
 	/**
@@ -123,15 +281,27 @@ public class PredictionService extends Service {
 	 * incrementally update it.
 	 */
 	private void regenerateModel() {
+		long started = System.currentTimeMillis();
 		EventModel newModel = generateEventModel();
+		newModel.seenUntil(started);
 		synchronized (this) {
 			mEventModel = newModel;
+			mChangesSinceRebuild = 0;
 		}
+		saveModel();
+	}
+
+	private void saveModel() {
+		ModelSnapshot.save(this, mEventModel);
+		mChangesSinceSnapshot = 0;
 	}
 
 	private void regenerateCache() {
-		Set<String> newPredictions = generateAllEventNamePredictions();
+		PredictionRanking newRanking = getEventModel().rank(System.currentTimeMillis(),
+				mManager.getEventNames());
+		Set<String> newPredictions = generateAllEventNamePredictions(newRanking);
 		synchronized (this) {
+			mCachedRanking = newRanking;
 			mCachedDistribution = newPredictions;
 		}
 	}
@@ -143,33 +313,110 @@ public class PredictionService extends Service {
 	 */
 	private EventModel getEventModel() {
 		if (mEventModel == null) {
-			regenerateModel();
+			EventModel savedModel = loadEventModel();
+			if (savedModel == null) {
+				regenerateModel();
+			} else {
+				synchronized (this) {
+					mEventModel = savedModel;
+				}
+			}
 		}
 		return mEventModel;
 	}
 
-	private EventModel generateEventModel() {
-		// Generate the model.
-		EventModel eventModel = new EventModel(generateClassifiedEventNames());
-		EventCursor events = mManager.fetchAllEvents();
-		while (events.moveToNext()) {
+	/**
+	 * Loads the model saved by an earlier process and brings it up to date by
+	 * replaying the events written since it was saved. Replaying an event
+	 * takes out what it contributed before, so events the model has already
+	 * seen can safely be replayed again.
+	 * 
+	 * @return the model, or null if there is no saved model or it cannot be
+	 *         brought up to date without training it again
+	 */
+	private EventModel loadEventModel() {
+		EventNames names = mManager.getEventNames();
+		EventModel model = ModelSnapshot.load(this, names);
+		if (model == null)
+			return null;
+		long replayFrom = model.getSeenUntil() - REPLAY_MARGIN_MILLIS;
+		model.seenUntil(System.currentTimeMillis());
+		for (EventEntry event : mManager.fetchEventsUpdatedSince(replayFrom)) {
 			try {
-				eventModel.updateModel(events.getEvent());
+				model.updateModel(event, firstFix(event));
 			} catch (NoAttributeValueException e) {
-				// Do nothing. Only use classified events.
+				// Only a name that has become a class needs a new model.
+				if (isRepeated(names, event.mName))
+					return null;
 			}
 		}
-		return eventModel;
+		// Events permanently deleted since the snapshot cannot be replayed.
+		return model.agreesWith(mManager.getEventNames()) ? model : null;
+	}
+
+	/**
+	 * Applies a written event to the model. What the event contributed before
+	 * is always taken out. An event whose name is not a class of the model is
+	 * then left out, unless the name has become common enough to be a class.
+	 * Runs on the executor.
+	 * 
+	 * @return false if the set of classes changed, so that the model must be
+	 *         trained again
+	 */
+	private boolean applyToModel(EventModel model, EventEntry event) {
+		try {
+			model.updateModel(event, firstFix(event));
+			return true;
+		} catch (NoAttributeValueException e) {
+			return !isRepeated(mManager.getEventNames(), event.mName);
+		}
+	}
+
+	/**
+	 * @return the first position recorded for the event, or null if it has
+	 *         none or the model would not use it
+	 */
+	private GPSCoordinates firstFix(EventEntry event) {
+		if (event.deleted || !event.isNamed())
+			return null;
+		List<GPSCoordinates> track = mManager.getGPSCoordinates(event.mDbRowID);
+		return track.isEmpty() ? null : track.get(0);
+	}
+
+	/**
+	 * @return whether events with the name are common enough for the name to
+	 *         be a class, as {@link EventStartBuffer#buildModel()} decides
+	 */
+	private static boolean isRepeated(EventNames names, String name) {
+		return names.getOccurrences(names.getId(name)) > 1;
+	}
+
+	/**
+	 * Builds the model in one pass over the events: how each event started is
+	 * buffered while the names are counted, and once the classes are known
+	 * the buffered events are added to the model.
+	 */
+	private EventModel generateEventModel() {
+		return trainModel(mManager);
+	}
+
+	/**
+	 * Trains a model on every undeleted event of the manager. The benchmarks
+	 * time this same path.
+	 */
+	static EventModel trainModel(EventManager manager) {
+		EventStartBuffer starts = new EventStartBuffer(manager.getEventNames());
+		manager.scanEventStarts(starts);
+		return starts.buildModel();
 	}
 
 	private Set<String> generateAllEventNames() {
 		Set<String> eventNames = new TreeSet<String>();
-		EventCursor allEventsCursor = mManager.fetchAllEvents();
-		while (allEventsCursor.moveToNext()) {
-			EventEntry currentEvent = allEventsCursor.getEvent();
-			if (currentEvent.isNamed()) {
-				eventNames.add(currentEvent.mName);
-			}
+		EventNames names = mManager.getEventNames();
+		for (int i = 0; i < names.size(); i++) {
+			int id = names.idAt(i);
+			if (names.getOccurrences(id) > 0)
+				eventNames.add(names.getName(id));
 		}
 		return eventNames;
 	}
@@ -178,49 +425,109 @@ public class PredictionService extends Service {
 	 * Generates an ordered set of all events in order of most likely to least
 	 * likely. Any additional unclassified are appended in an arbitrary order.
 	 * 
+	 * @param ranking
+	 *            the ranking of the classified names
 	 * @return the best-effort ordered set of predicted event names
 	 */
-	private LinkedHashSet<String> generateAllEventNamePredictions() {
-		LinkedHashSet<String> predictedEvents = generateClassifiedEventNamePredictions();
+	private LinkedHashSet<String> generateAllEventNamePredictions(PredictionRanking ranking) {
+		LinkedHashSet<String> predictedEvents = generateClassifiedEventNamePredictions(ranking);
 
 		// Append the rest of the events.
 		predictedEvents.addAll(generateAllEventNames());
 		return predictedEvents;
 	}
 
+
 	/**
-	 * Retrieves the event names to classify on. Currently, these are the names
-	 * of events that have occurred more than once.
+	 * Lists the names of events that might be starting now, in order of
+	 * likelihood, the most recently used first among equally likely ones.
 	 * 
-	 * @return a set of event names
-	 */
-	private Set<String> generateClassifiedEventNames() {
-		// Generate the event names.
-		Set<String> names = new HashSet<String>();
-		Set<String> repeatedNames = new HashSet<String>();
-		EventCursor allEventsCursor = mManager.fetchAllEvents();
-		while (allEventsCursor.moveToNext()) {
-			EventEntry currentEvent = allEventsCursor.getEvent();
-			if (currentEvent.isNamed() && !names.add(currentEvent.mName)) {
-				repeatedNames.add(currentEvent.mName);
-			}
+	 * @return an ordered set of predicted names
+	 */
+	private LinkedHashSet<String> generateClassifiedEventNamePredictions(
+			PredictionRanking ranking) {
+		LinkedHashSet<String> eventNames = new LinkedHashSet<String>(ranking.size());
+		for (Iterator<PredictedPair> predictions = ranking.rest(0, TieBreak.RECENCY); predictions
+				.hasNext();) {
+			eventNames.add(predictions.next().getName());
 		}
-		return repeatedNames;
+		return eventNames;
 	}
 
 	/**
-	 * Predicts the names of events that might be starting now, in order of
-	 * likelihood.
-	 * 
-	 * @return an ordered set of predicted names
+	 * Collects how each event started, in parallel arrays, and counts the
+	 * events of each name as it goes.
 	 */
-	private LinkedHashSet<String> generateClassifiedEventNamePredictions() {
-		SortedSet<PredictedPair> predictionResults = getEventModel().getEventDistribution();
+	static class EventStartBuffer implements EventStartVisitor {
+		private final EventNames mNames;
+		private int mCount;
+		private long[] mRowIds = new long[256];
+		private int[] mNameIds = new int[256];
+		private long[] mStartTimes = new long[256];
+		private double[] mLatitudes = new double[256];
+		private double[] mLongitudes = new double[256];
+		/** The number of events with each name, by name id. */
+		private int[] mOccurrences = new int[64];
 
-		LinkedHashSet<String> eventNames = new LinkedHashSet<String>(predictionResults.size());
-		for (PredictedPair predictedResult : predictionResults) {
-			eventNames.add(predictedResult.getName());
+		EventStartBuffer(EventNames names) {
+			mNames = names;
+		}
+
+		@Override
+		public void visit(long rowId, String name, long startTime, GPSCoordinates firstFix) {
+			int id = mNames.getId(name);
+			if (id == EventNames.NO_ID)
+				return;
+			if (mCount == mRowIds.length) {
+				int capacity = mCount * 2;
+				mRowIds = copy(mRowIds, capacity);
+				mNameIds = copy(mNameIds, capacity);
+				mStartTimes = copy(mStartTimes, capacity);
+				mLatitudes = copy(mLatitudes, capacity);
+				mLongitudes = copy(mLongitudes, capacity);
+			}
+			if (id >= mOccurrences.length)
+				mOccurrences = copy(mOccurrences, Math.max(mOccurrences.length * 2, id + 1));
+			mOccurrences[id]++;
+			mRowIds[mCount] = rowId;
+			mNameIds[mCount] = id;
+			mStartTimes[mCount] = startTime;
+			mLatitudes[mCount] = firstFix == null ? Double.NaN : firstFix.getLatitude();
+			mLongitudes[mCount] = firstFix == null ? Double.NaN : firstFix.getLongitude();
+			mCount++;
+		}
+
+		/**
+		 * Builds a model whose classes are the names of events that have
+		 * occurred more than once, from the buffered events.
+		 */
+		EventModel buildModel() {
+			BitSet repeatedIds = new BitSet();
+			for (int id = 0; id < mOccurrences.length; id++) {
+				if (mOccurrences[id] > 1)
+					repeatedIds.set(id);
+			}
+			EventModel eventModel = new EventModel(mNames, repeatedIds);
+			eventModel.addEvents(mRowIds, mNameIds, mStartTimes, mLatitudes, mLongitudes, mCount);
+			return eventModel;
+		}
+
+		private static long[] copy(long[] array, int capacity) {
+			long[] copy = new long[capacity];
+			System.arraycopy(array, 0, copy, 0, array.length);
+			return copy;
+		}
+
+		private static int[] copy(int[] array, int capacity) {
+			int[] copy = new int[capacity];
+			System.arraycopy(array, 0, copy, 0, array.length);
+			return copy;
+		}
+
+		private static double[] copy(double[] array, int capacity) {
+			double[] copy = new double[capacity];
+			System.arraycopy(array, 0, copy, 0, array.length);
+			return copy;
 		}
-		return eventNames;
 	}
 }
@@ -0,0 +1,219 @@
+package edu.berkeley.security.eventtracker.eventdata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs on a plain JVM, without Android: {@link MemoryEventStore} and the
+ * classes it uses are plain Java, as are the {@link EventStore} lookups that
+ * {@link EventManager} builds on.
+ */
+public class MemoryEventStoreTest {
+	private static final long ONE_HOUR = 60 * 60 * 1000L;
+
+	private MemoryEventStore mStore;
+	/** Noon on the first day the events take place. */
+	private long mNoon;
+
+	@Before
+	public void setUp() {
+		mStore = new MemoryEventStore();
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2011, Calendar.MARCH, 14, 12, 0);
+		mNoon = calendar.getTimeInMillis();
+	}
+
+	@Test
+	public void fetchesFirstEventAndCountsByName() {
+		long first = create("Lunch", mNoon, "food");
+		create("Run", mNoon + ONE_HOUR, null);
+		long second = create("Lunch", mNoon + 24 * ONE_HOUR, "food");
+		mStore.markDeleted(second);
+
+		assertEquals(first, mStore.fetchFirstEvent("Lunch").mDbRowID);
+		assertNull(mStore.fetchFirstEvent("Dinner"));
+		// Deleted events are counted too, as in the database.
+		assertEquals(2, mStore.countEvents("Lunch"));
+		assertEquals(0, mStore.countEvents("Dinner"));
+	}
+
+	@Test
+	public void countsNamesAndTagsOfUndeletedEvents() {
+		create("Lunch", mNoon, "food");
+		long snack = create("Lunch", mNoon + ONE_HOUR, "food");
+		create("Run", mNoon + 2 * ONE_HOUR, "sport");
+		mStore.markDeleted(snack);
+
+		EventNames names = mStore.fetchEventNames();
+		assertEquals(1, names.getOccurrences(names.getId("Lunch")));
+		assertEquals(1, names.getOccurrences(names.getId("Run")));
+		List<Tag> tags = mStore.getTagList();
+		assertEquals(2, tags.size());
+		assertEquals("food", tags.get(0).mName);
+		assertEquals(1, tags.get(0).mUsageCount);
+	}
+
+	@Test
+	public void navigatesBetweenDaysWithEvents() {
+		create("Lunch", mNoon, null);
+		create("Lunch", mNoon + 3 * 24 * ONE_HOUR, null);
+		int firstDay = DayKeys.dayKey(mNoon);
+		int lastDay = DayKeys.dayKey(mNoon + 3 * 24 * ONE_HOUR);
+
+		assertEquals(20110314, firstDay);
+		assertEquals(lastDay, mStore.fetchDayAfter(firstDay));
+		assertEquals(firstDay, mStore.fetchDayBefore(lastDay));
+		assertEquals(DayKeys.NO_DAY, mStore.fetchDayBefore(firstDay));
+		assertEquals(DayKeys.NO_DAY, mStore.fetchDayAfter(lastDay));
+		assertEquals(mNoon - 12 * ONE_HOUR, DayKeys.dayStart(firstDay));
+	}
+
+	@Test
+	public void writesNewAndChangedEventsTogether() {
+		long lunch = create("Lunch", mNoon, null);
+		EventEntry moved = mStore.fetchEvent(lunch);
+		moved.mStartTime = mNoon + 5 * ONE_HOUR;
+		moved.mEndTime = mNoon + 6 * ONE_HOUR;
+		List<EventEntry> events = new ArrayList<EventEntry>();
+		events.add(moved);
+		events.add(new EventEntry("Run", null, mNoon - ONE_HOUR, mNoon, null));
+
+		boolean[] written = mStore.writeEvents(events, true);
+
+		assertEquals(true, written[0] && written[1]);
+		assertEquals(2, mStore.size());
+		List<EventEntry> latest = mStore.fetchLatestEvents(2);
+		assertEquals(lunch, latest.get(0).mDbRowID);
+		assertEquals(events.get(1).mDbRowID, latest.get(1).mDbRowID);
+		assertEquals(true, latest.get(1).receivedAtServer);
+	}
+
+	@Test
+	public void purgesOnlyTheGivenRange() {
+		create("Lunch", mNoon, "food");
+		long run = create("Run", mNoon + 24 * ONE_HOUR, "sport");
+
+		assertEquals(1, mStore.purgeEvents(mNoon, mNoon + ONE_HOUR));
+		assertNull(mStore.fetchFirstEvent("Lunch"));
+		assertEquals(run, mStore.fetchFirstEvent("Run").mDbRowID);
+		assertEquals(0, mStore.getTagList().get(0).mUsageCount);
+	}
+
+	@Test
+	public void buildsTheTimelineFromTheStore() {
+		long lunch = create("Lunch", mNoon, null);
+		long run = create("Run", mNoon + ONE_HOUR / 2, null);
+		create("Sleep", mNoon + 10 * ONE_HOUR, null);
+
+		TimelineIndex timeline = new TimelineIndex(mStore);
+
+		assertArrayEquals(new long[] { lunch, run },
+				timeline.findOverlapping(mNoon + ONE_HOUR / 2, mNoon + 2 * ONE_HOUR));
+	}
+
+	@Test
+	public void journalsWritesUntilTheServerHasThem() {
+		long lunch = create("Lunch", mNoon, null);
+		long run = create("Run", mNoon + ONE_HOUR, null);
+		long upTo = mStore.fetchSyncSequence();
+		// Written again while the upload is under way.
+		mStore.markDeleted(lunch);
+
+		List<EventEntry> unsynced = mStore.fetchUnsyncedEvents(upTo);
+		assertEquals(2, unsynced.size());
+		assertEquals(lunch, unsynced.get(0).mDbRowID);
+		mStore.acknowledgeSync(upTo);
+
+		assertEquals(false, mStore.fetchEvent(lunch).receivedAtServer);
+		assertEquals(true, mStore.fetchEvent(run).receivedAtServer);
+		List<EventEntry> left = mStore.fetchUnsyncedEvents(mStore.fetchSyncSequence());
+		assertEquals(1, left.size());
+		assertEquals(lunch, left.get(0).mDbRowID);
+	}
+
+	@Test
+	public void compactsOnlyTombstonesTheServerHas() {
+		long lunch = create("Lunch", mNoon, null);
+		long run = create("Run", mNoon + ONE_HOUR, null);
+		mStore.markDeleted(lunch);
+		mStore.markDeleted(run);
+		mStore.acknowledgeSync(mStore.fetchSyncSequence());
+		create("Sleep", mNoon + 10 * ONE_HOUR, null);
+		mStore.markDeleted(create("Nap", mNoon + 2 * ONE_HOUR, null));
+
+		assertEquals(2, mStore.compactTombstones(Long.MAX_VALUE, 0));
+		assertEquals(2, mStore.size());
+		assertNull(mStore.fetchEvent(lunch));
+	}
+
+	@Test
+	public void scansEventStartsWithTheirFirstFix() {
+		long lunch = create("Lunch", mNoon, null);
+		create("Run", mNoon + ONE_HOUR, null);
+		mStore.createGPSEntries(new long[] { lunch, lunch }, new double[] { 2, 1 },
+				new double[] { 4, 3 }, new long[] { mNoon + 60000, mNoon }, 2);
+		final List<GPSCoordinates> fixes = new ArrayList<GPSCoordinates>();
+
+		mStore.scanEventStarts(new EventStartVisitor() {
+			@Override
+			public void visit(long rowId, String name, long startTime, GPSCoordinates firstFix) {
+				fixes.add(firstFix);
+			}
+		});
+
+		assertEquals(2, fixes.size());
+		assertEquals(1, fixes.get(0).getLatitude(), 0);
+		assertNull(fixes.get(1));
+	}
+
+	@Test
+	public void searchesWordPrefixesWithNameMatchesFirst() {
+		mStore.createEvent("Run", "lunch break", mNoon + 3 * ONE_HOUR, 0, null, false, null);
+		long lunch = create("Lunch", mNoon, null);
+		create("Dinner", mNoon + 6 * ONE_HOUR, null);
+
+		List<EventEntry> matches = mStore.searchEvents("LUN", 0, 10);
+
+		assertEquals(2, matches.size());
+		assertEquals(lunch, matches.get(0).mDbRowID);
+		assertEquals(1, mStore.searchEvents("lun bre", 0, 10).size());
+		assertEquals(0, mStore.searchEvents(" - ", 0, 10).size());
+	}
+
+	@Test
+	public void totalsSplitEventsAtMidnight() {
+		// From ten at night until two in the morning.
+		mStore.createEvent("Party", null, mNoon + 10 * ONE_HOUR, mNoon + 14 * ONE_HOUR, null,
+				false, "fun");
+		int firstDay = DayKeys.dayKey(mNoon);
+		int secondDay = DayKeys.dayKey(mNoon + 24 * ONE_HOUR);
+
+		List<RollupTotal> perDay = mStore.fetchTagTotals(firstDay, secondDay, true);
+		List<RollupTotal> secondDayOnly = mStore.fetchNameTotals(secondDay, secondDay, false);
+
+		assertEquals(2, perDay.size());
+		assertEquals(firstDay, perDay.get(0).mDay);
+		assertEquals(2 * ONE_HOUR, perDay.get(0).mDuration);
+		assertEquals(1, secondDayOnly.size());
+		assertEquals("Party", secondDayOnly.get(0).mKey);
+		assertEquals(2 * ONE_HOUR, secondDayOnly.get(0).mDuration);
+	}
+
+	/**
+	 * Creates a closed event lasting an hour.
+	 * 
+	 * @return its row id
+	 */
+	private long create(String name, long startTime, String tag) {
+		return mStore.createEvent(name, null, startTime, startTime + ONE_HOUR, null, false, tag);
+	}
+}